@@ -9,6 +9,7 @@ import android.media.AudioTrack;
 import android.media.AudioTrack.OnPlaybackPositionUpdateListener;
 import android.util.Log;
 import org.twintail.tss.Channel;
+import org.twintail.tss.MasterChannel;
 
 
 /**
@@ -20,12 +21,12 @@ import org.twintail.tss.Channel;
  */
 public final class AudioLooper implements OnPlaybackPositionUpdateListener {
     private static final String TAG = "AudioLooper";
-    private static final int SAMPLE_RATE_IN_HZ = 44100;
     private static final int BYTES_PER_CHANNEL = 2;
     private static final int NUM_OF_CHANNELS = 2;
     private static final int FRAME_SIZE_IN_BYTES =
         BYTES_PER_CHANNEL * NUM_OF_CHANNELS;
     private static final int DEFAULT_BUFFER_SIZE_IN_BYTES = 8192;
+    private final int sampleRateInHz;
     private int bufferSizeInBytes = DEFAULT_BUFFER_SIZE_IN_BYTES;
     private int bufferSizeInShorts;	// bufferSizeInBytes / BYTES_PER_CHANNEL;
     private int bufferSizeInFrames;	// bufferSizeInBytes / FRAME_SIZE_IN_BYTES;
@@ -33,13 +34,23 @@ public final class AudioLooper implements OnPlaybackPositionUpdateListener {
     private AudioTrack track = null;
     private Channel channel = null;
     private short[] nullBuffer = null;
+    private short[] stereoBuffer = null;
 
     /**
      * Class constructor.
      */
     public AudioLooper() {
+        this(MasterChannel.DEFAULT_SAMPLE_FREQUENCY);
+    }
+
+    /**
+     * Class constructor.
+     * @param rate sample rate in Hz
+     */
+    public AudioLooper(final int rate) {
+        sampleRateInHz = rate;
         int minBufferSizeInBytes = AudioTrack.getMinBufferSize(
-                SAMPLE_RATE_IN_HZ,
+                sampleRateInHz,
                 AudioFormat.CHANNEL_CONFIGURATION_STEREO,
                 AudioFormat.ENCODING_PCM_16BIT);
         Log.i(TAG, "MinBufferSize: " + minBufferSizeInBytes);
@@ -54,9 +65,10 @@ public final class AudioLooper implements OnPlaybackPositionUpdateListener {
         bufferSizeInShorts = bufferSizeInBytes / BYTES_PER_CHANNEL;
         bufferSizeInFrames = bufferSizeInBytes / FRAME_SIZE_IN_BYTES;
         nullBuffer = new short[bufferSizeInShorts];
+        stereoBuffer = new short[bufferSizeInShorts];
 
         track = new AudioTrack(AudioManager.STREAM_MUSIC,
-                SAMPLE_RATE_IN_HZ,
+                sampleRateInHz,
                 AudioFormat.CHANNEL_CONFIGURATION_STEREO,
                 AudioFormat.ENCODING_PCM_16BIT,
                 bufferSizeInBytes,
@@ -75,10 +87,19 @@ public final class AudioLooper implements OnPlaybackPositionUpdateListener {
      * @param newChannel sound generator
      */
     public void setChannel(final Channel newChannel) {
+        newChannel.setSampleRate(sampleRateInHz);
         newChannel.setBufferLength(bufferSizeInShorts);
         channel = newChannel;
     }
 
+    /**
+     * Get output sample rate.
+     * @return sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRateInHz;
+    }
+
     /**
      * @see AudioTrack.OnPlaybackPositionUpdateListener
      * @param audioTrack caller AudioTrack object
@@ -95,7 +116,15 @@ public final class AudioLooper implements OnPlaybackPositionUpdateListener {
         Log.v(TAG, "onPeriodicNotification()");
         if (null != channel) {
             channel.generate(bufferSizeInShorts);
-            audioTrack.write(channel.getBuffer(), 0, bufferSizeInShorts);
+            short[] buffer = channel.getBuffer();
+            if (Channel.MONO == channel.getNumOfChannels()) {
+                // mono stream is expanded to stereo here
+                for (int offset = 0; offset < bufferSizeInShorts; offset++) {
+                    stereoBuffer[offset] = buffer[offset >> 1];
+                }
+                buffer = stereoBuffer;
+            }
+            audioTrack.write(buffer, 0, bufferSizeInShorts);
         } else {
             audioTrack.write(nullBuffer, 0, bufferSizeInShorts);
         }
@@ -32,4 +32,19 @@ public interface Cpu {
      * Execute one step.
      */
     void runStep();
+
+    /**
+     * Execute instructions until the cycle budget is spent.
+     * The last instruction may exceed the budget, and the overshoot is
+     * returned so that the caller can take it from the next budget.
+     * @param cycleBudget cycles to execute
+     * @return executed cycles beyond the budget
+     */
+    int run(int cycleBudget);
+
+    /**
+     * Get executed cycles since the processor is initialized.
+     * @return executed cycles
+     */
+    int getCycles();
 }
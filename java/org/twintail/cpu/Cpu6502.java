@@ -3,12 +3,18 @@
  */
 package org.twintail.cpu;
 
+import java.util.Arrays;
+
 import org.twintail.Log;
 
 /**
  * class Cpu6502
  *
  * This class emulates MOS 6502 processor.
+ * The processor variant is chosen on construction, and each variant has
+ * its own decode table which maps instructions the variant does not have
+ * to INST_UNKNOWN. So one dispatch serves all variants without checking
+ * the variant on each instruction.
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
 public final class Cpu6502 implements Cpu {
@@ -22,6 +28,12 @@ public final class Cpu6502 implements Cpu {
     public static final int REG_PC = 7;
     public static final int NUM_OF_REGS = 8;
 
+    public static final int VARIANT_MOS6502 = 0;
+    public static final int VARIANT_65C02 = 1;
+    public static final int VARIANT_65CE02 = 2;
+    private static final int NUM_OF_VARIANTS = 3;
+    private static final int NUM_OF_INSTS = 256;
+
     private static final int INST_BRK = 0x00;
     private static final int INST_ORA_IND_X = 0x01;
     private static final int INST_CLE = 0x02;
@@ -278,6 +290,7 @@ public final class Cpu6502 implements Cpu {
     private static final int INST_SBC_ABS_X = 0xfd;
     private static final int INST_INC_ABS_X = 0xfe;
     private static final int INST_BBS7_BP = 0xff;
+    private static final int INST_UNKNOWN = 0x100;
 
     private static final int[] CYCLES = {
         7, 5, 2, 2, 4, 3, 4, 4, 3, 2, 1, 1, 5, 4, 5, 4, // 0x0x
@@ -298,6 +311,28 @@ public final class Cpu6502 implements Cpu {
         2, 5, 5, 3, 5, 3, 4, 4, 1, 4, 3, 3, 7, 4, 5, 4, // 0xFx
     };
 
+    // the first variant which has each instruction
+    private static final int[] INTRODUCED = {
+        0, 0, 2, 2, 1, 0, 0, 2, 0, 0, 0, 2, 1, 0, 0, 2, // 0x0x
+        0, 0, 1, 2, 1, 0, 0, 2, 0, 0, 1, 2, 1, 0, 0, 2, // 0x1x
+        0, 0, 2, 2, 0, 0, 0, 2, 0, 0, 0, 2, 0, 0, 0, 2, // 0x2x
+        0, 0, 1, 2, 1, 0, 0, 2, 0, 0, 1, 2, 1, 0, 0, 2, // 0x3x
+        0, 0, 2, 2, 2, 0, 0, 2, 0, 0, 0, 2, 0, 0, 0, 2, // 0x4x
+        0, 0, 1, 2, 2, 0, 0, 2, 0, 0, 1, 2, 2, 0, 0, 2, // 0x5x
+        0, 0, 2, 2, 1, 0, 0, 2, 0, 0, 0, 2, 0, 0, 0, 2, // 0x6x
+        0, 0, 1, 2, 1, 0, 0, 2, 0, 0, 1, 2, 1, 0, 0, 2, // 0x7x
+        1, 0, 2, 2, 0, 0, 0, 2, 0, 1, 0, 2, 0, 0, 0, 2, // 0x8x
+        0, 0, 1, 2, 0, 0, 0, 2, 0, 0, 0, 2, 1, 0, 1, 2, // 0x9x
+        0, 0, 0, 2, 0, 0, 0, 2, 0, 0, 0, 2, 0, 0, 0, 2, // 0xAx
+        0, 0, 1, 2, 0, 0, 0, 2, 0, 0, 0, 2, 0, 0, 0, 2, // 0xBx
+        0, 0, 2, 2, 0, 0, 0, 2, 0, 0, 0, 2, 0, 0, 0, 2, // 0xCx
+        0, 0, 1, 2, 2, 0, 0, 2, 0, 0, 1, 2, 2, 0, 0, 2, // 0xDx
+        0, 0, 2, 2, 0, 0, 0, 2, 0, 0, 0, 2, 0, 0, 0, 2, // 0xEx
+        0, 0, 1, 2, 2, 0, 0, 2, 0, 0, 1, 2, 2, 0, 0, 2, // 0xFx
+    };
+
+    private static final int[][] DECODE = createDecodeTables();
+
     private static final int BYTE_MASK = 0xff;
     private static final int WORD_MASK = 0xffff;
     private static final int BYTE_SHIFT = 8;
@@ -328,7 +363,9 @@ public final class Cpu6502 implements Cpu {
     private static final int VECTOR_IRQ = 0xfffe;
     private static final int VECTOR_BRK = 0xfffe;
 
-    private Memory memory;
+    private byte[] ram;
+    private Memory[] readPages;
+    private Memory[] writePages;
     private char registerA;
     private char registerB;
     private char registerX;
@@ -340,21 +377,106 @@ public final class Cpu6502 implements Cpu {
 
     private int cycles;
 
-    private boolean enableMos65ce02 = false;
+    private final int variant;
+    private final int[] decode;
 
     /**
      * Class constructor.
+     * This constructor creates a 65C02 which does not have Rockwell bit
+     * manipulation instructions.
      */
     public Cpu6502() {
+        this(VARIANT_65C02);
+    }
+
+    /**
+     * Class constructor.
+     * @param newVariant processor variant, VARIANT_MOS6502, VARIANT_65C02,
+     *     or VARIANT_65CE02
+     */
+    public Cpu6502(final int newVariant) {
+        if ((newVariant < VARIANT_MOS6502) || (newVariant > VARIANT_65CE02)) {
+            throw new IllegalArgumentException("Invalid variant: "
+                    + newVariant);
+        }
+        variant = newVariant;
+        decode = DECODE[variant];
         init();
     }
 
+    /**
+     * Create decode tables for all variants.
+     * @return decode tables indexed by variant
+     */
+    private static int[][] createDecodeTables() {
+        int[][] tables = new int[NUM_OF_VARIANTS][NUM_OF_INSTS];
+        for (int v = 0; v < NUM_OF_VARIANTS; v++) {
+            for (int inst = 0; inst < NUM_OF_INSTS; inst++) {
+                if (INTRODUCED[inst] <= v) {
+                    tables[v][inst] = inst;
+                } else {
+                    tables[v][inst] = INST_UNKNOWN;
+                }
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Get processor variant.
+     * @return VARIANT_MOS6502, VARIANT_65C02, or VARIANT_65CE02
+     */
+    public int getVariant() {
+        return variant;
+    }
+
     /**
      * Set memory access object.
+     * PagedMemory is accessed directly except for I/O pages, and other
+     * Memory objects are accessed through the interface on every access.
      * @param newMemory Memory object to set
      */
     public void setMemory(final Memory newMemory) {
-        memory = newMemory;
+        if (newMemory instanceof PagedMemory) {
+            PagedMemory paged = (PagedMemory) newMemory;
+            ram = paged.getData();
+            readPages = paged.getReadHandlers();
+            writePages = paged.getWriteHandlers();
+            return;
+        }
+        ram = null;
+        readPages = new Memory[PagedMemory.NUM_OF_PAGES];
+        Arrays.fill(readPages, newMemory);
+        writePages = readPages;
+    }
+
+    /**
+     * Read a byte data.
+     * @param address memory address to read
+     * @return read data
+     */
+    private char read(final int address) {
+        int masked = address & WORD_MASK;
+        Memory handler = readPages[masked >> BYTE_SHIFT];
+        if (null == handler) {
+            return (char) (ram[masked] & BYTE_MASK);
+        }
+        return handler.readChar(masked);
+    }
+
+    /**
+     * Write a byte data.
+     * @param address memory address to write
+     * @param data data to write
+     */
+    private void write(final int address, final char data) {
+        int masked = address & WORD_MASK;
+        Memory handler = writePages[masked >> BYTE_SHIFT];
+        if (null == handler) {
+            ram[masked] = (byte) data;
+        } else {
+            handler.writeChar(masked, data);
+        }
     }
 
     /**
@@ -373,6 +495,28 @@ public final class Cpu6502 implements Cpu {
         cycles = 0;
     }
 
+    /**
+     * @see Cpu
+     * @return executed cycles
+     */
+    public int getCycles() {
+        return cycles;
+    }
+
+    /**
+     * @see Cpu
+     * @param cycleBudget cycles to execute
+     * @return executed cycles beyond the budget
+     */
+    public int run(final int cycleBudget) {
+        // compare by difference so that cycles can wrap around
+        int target = cycles + cycleBudget;
+        while (target - cycles > 0) {
+            runStep();
+        }
+        return cycles - target;
+    }
+
     /**
      * @see Cpu
      * @param index register index
@@ -413,7 +557,7 @@ public final class Cpu6502 implements Cpu {
      * @return read data
      */
     private int fetch() {
-        int data = memory.readChar(((int) registerPC) & WORD_MASK);
+        int data = read(((int) registerPC) & WORD_MASK);
         registerPC++;
         return data & BYTE_MASK;
     }
@@ -441,8 +585,8 @@ public final class Cpu6502 implements Cpu {
         int high = ((int) fetch()) & BYTE_MASK;
         int address = (high << BYTE_SHIFT) | low;
         address = (address + (index & BYTE_MASK)) & WORD_MASK;
-        low = ((int) memory.readChar(address + 0)) & BYTE_MASK;
-        high = ((int) memory.readChar(address + 1)) & BYTE_MASK;
+        low = ((int) read(address + 0)) & BYTE_MASK;
+        high = ((int) read(address + 1)) & BYTE_MASK;
         address = ((high << BYTE_SHIFT) | low) & WORD_MASK;
         return address;
     }
@@ -463,8 +607,8 @@ public final class Cpu6502 implements Cpu {
      */
     private int getIndexedIndirectAddress() {
         int address = (fetch() + registerX) & BYTE_MASK;
-        int low = ((int) memory.readChar(address + 0)) & BYTE_MASK;
-        int high = ((int) memory.readChar(address + 1)) & BYTE_MASK;
+        int low = ((int) read(address + 0)) & BYTE_MASK;
+        int high = ((int) read(address + 1)) & BYTE_MASK;
         address = (high << BYTE_SHIFT) | low;
         return address;
     }
@@ -476,8 +620,8 @@ public final class Cpu6502 implements Cpu {
      */
     private int getIndirectIndexedAddress(final char index) {
         int address = fetch() & BYTE_MASK;
-        int low = ((int) memory.readChar(address + 0)) & BYTE_MASK;
-        int high = ((int) memory.readChar(address + 1)) & BYTE_MASK;
+        int low = ((int) read(address + 0)) & BYTE_MASK;
+        int high = ((int) read(address + 1)) & BYTE_MASK;
         address = (high << BYTE_SHIFT) | low;
         address = (address + (index & BYTE_MASK)) & WORD_MASK;
         return address;
@@ -509,8 +653,8 @@ public final class Cpu6502 implements Cpu {
      */
     private int getStackPageIndirectIndexedAddress(final char index) {
         int address = getStackAddress((char) (registerS + fetch()));
-        int low = ((int) memory.readChar(address + 0)) & BYTE_MASK;
-        int high = ((int) memory.readChar(address + 1)) & BYTE_MASK;
+        int low = ((int) read(address + 0)) & BYTE_MASK;
+        int high = ((int) read(address + 1)) & BYTE_MASK;
         address = (high << BYTE_SHIFT) | low;
         address += (index & BYTE_MASK);
         return address;
@@ -546,7 +690,7 @@ public final class Cpu6502 implements Cpu {
      */
     private char getAbsoluteValue(final char index) {
         int address = getAbsoluteAddress(index);
-        return memory.readChar(address);
+        return read(address);
 
     }
 
@@ -557,7 +701,7 @@ public final class Cpu6502 implements Cpu {
      */
     private char getBasePageValue(final char index) {
         int address = getBasePageAddress(index);
-        return memory.readChar(address);
+        return read(address);
     }
 
     /**
@@ -584,7 +728,7 @@ public final class Cpu6502 implements Cpu {
      */
     private char getIndexedIndirectValue() {
         int address = getIndexedIndirectAddress();
-        return memory.readChar(address);
+        return read(address);
     }
 
     /**
@@ -594,7 +738,7 @@ public final class Cpu6502 implements Cpu {
      */
     private char getIndirectIndexedValue(final char index) {
         int address = getIndirectIndexedAddress(index);
-        return memory.readChar(address);
+        return read(address);
     }
 
     /**
@@ -666,7 +810,7 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeAsl(final int address) {
-        int value = memory.readChar(address);
+        int value = read(address);
         resetStatus(P_N | P_Z | P_C);
         if (0 != (value & BIT7)) {
             setStatus(P_C);
@@ -677,7 +821,7 @@ public final class Cpu6502 implements Cpu {
         } else if (0 != (value & BIT7)) {
             setStatus(P_N);
         }
-        memory.writeChar(address, (char) value);
+        write(address, (char) value);
     }
 
     /**
@@ -701,7 +845,7 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeAsr(final int address) {
-        char value = memory.readChar(address);
+        char value = read(address);
         int carry = 0;
         if (0 != (registerP & P_C)) {
             carry = BIT7;
@@ -716,7 +860,7 @@ public final class Cpu6502 implements Cpu {
         } else if (0 != (value & BIT7)) {
             setStatus(P_N);
         }
-        memory.writeChar(address, value);
+        write(address, value);
     }
 
     /**
@@ -744,8 +888,8 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeAsw(final int address) {
-        int low = ((int) memory.readChar(address + 0)) & BYTE_MASK;
-        int high = ((int) memory.readChar(address + 1)) & BYTE_MASK;
+        int low = ((int) read(address + 0)) & BYTE_MASK;
+        int high = ((int) read(address + 1)) & BYTE_MASK;
         int value = ((high << BYTE_SHIFT) | low) & WORD_MASK;
         resetStatus(P_N | P_Z | P_C);
         if (0 != (value & BIT15)) {
@@ -757,8 +901,8 @@ public final class Cpu6502 implements Cpu {
         } else if (0 != (value & BIT15)) {
             setStatus(P_N);
         }
-        memory.writeChar(address + 0, (char) value);
-        memory.writeChar(address + 1, (char) (value >> BYTE_SHIFT));
+        write(address + 0, (char) value);
+        write(address + 1, (char) (value >> BYTE_SHIFT));
     }
 
     /**
@@ -769,7 +913,7 @@ public final class Cpu6502 implements Cpu {
      */
     public void executeBbr(final int mask, final int address,
             final int target) {
-        int value = memory.readChar(address);
+        int value = read(address);
         if (0 == (mask & value)) {
             registerPC = (short) target;
         }
@@ -783,7 +927,7 @@ public final class Cpu6502 implements Cpu {
      */
     public void executeBbs(final int mask, final int address,
             final int target) {
-        int value = memory.readChar(address);
+        int value = read(address);
         if (0 != (mask & value)) {
             registerPC = (short) target;
         }
@@ -812,14 +956,14 @@ public final class Cpu6502 implements Cpu {
      */
     public void executeBrk() {
         skip();
-        memory.writeChar(getStackAddress(registerS--),
+        write(getStackAddress(registerS--),
                 ((char) (registerPC >> BYTE_SHIFT)));
-        memory.writeChar(getStackAddress(registerS--), ((char) registerPC));
+        write(getStackAddress(registerS--), ((char) registerPC));
         setStatus(P_B);
-        memory.writeChar(getStackAddress(registerS--), registerP);
+        write(getStackAddress(registerS--), registerP);
         setStatus(P_I);
-        int low = memory.readChar(VECTOR_BRK + 0) & BYTE_MASK;
-        int high = memory.readChar(VECTOR_BRK + 1) & BYTE_MASK;
+        int low = read(VECTOR_BRK + 0) & BYTE_MASK;
+        int high = read(VECTOR_BRK + 1) & BYTE_MASK;
         registerPC = (short) ((high << BYTE_SHIFT) | low);
     }
 
@@ -873,7 +1017,7 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeDecP(final int address) {
-        char value = memory.readChar(address);
+        char value = read(address);
         char result = (char) (value - 1);
         resetStatus(P_N | P_Z);
         if (0 == result) {
@@ -881,7 +1025,7 @@ public final class Cpu6502 implements Cpu {
         } else if (0 != (result & BIT7)) {
             setStatus(P_N);
         }
-        memory.writeChar(address, result);
+        write(address, result);
     }
 
     /**
@@ -889,8 +1033,8 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeDew(final int address) {
-        int low = ((int) memory.readChar(address + 0)) & BYTE_MASK;
-        int high = ((int) memory.readChar(address + 1)) & BYTE_MASK;
+        int low = ((int) read(address + 0)) & BYTE_MASK;
+        int high = ((int) read(address + 1)) & BYTE_MASK;
         int value = (high << BYTE_SHIFT) | low;
         value = (value - 1) & WORD_MASK;
         resetStatus(P_N | P_Z);
@@ -899,8 +1043,8 @@ public final class Cpu6502 implements Cpu {
         } else if (0 != (value & BIT15)) {
             setStatus(P_N);
         }
-        memory.writeChar(address + 0, (char) value);
-        memory.writeChar(address + 1, (char) (value >> BYTE_SHIFT));
+        write(address + 0, (char) value);
+        write(address + 1, (char) (value >> BYTE_SHIFT));
     }
 
     /**
@@ -938,7 +1082,7 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeIncP(final int address) {
-        char value = memory.readChar(address);
+        char value = read(address);
         char result = (char) (value + 1);
         resetStatus(P_N | P_Z);
         if (0 == result) {
@@ -946,7 +1090,7 @@ public final class Cpu6502 implements Cpu {
         } else if (0 != (result & BIT7)) {
             setStatus(P_N);
         }
-        memory.writeChar(address, result);
+        write(address, result);
     }
 
     /**
@@ -954,8 +1098,8 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeInw(final int address) {
-        int low = ((int) memory.readChar(address + 0)) & BYTE_MASK;
-        int high = ((int) memory.readChar(address + 1)) & BYTE_MASK;
+        int low = ((int) read(address + 0)) & BYTE_MASK;
+        int high = ((int) read(address + 1)) & BYTE_MASK;
         int value = (high << BYTE_SHIFT) | low;
         value = (value + 1) & WORD_MASK;
         resetStatus(P_N | P_Z);
@@ -964,8 +1108,8 @@ public final class Cpu6502 implements Cpu {
         } else if (0 != (value & BIT15)) {
             setStatus(P_N);
         }
-        memory.writeChar(address + 0, (char) value);
-        memory.writeChar(address + 1, (char) (value >> BYTE_SHIFT));
+        write(address + 0, (char) value);
+        write(address + 1, (char) (value >> BYTE_SHIFT));
     }
 
     /**
@@ -974,9 +1118,9 @@ public final class Cpu6502 implements Cpu {
      */
     public void executeJsr(final int target) {
         registerPC--;
-        memory.writeChar(getStackAddress(registerS--),
+        write(getStackAddress(registerS--),
                 ((char) (registerPC >> BYTE_SHIFT)));
-        memory.writeChar(getStackAddress(registerS--), ((char) registerPC));
+        write(getStackAddress(registerS--), ((char) registerPC));
         registerPC = (short) target;
     }
 
@@ -1000,7 +1144,7 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeLsr(final int address) {
-        char value = memory.readChar(address);
+        char value = read(address);
         resetStatus(P_N | P_Z | P_C);
         if (0 != (value & BIT0)) {
             setStatus(P_C);
@@ -1009,7 +1153,7 @@ public final class Cpu6502 implements Cpu {
         if (0 == value) {
             setStatus(P_Z);
         }
-        memory.writeChar(address, value);
+        write(address, value);
     }
 
     /**
@@ -1052,7 +1196,7 @@ public final class Cpu6502 implements Cpu {
      * @param value operand
      */
     private void executePh(final char value) {
-        memory.writeChar(getStackAddress(registerS--), value);
+        write(getStackAddress(registerS--), value);
     }
 
     /**
@@ -1060,9 +1204,9 @@ public final class Cpu6502 implements Cpu {
      * @param value operand
      */
     private void executePhw(final short value) {
-        memory.writeChar(getStackAddress(registerS--),
+        write(getStackAddress(registerS--),
                 (char) (value >> BYTE_SHIFT));
-        memory.writeChar(getStackAddress(registerS--), (char) value);
+        write(getStackAddress(registerS--), (char) value);
     }
 
     /**
@@ -1071,7 +1215,7 @@ public final class Cpu6502 implements Cpu {
      */
     private char executePl() {
         registerS++;
-        char result = memory.readChar(getStackAddress(registerS));
+        char result = read(getStackAddress(registerS));
         resetStatus(P_N | P_Z);
         if (0 == result) {
             setStatus(P_Z);
@@ -1087,9 +1231,9 @@ public final class Cpu6502 implements Cpu {
      * @param mask bit mask to reset
      */
     private void executeRmb(final int address, final int mask) {
-        int value = memory.readChar(address);
+        int value = read(address);
         value = value & ~mask;
-        memory.writeChar(address, (char) value);
+        write(address, (char) value);
     }
 
     /**
@@ -1097,7 +1241,7 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeRol(final int address) {
-        char value = memory.readChar(address);
+        char value = read(address);
         char carry = (char) (registerP & P_C);
         resetStatus(P_N | P_Z | P_C);
         if (0 != (value & BIT7)) {
@@ -1109,7 +1253,7 @@ public final class Cpu6502 implements Cpu {
         } else if (0 != (value & BIT7)) {
             setStatus(P_N);
         }
-        memory.writeChar(address, value);
+        write(address, value);
     }
 
     /**
@@ -1134,7 +1278,7 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeRor(final int address) {
-        char value = memory.readChar(address);
+        char value = read(address);
         char carry = (char) (registerP & P_C);
         resetStatus(P_N | P_Z | P_C);
         if (0 != (value & BIT0)) {
@@ -1149,7 +1293,7 @@ public final class Cpu6502 implements Cpu {
         } else if (0 != (value & BIT7)) {
             setStatus(P_N);
         }
-        memory.writeChar(address, value);
+        write(address, value);
     }
 
     /**
@@ -1177,8 +1321,8 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeRow(final int address) {
-        int low = ((int) memory.readChar(address + 0)) & BYTE_MASK;
-        int high = ((int) memory.readChar(address + 1)) & BYTE_MASK;
+        int low = ((int) read(address + 0)) & BYTE_MASK;
+        int high = ((int) read(address + 1)) & BYTE_MASK;
         int value = ((high << BYTE_SHIFT) | low) & WORD_MASK;
         int carry = registerP & P_C;
         resetStatus(P_N | P_Z | P_C);
@@ -1191,17 +1335,17 @@ public final class Cpu6502 implements Cpu {
         } else if (0 != (value & BIT15)) {
             setStatus(P_N);
         }
-        memory.writeChar(address + 0, (char) value);
-        memory.writeChar(address + 1, (char) (value >> BYTE_SHIFT));
+        write(address + 0, (char) value);
+        write(address + 1, (char) (value >> BYTE_SHIFT));
     }
 
     /**
      * Execute RTI operation.
      */
     private void executeRti() {
-        registerP = memory.readChar(getStackAddress(++registerS));
-        int low = memory.readChar(getStackAddress(++registerS)) & BYTE_MASK;
-        int high = memory.readChar(getStackAddress(++registerS)) & BYTE_MASK;
+        registerP = read(getStackAddress(++registerS));
+        int low = read(getStackAddress(++registerS)) & BYTE_MASK;
+        int high = read(getStackAddress(++registerS)) & BYTE_MASK;
         registerPC = (short) ((high << BYTE_SHIFT) | low);
     }
 
@@ -1209,8 +1353,8 @@ public final class Cpu6502 implements Cpu {
      * Execute RTS operation.
      */
     private void executeRts() {
-        int low = memory.readChar(getStackAddress(++registerS)) & BYTE_MASK;
-        int high = memory.readChar(getStackAddress(++registerS)) & BYTE_MASK;
+        int low = read(getStackAddress(++registerS)) & BYTE_MASK;
+        int high = read(getStackAddress(++registerS)) & BYTE_MASK;
         registerPC = (short) (((high << BYTE_SHIFT) | low) + 1);
     }
 
@@ -1255,9 +1399,9 @@ public final class Cpu6502 implements Cpu {
      * @param mask bit mask to set
      */
     private void executeSmb(final int address, final int mask) {
-        int value = memory.readChar(address);
+        int value = read(address);
         value = value | mask;
-        memory.writeChar(address, (char) value);
+        write(address, (char) value);
     }
 
     /**
@@ -1266,7 +1410,7 @@ public final class Cpu6502 implements Cpu {
      * @param address address to write
      */
     private void executeSt(final char value, final int address) {
-        memory.writeChar(address, value);
+        write(address, value);
     }
 
     /**
@@ -1289,13 +1433,13 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeTrb(final int address) {
-        int result = ~registerA & memory.readChar(address);
+        int result = ~registerA & read(address);
         if (0 == result) {
             setStatus(P_Z);
         } else {
             resetStatus(P_Z);
         }
-        memory.writeChar(address, (char) result);
+        write(address, (char) result);
     }
 
     /**
@@ -1304,13 +1448,13 @@ public final class Cpu6502 implements Cpu {
      * @param address operand address
      */
     private void executeTsb(final int address) {
-        int result = registerA | memory.readChar(address);
+        int result = registerA | read(address);
         if (0 == result) {
             setStatus(P_Z);
         } else {
             resetStatus(P_Z);
         }
-        memory.writeChar(address, (char) result);
+        write(address, (char) result);
     }
 
     /**
@@ -1373,7 +1517,7 @@ public final class Cpu6502 implements Cpu {
     public void runStep() {
         int inst = fetch();
         cycles += CYCLES[inst];
-        switch (inst) {
+        switch (decode[inst]) {
         case INST_BRK:
             executeBrk();
             break;
@@ -1381,22 +1525,14 @@ public final class Cpu6502 implements Cpu {
             executeOra(getIndexedIndirectValue());
             break;
         case INST_CLE:
-            if (enableMos65ce02) {
-                resetStatus(P_E);
-                Log.getLog().warn(
-                    "Cpu6502 not impl: CLear Extend disable (16-bit SP mode)");
-            } else {
-                executeUnknown(inst);
-            }
+            resetStatus(P_E);
+            Log.getLog().warn(
+                "Cpu6502 not impl: CLear Extend disable (16-bit SP mode)");
             break;
         case INST_SEE:
-            if (enableMos65ce02) {
-                setStatus(P_E);
-                Log.getLog().error(
-                    "Cpu6502 not impl: SEt Extend disable (8-bit SP mode)");
-            } else {
-                executeUnknown(inst);
-            }
+            setStatus(P_E);
+            Log.getLog().error(
+                "Cpu6502 not impl: SEt Extend disable (8-bit SP mode)");
             break;
         case INST_TSB_BP:
             executeTsb(getBasePageAddress((char) 0));
@@ -1408,11 +1544,7 @@ public final class Cpu6502 implements Cpu {
             executeAsl(getBasePageAddress((char) 0));
             break;
         case INST_RMB0_BP:
-            if (enableMos65ce02) {
-                executeRmb(getBasePageAddress((char) 0), BIT0);
-            } else {
-                executeUnknown(inst);
-            }
+            executeRmb(getBasePageAddress((char) 0), BIT0);
             break;
         case INST_PHP:
             executePh(registerP);
@@ -1461,11 +1593,7 @@ public final class Cpu6502 implements Cpu {
             executeAsl(getBasePageAddress(registerX));
             break;
         case INST_RMB1_BP:
-            if (enableMos65ce02) {
-                executeRmb(getBasePageAddress((char) 0), BIT1);
-            } else {
-                executeUnknown(inst);
-            }
+            executeRmb(getBasePageAddress((char) 0), BIT1);
             break;
         case INST_CLC:
             resetStatus(P_C);
@@ -1489,12 +1617,8 @@ public final class Cpu6502 implements Cpu {
             executeAsl(getAbsoluteAddress(registerX));
             break;
         case INST_BBR1_BP:
-            if (enableMos65ce02) {
-                executeBbr(BIT1, getBasePageAddress((char) 0),
-                        getRelativeAddress());
-            } else {
-                executeUnknown(inst);
-            }
+            executeBbr(BIT1, getBasePageAddress((char) 0),
+                    getRelativeAddress());
             break;
         case INST_JSR_ABS:
             executeJsr(getAbsoluteAddress((char) 0));
@@ -1503,18 +1627,10 @@ public final class Cpu6502 implements Cpu {
             executeAnd(getIndirectIndexedValue(registerX));
             break;
         case INST_JSR_ABS_IND:
-            if (enableMos65ce02) {
-                executeJsr(getAbsoluteIndirectAddress((char) 0));
-            } else {
-                executeUnknown(inst);
-            }
+            executeJsr(getAbsoluteIndirectAddress((char) 0));
             break;
         case INST_JSR_ABS_IND_X:
-            if (enableMos65ce02) {
-                executeJsr(getAbsoluteIndirectAddress(registerX));
-            } else {
-                executeUnknown(inst);
-            }
+            executeJsr(getAbsoluteIndirectAddress(registerX));
             break;
         case INST_BIT_BP:
             executeBit(getBasePageValue((char) 0));
@@ -1526,11 +1642,7 @@ public final class Cpu6502 implements Cpu {
             executeRol(getBasePageAddress((char) 0));
             break;
         case INST_RMB2_BP:
-            if (enableMos65ce02) {
-                executeRmb(getBasePageAddress((char) 0), BIT2);
-            } else {
-                executeUnknown(inst);
-            }
+            executeRmb(getBasePageAddress((char) 0), BIT2);
             break;
         case INST_PLP:
             registerP = (char) ((executePl() & ~(BIT5 | BIT4))
@@ -1568,11 +1680,7 @@ public final class Cpu6502 implements Cpu {
             executeAnd(getIndirectIndexedValue(registerZ));
             break;
         case INST_BMI_W_REL:
-            if (enableMos65ce02) {
-                executeBxx(0 != (registerP & P_N), getWordRelativeAddress());
-            } else {
-                executeUnknown(inst);
-            }
+            executeBxx(0 != (registerP & P_N), getWordRelativeAddress());
             break;
         case INST_BIT_BP_X:
             executeBit(getBasePageValue(registerX));
@@ -1584,11 +1692,7 @@ public final class Cpu6502 implements Cpu {
             executeRol(getBasePageAddress(registerX));
             break;
         case INST_RMB3_BP:
-            if (enableMos65ce02) {
-                executeRmb(getBasePageAddress((char) 0), BIT3);
-            } else {
-                executeUnknown(inst);
-            }
+            executeRmb(getBasePageAddress((char) 0), BIT3);
             break;
         case INST_SEC:
             setStatus(P_C);
@@ -1600,11 +1704,7 @@ public final class Cpu6502 implements Cpu {
             registerA = executeDec(registerA);
             break;
         case INST_DEZ:
-            if (enableMos65ce02) {
-                registerZ = executeDec(registerZ);
-            } else {
-                executeUnknown(inst);
-            }
+            registerZ = executeDec(registerZ);
             break;
         case INST_BIT_ABS_X:
             executeBit(getAbsoluteValue(registerX));
@@ -1632,11 +1732,7 @@ public final class Cpu6502 implements Cpu {
             executeAsrA();
             break;
         case INST_ASR_BP:
-            if (enableMos65ce02) {
-                executeAsr(getBasePageAddress((char) 0));
-            } else {
-                executeUnknown(inst);
-            }
+            executeAsr(getBasePageAddress((char) 0));
             break;
         case INST_EOR_BP:
             executeEor(getBasePageValue((char) 0));
@@ -1645,11 +1741,7 @@ public final class Cpu6502 implements Cpu {
             executeLsr(getBasePageAddress((char) 0));
             break;
         case INST_RMB4_BP:
-            if (enableMos65ce02) {
-                executeRmb(getBasePageAddress((char) 0), BIT4);
-            } else {
-                executeUnknown(inst);
-            }
+            executeRmb(getBasePageAddress((char) 0), BIT4);
             break;
         case INST_PHA:
             executePh(registerA);
@@ -1698,11 +1790,7 @@ public final class Cpu6502 implements Cpu {
             executeLsr(getBasePageAddress(registerX));
             break;
         case INST_RMB5_BP:
-            if (enableMos65ce02) {
-                executeRmb(getBasePageAddress((char) 0), BIT5);
-            } else {
-                executeUnknown(inst);
-            }
+            executeRmb(getBasePageAddress((char) 0), BIT5);
             break;
         case INST_CLI:
             resetStatus(P_I);
@@ -1755,11 +1843,7 @@ public final class Cpu6502 implements Cpu {
             executeRor(getBasePageAddress((char) 0));
             break;
         case INST_RMB6_BP:
-            if (enableMos65ce02) {
-                executeRmb(getBasePageAddress((char) 0), BIT6);
-            } else {
-                executeUnknown(inst);
-            }
+            executeRmb(getBasePageAddress((char) 0), BIT6);
             break;
         case INST_PLA:
             registerA = executePl();
@@ -1783,36 +1867,20 @@ public final class Cpu6502 implements Cpu {
             executeRor(getAbsoluteAddress((char) 0));
             break;
         case INST_BBR6_BP:
-            if (enableMos65ce02) {
-                executeBbr(BIT6, getBasePageAddress((char) 0),
-                        getRelativeAddress());
-            } else {
-                executeUnknown(inst);
-            }
+            executeBbr(BIT6, getBasePageAddress((char) 0),
+                    getRelativeAddress());
             break;
         case INST_BVS_REL:
             executeBxx(0 != (registerP & P_V), getRelativeAddress());
             break;
         case INST_ADC_IND_Y:
-            if (enableMos65ce02) {
-                executeAdc(getIndirectIndexedValue(registerY));
-            } else {
-                executeUnknown(inst);
-            }
+            executeAdc(getIndirectIndexedValue(registerY));
             break;
         case INST_ADC_IND_Z:
-            if (enableMos65ce02) {
-                executeAdc(getIndirectIndexedValue(registerZ));
-            } else {
-                executeUnknown(inst);
-            }
+            executeAdc(getIndirectIndexedValue(registerZ));
             break;
         case INST_BVS_W_REL:
-            if (enableMos65ce02) {
-                executeBxx(0 != (registerP & P_V), getWordRelativeAddress());
-            } else {
-                executeUnknown(inst);
-            }
+            executeBxx(0 != (registerP & P_V), getWordRelativeAddress());
             break;
         case INST_STZ_BP_X:
             executeSt(registerZ, getBasePageAddress(registerX));
@@ -1824,11 +1892,7 @@ public final class Cpu6502 implements Cpu {
             executeRor(getBasePageValue(registerX));
             break;
         case INST_RMB7_BP:
-            if (enableMos65ce02) {
-                executeRmb(getBasePageAddress((char) 0), BIT7);
-            } else {
-                executeUnknown(inst);
-            }
+            executeRmb(getBasePageAddress((char) 0), BIT7);
             break;
         case INST_SEI:
             setStatus(P_I);
@@ -1877,11 +1941,7 @@ public final class Cpu6502 implements Cpu {
             executeSt(registerX, getBasePageAddress((char) 0));
             break;
         case INST_SMB0_BP:
-            if (enableMos65ce02) {
-                executeSmb(getBasePageAddress((char) 0), BIT0);
-            } else {
-                executeUnknown(inst);
-            }
+            executeSmb(getBasePageAddress((char) 0), BIT0);
             break;
         case INST_DEY:
             registerY = executeDec(registerY);
@@ -1905,12 +1965,8 @@ public final class Cpu6502 implements Cpu {
             executeSt(registerX, getAbsoluteAddress((char) 0));
             break;
         case INST_BBS0_BP:
-            if (enableMos65ce02) {
-                executeBbs(BIT0, getBasePageAddress((char) 0),
-                        getRelativeAddress());
-            } else {
-                executeUnknown(inst);
-            }
+            executeBbs(BIT0, getBasePageAddress((char) 0),
+                    getRelativeAddress());
             break;
         case INST_BCC_REL:
             executeBxx(0 == (registerP & P_C), getRelativeAddress());
@@ -1922,11 +1978,7 @@ public final class Cpu6502 implements Cpu {
             executeSt(registerA, getIndirectIndexedAddress(registerZ));
             break;
         case INST_BCC_W_REL:
-            if (enableMos65ce02) {
-                executeBxx(0 == (registerP & P_C), getWordRelativeAddress());
-            } else {
-                executeUnknown(inst);
-            }
+            executeBxx(0 == (registerP & P_C), getWordRelativeAddress());
             break;
         case INST_STY_BP_X:
             executeSt(registerY, getBasePageAddress(registerX));
@@ -1938,11 +1990,7 @@ public final class Cpu6502 implements Cpu {
             executeSt(registerX, getBasePageAddress(registerY));
             break;
         case INST_SMB1_BP:
-            if (enableMos65ce02) {
-                executeSmb(getBasePageAddress((char) 0), BIT1);
-            } else {
-                executeUnknown(inst);
-            }
+            executeSmb(getBasePageAddress((char) 0), BIT1);
             break;
         case INST_TYA:
             executeTxa(registerY);
@@ -1991,11 +2039,7 @@ public final class Cpu6502 implements Cpu {
             registerX = executeLd(getBasePageValue((char) 0));
             break;
         case INST_SMB2_BP:
-            if (enableMos65ce02) {
-                executeSmb(getBasePageAddress((char) 0), BIT2);
-            } else {
-                executeUnknown(inst);
-            }
+            executeSmb(getBasePageAddress((char) 0), BIT2);
             break;
         case INST_TAY:
             registerY = executeTax();
@@ -2007,11 +2051,7 @@ public final class Cpu6502 implements Cpu {
             registerX = executeTax();
             break;
         case INST_LDZ_ABS:
-            if (enableMos65ce02) {
-                registerZ = executeLd(getAbsoluteValue((char) 0));
-            } else {
-                executeUnknown(inst);
-            }
+            registerZ = executeLd(getAbsoluteValue((char) 0));
             break;
         case INST_LDY_ABS:
             registerY = executeLd(getAbsoluteValue((char) 0));
@@ -2048,11 +2088,7 @@ public final class Cpu6502 implements Cpu {
             registerX = executeLd(getBasePageValue(registerY));
             break;
         case INST_SMB3_BP:
-            if (enableMos65ce02) {
-                executeSmb(getBasePageAddress((char) 0), BIT3);
-            } else {
-                executeUnknown(inst);
-            }
+            executeSmb(getBasePageAddress((char) 0), BIT3);
             break;
         case INST_CLV:
             resetStatus(P_V);
@@ -2064,11 +2100,7 @@ public final class Cpu6502 implements Cpu {
             registerS = executeTax();
             break;
         case INST_LDZ_ABS_X:
-            if (enableMos65ce02) {
-                registerZ = executeLd(getAbsoluteValue(registerX));
-            } else {
-                executeUnknown(inst);
-            }
+            registerZ = executeLd(getAbsoluteValue(registerX));
             break;
         case INST_LDY_ABS_X:
             registerY = executeLd(getAbsoluteValue(registerX));
@@ -2105,11 +2137,7 @@ public final class Cpu6502 implements Cpu {
             executeDecP(getBasePageAddress((char) 0));
             break;
         case INST_SMB4_BP:
-            if (enableMos65ce02) {
-                executeSmb(getBasePageAddress((char) 0), BIT4);
-            } else {
-                executeUnknown(inst);
-            }
+            executeSmb(getBasePageAddress((char) 0), BIT4);
             break;
         case INST_INY:
             registerY = executeInc(registerY);
@@ -2121,11 +2149,7 @@ public final class Cpu6502 implements Cpu {
             registerX = executeDec(registerX);
             break;
         case INST_ASW_ABS:
-            if (enableMos65ce02) {
-                executeAsw(getAbsoluteAddress((char) 0));
-            } else {
-                executeUnknown(inst);
-            }
+            executeAsw(getAbsoluteAddress((char) 0));
             break;
         case INST_CPY_ABS:
             executeCmp(registerY, getAbsoluteValue((char) 0));
@@ -2161,11 +2185,7 @@ public final class Cpu6502 implements Cpu {
             executeDecP(getBasePageAddress(registerX));
             break;
         case INST_SMB5_BP:
-            if (enableMos65ce02) {
-                executeSmb(getBasePageAddress((char) 0), BIT5);
-            } else {
-                executeUnknown(inst);
-            }
+            executeSmb(getBasePageAddress((char) 0), BIT5);
             break;
         case INST_CLD:
             resetStatus(P_D);
@@ -2180,11 +2200,7 @@ public final class Cpu6502 implements Cpu {
             executePh(registerZ);
             break;
         case INST_CPZ_ABS:
-            if (enableMos65ce02) {
-                executeCmp(registerZ, getAbsoluteValue((char) 0));
-            } else {
-                executeUnknown(inst);
-            }
+            executeCmp(registerZ, getAbsoluteValue((char) 0));
             break;
         case INST_CMP_ABS_X:
             executeCmp(registerA, getAbsoluteValue(registerX));
@@ -2193,12 +2209,8 @@ public final class Cpu6502 implements Cpu {
             executeDecP(getAbsoluteAddress(registerX));
             break;
         case INST_BBS5_BP:
-            if (enableMos65ce02) {
-                executeBbs(BIT5, getBasePageAddress((char) 0),
-                        getRelativeAddress());
-            } else {
-                executeUnknown(inst);
-            }
+            executeBbs(BIT5, getBasePageAddress((char) 0),
+                    getRelativeAddress());
             break;
         case INST_CPX_IMM:
             executeCmp(registerX, getImmediateValue());
@@ -2207,15 +2219,11 @@ public final class Cpu6502 implements Cpu {
             executeSbc(getIndexedIndirectValue());
             break;
         case INST_LDA_DSP_Y:
-            registerA = executeLd(memory.readChar(
+            registerA = executeLd(read(
                     getStackPageIndirectIndexedAddress(registerY)));
             break;
         case INST_INW_BP:
-            if (enableMos65ce02) {
-                executeInw(getBasePageAddress((char) 0));
-            } else {
-                executeUnknown(inst);
-            }
+            executeInw(getBasePageAddress((char) 0));
             break;
         case INST_CPX_BP:
             executeCmp(registerX, getBasePageValue((char) 0));
@@ -2227,11 +2235,7 @@ public final class Cpu6502 implements Cpu {
             executeIncP(getBasePageAddress((char) 0));
             break;
         case INST_SMB6_BP:
-            if (enableMos65ce02) {
-                executeSmb(getBasePageAddress((char) 0), BIT6);
-            } else {
-                executeUnknown(inst);
-            }
+            executeSmb(getBasePageAddress((char) 0), BIT6);
             break;
         case INST_INX:
             registerX = executeInc(registerX);
@@ -2242,11 +2246,7 @@ public final class Cpu6502 implements Cpu {
         case INST_NOP:
             break;
         case INST_ROW_ABS:
-            if (enableMos65ce02) {
-                executeRow(getAbsoluteAddress((char) 0));
-            } else {
-                executeUnknown(inst);
-            }
+            executeRow(getAbsoluteAddress((char) 0));
             break;
         case INST_CPX_ABS:
             executeCmp(registerX, getAbsoluteValue((char) 0));
@@ -2283,11 +2283,7 @@ public final class Cpu6502 implements Cpu {
             executeIncP(getBasePageAddress(registerX));
             break;
         case INST_SMB7_BP:
-            if (enableMos65ce02) {
-                executeSmb(getBasePageAddress((char) 0), BIT7);
-            } else {
-                executeUnknown(inst);
-            }
+            executeSmb(getBasePageAddress((char) 0), BIT7);
             break;
         case INST_SED:
             setStatus(P_D);
@@ -2299,18 +2295,10 @@ public final class Cpu6502 implements Cpu {
             registerX = executePl();
             break;
         case INST_PLZ:
-            if (enableMos65ce02) {
-                registerZ = executePl();
-            } else {
-                executeUnknown(inst);
-            }
+            registerZ = executePl();
             break;
         case INST_PHW_ABS_W:
-            if (enableMos65ce02) {
-                executePhw((short) getWordAbsoluteAddress());
-            } else {
-                executeUnknown(inst);
-            }
+            executePhw((short) getWordAbsoluteAddress());
             break;
         case INST_SBC_ABS_X:
             executeSbc(getAbsoluteValue(registerX));
@@ -2319,12 +2307,11 @@ public final class Cpu6502 implements Cpu {
             executeIncP(getAbsoluteAddress(registerX));
             break;
         case INST_BBS7_BP:
-            if (enableMos65ce02) {
-                executeBbs(BIT7, getBasePageAddress((char) 0),
-                        getRelativeAddress());
-            } else {
-                executeUnknown(inst);
-            }
+            executeBbs(BIT7, getBasePageAddress((char) 0),
+                    getRelativeAddress());
+            break;
+        case INST_UNKNOWN:
+            executeUnknown(inst);
             break;
         default: // all your cases are belong to us!
             Log.getLog().fatal("Cpu6502: should not be reached");
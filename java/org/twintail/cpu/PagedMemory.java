@@ -0,0 +1,163 @@
+/**
+ * CPU Emulation Suites for Java
+ */
+package org.twintail.cpu;
+
+/**
+ * class PagedMemory
+ *
+ * This class provides a 64KB memory which consists of 256-byte pages.
+ * All pages are backed by one byte array, and only pages mapped to I/O
+ * handlers dispatch accesses to the handlers. Pages can also be marked
+ * as ROM, and writes to ROM pages are ignored.
+ * Cpu6502 reads and writes RAM and ROM pages of this memory by a direct
+ * array index, and calls handlers only for I/O pages.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class PagedMemory implements Memory {
+    public static final int MEMORY_SIZE = 0x10000;
+    public static final int PAGE_SIZE = 0x100;
+    public static final int PAGE_SHIFT = 8;
+    public static final int NUM_OF_PAGES = MEMORY_SIZE / PAGE_SIZE;
+
+    private static final int BYTE_MASK = 0xff;
+    private static final int WORD_MASK = 0xffff;
+
+    // handler which ignores writes, shared by all ROM pages
+    private static final Memory ROM = new Memory() {
+        /**
+         * @see Memory
+         * @param address memory address to write
+         * @param value data to write
+         */
+        public void writeChar(final int address, final char value) {
+        }
+
+        /**
+         * ROM pages are read from the backing array, not from here.
+         * @see Memory
+         * @param address memory address to read
+         * @return always 0
+         */
+        public char readChar(final int address) {
+            return 0;
+        }
+    };
+
+    private final byte[] data = new byte[MEMORY_SIZE];
+    private final Memory[] readHandlers = new Memory[NUM_OF_PAGES];
+    private final Memory[] writeHandlers = new Memory[NUM_OF_PAGES];
+
+    /**
+     * Check page number.
+     * @param page page number
+     */
+    private static void checkPage(final int page) {
+        if ((page < 0) || (page >= NUM_OF_PAGES)) {
+            throw new IllegalArgumentException("Invalid page: " + page);
+        }
+    }
+
+    /**
+     * Map a page to an I/O handler. All reads and writes in the page are
+     * dispatched to the handler with full addresses.
+     * @param page page number
+     * @param handler I/O handler, or null to map the page to RAM
+     */
+    public void mapIo(final int page, final Memory handler) {
+        checkPage(page);
+        readHandlers[page] = handler;
+        writeHandlers[page] = handler;
+    }
+
+    /**
+     * Map a page to ROM. Reads return data in the backing array, and
+     * writes are ignored.
+     * @param page page number
+     */
+    public void mapRom(final int page) {
+        checkPage(page);
+        readHandlers[page] = null;
+        writeHandlers[page] = ROM;
+    }
+
+    /**
+     * Map a page to RAM.
+     * @param page page number
+     */
+    public void mapRam(final int page) {
+        checkPage(page);
+        readHandlers[page] = null;
+        writeHandlers[page] = null;
+    }
+
+    /**
+     * Load an image into the backing array. Page mapping is not applied,
+     * so that ROM pages can be loaded too.
+     * @param address memory address to load
+     * @param image image to load
+     * @param offset offset in the image
+     * @param length length to load
+     */
+    public void load(final int address, final byte[] image, final int offset,
+            final int length) {
+        if ((address < 0) || (length < 0) || (address + length > MEMORY_SIZE)) {
+            throw new IllegalArgumentException("Invalid range: " + address
+                    + "+" + length);
+        }
+        System.arraycopy(image, offset, data, address, length);
+    }
+
+    /**
+     * Get the backing array.
+     * @return byte array of MEMORY_SIZE
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Get read handlers. RAM and ROM pages have null.
+     * @return handlers indexed by page
+     */
+    Memory[] getReadHandlers() {
+        return readHandlers;
+    }
+
+    /**
+     * Get write handlers. RAM pages have null.
+     * @return handlers indexed by page
+     */
+    Memory[] getWriteHandlers() {
+        return writeHandlers;
+    }
+
+    /**
+     * Write 8-bit data to addressed memory.
+     * @param address memory address to write
+     * @param value data to write
+     */
+    public void writeChar(final int address, final char value) {
+        int masked = address & WORD_MASK;
+        Memory handler = writeHandlers[masked >> PAGE_SHIFT];
+        if (null == handler) {
+            data[masked] = (byte) value;
+        } else {
+            handler.writeChar(masked, value);
+        }
+    }
+
+    /**
+     * Read 8-bit data from addressed memory.
+     * @param address memory address to read
+     * @return read data
+     */
+    public char readChar(final int address) {
+        int masked = address & WORD_MASK;
+        Memory handler = readHandlers[masked >> PAGE_SHIFT];
+        if (null == handler) {
+            return (char) (data[masked] & BYTE_MASK);
+        }
+        return handler.readChar(masked);
+    }
+}
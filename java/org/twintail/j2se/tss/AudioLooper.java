@@ -3,41 +3,62 @@
  */
 package org.twintail.j2se.tss;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.SourceDataLine;
 import javax.sound.sampled.LineUnavailableException;
 import org.twintail.tss.Channel;
+import org.twintail.tss.MasterChannel;
 
 /**
  * class AudioLooper
  *
  * This class provides an audio output stream for real time
  * sound rendering.
+ * A render thread generates audio into a preallocated ring of PCM
+ * blocks, and this thread drains the ring into the audio line.
+ * The ring has one producer and one consumer, and each index is written
+ * only by its owner thread, so neither thread takes a lock. A deeper
+ * ring adds latency, and absorbs longer stalls of the render thread,
+ * e.g. GC pauses or a slow Player.updateDevice(). When the ring is
+ * empty, this thread waits while the line still has queued audio, and
+ * writes a silent block only when the line is nearly drained. Only such
+ * blocks are counted as underruns.
+ * Blocks are written in the native byte order through ShortBuffer views,
+ * and the line is opened in the same order, so that samples are copied
+ * in bulk without per sample byte conversion. The line stays stereo,
+ * since a channel may change its number of channels while playing, and
+ * mono stream is expanded in a plain array before the bulk copy.
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
 public final class AudioLooper extends Thread {
     private static final String TAG = "AudioLooper";
-    private static final float SAMPLE_RATE_IN_HZ = 44100;
     private static final int BYTES_PER_CHANNEL = 2;
     private static final int BITS_PER_CHANNEL = 16;
     private static final int NUM_OF_CHANNELS = 2;
     private static final int BUFFER_SIZE_IN_BYTES = 8192;
     private static final int BUFFER_SIZE_IN_SHORTS =
         BUFFER_SIZE_IN_BYTES / BYTES_PER_CHANNEL;
-    private static final int BITS_PER_BYTE = 8;
-    private static final int SHORT_MASK = 0xffff;
-    private static final AudioFormat AUDIO_FORMAT =
-        new AudioFormat(SAMPLE_RATE_IN_HZ,
-            BITS_PER_CHANNEL,
-            NUM_OF_CHANNELS,
-            true,
-            true);
+    private static final int DEFAULT_RING_BLOCKS = 4;
+    private static final long WAIT_NSEC = 1000000;
+    private static final int DRAIN_MARGIN_IN_BYTES = BUFFER_SIZE_IN_BYTES / 8;
 
+    private final int sampleRateInHz;
     private SourceDataLine line = null;
-    private Channel channel = null;
-    private byte[] buffer = new byte[BUFFER_SIZE_IN_BYTES];
+    private volatile Channel channel = null;
+    private final byte[][] ring;
+    private final ShortBuffer[] views;
+    private final byte[] silence = new byte[BUFFER_SIZE_IN_BYTES];
+    private final short[] stereo = new short[BUFFER_SIZE_IN_SHORTS];
+    private volatile long writeIndex = 0;
+    private volatile long readIndex = 0;
+    private volatile long underruns = 0;
+    private final Thread renderer;
 
     /**
      * Class constructor.
@@ -45,28 +66,174 @@ public final class AudioLooper extends Thread {
      * @see SoundDataLine
      */
     public AudioLooper() throws LineUnavailableException {
+        this(MasterChannel.DEFAULT_SAMPLE_FREQUENCY);
+    }
+
+    /**
+     * Class constructor.
+     * @param rate sample rate in Hz
+     * @throws LineUnavailableException Exception happened to get SoundDataLine
+     * @see SoundDataLine
+     */
+    public AudioLooper(final int rate) throws LineUnavailableException {
+        this(rate, DEFAULT_RING_BLOCKS);
+    }
+
+    /**
+     * Class constructor.
+     * @param rate sample rate in Hz
+     * @param blocks ring depth in blocks of BUFFER_SIZE_IN_BYTES
+     * @throws LineUnavailableException Exception happened to get SoundDataLine
+     * @see SoundDataLine
+     */
+    public AudioLooper(final int rate, final int blocks)
+            throws LineUnavailableException {
+        this(rate, blocks, AudioSystem.getSourceDataLine(createFormat(rate)));
+    }
+
+    /**
+     * Class constructor to play through a given line.
+     * @param rate sample rate in Hz
+     * @param blocks ring depth in blocks of BUFFER_SIZE_IN_BYTES
+     * @param output line to open and write
+     * @throws LineUnavailableException Exception happened to open the line
+     * @see SoundDataLine
+     */
+    AudioLooper(final int rate, final int blocks, final SourceDataLine output)
+            throws LineUnavailableException {
+        if (blocks <= 0) {
+            throw new IllegalArgumentException("Invalid ring depth: "
+                    + blocks);
+        }
+        sampleRateInHz = rate;
+        ring = new byte[blocks][BUFFER_SIZE_IN_BYTES];
+        views = new ShortBuffer[blocks];
+        for (int i = 0; i < blocks; i++) {
+            views[i] = ByteBuffer.wrap(ring[i]).order(
+                    ByteOrder.nativeOrder()).asShortBuffer();
+        }
+        renderer = new Thread(new Runnable() {
+            public void run() {
+                render();
+            }
+        }, TAG + "-render");
+        renderer.setDaemon(true);
+        AudioFormat format = createFormat(rate);
         Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).info(TAG
                 + "> J2SE Audio Looper");
 
-        line = AudioSystem.getSourceDataLine(AUDIO_FORMAT);
+        line = output;
         Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).info(TAG
                 + "> " + line.toString());
         Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).info(TAG
                 + "> DefaultBufferSize: " + line.getBufferSize());
-        line.open(AUDIO_FORMAT, BUFFER_SIZE_IN_BYTES);
+        line.open(format, BUFFER_SIZE_IN_BYTES);
         Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).info(TAG
                 + "> ConfiguredBufferSize: " + line.getBufferSize());
     }
 
+    /**
+     * Create the line format, that is native order signed 16-bit stereo.
+     * @param rate sample rate in Hz
+     * @return audio format
+     */
+    private static AudioFormat createFormat(final int rate) {
+        return new AudioFormat(rate,
+                BITS_PER_CHANNEL,
+                NUM_OF_CHANNELS,
+                true,
+                ByteOrder.BIG_ENDIAN == ByteOrder.nativeOrder());
+    }
+
     /**
      * Register sound generator.
      * @param newChannel sound generator
      */
     public void setChannel(final Channel newChannel) {
+        newChannel.setSampleRate(sampleRateInHz);
         newChannel.setBufferLength(BUFFER_SIZE_IN_SHORTS);
         channel = newChannel;
     }
 
+    /**
+     * Get output sample rate.
+     * @return sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRateInHz;
+    }
+
+    /**
+     * Get ring depth.
+     * @return ring depth in blocks
+     */
+    public int getRingDepth() {
+        return ring.length;
+    }
+
+    /**
+     * Get the number of rendered blocks waiting in the ring.
+     * @return ring fill level in blocks
+     */
+    public int getRingFill() {
+        return (int) (writeIndex - readIndex);
+    }
+
+    /**
+     * Get the number of silent blocks written on drained line.
+     * @return underrun count
+     */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * Render audio into a PCM block.
+     * @param block block to store native order stereo PCM
+     * @param view native order short view of the block
+     */
+    private void renderBlock(final byte[] block, final ShortBuffer view) {
+        Channel current = channel;
+        if (null == current) {
+            System.arraycopy(silence, 0, block, 0, BUFFER_SIZE_IN_BYTES);
+            return;
+        }
+        current.generate(BUFFER_SIZE_IN_SHORTS);
+        short[] channelBuffer = current.getBuffer();
+        view.clear();
+        if (Channel.MONO == current.getNumOfChannels()) {
+            // mono stream is expanded to stereo in an array, and put in
+            // bulk as stereo stream is
+            final short[] expanded = stereo;
+            for (int offset = 0; offset < BUFFER_SIZE_IN_SHORTS / 2;
+                    offset++) {
+                short value = channelBuffer[offset];
+                expanded[offset * 2] = value;
+                expanded[offset * 2 + 1] = value;
+            }
+            channelBuffer = expanded;
+        }
+        view.put(channelBuffer, 0, BUFFER_SIZE_IN_SHORTS);
+    }
+
+    /**
+     * Render loop of the producer thread. It fills free blocks of the
+     * ring, and sleeps shortly while the ring is full.
+     */
+    private void render() {
+        for (;;) {
+            long index = writeIndex;
+            if (index - readIndex == ring.length) {
+                LockSupport.parkNanos(WAIT_NSEC);
+                continue;
+            }
+            int slot = (int) (index % ring.length);
+            renderBlock(ring[slot], views[slot]);
+            // publish the block after it is filled
+            writeIndex = index + 1;
+        }
+    }
+
     /**
      * Run audio generation loop forever!
      * If you run audio loop in an individual thread, call start().
@@ -74,18 +241,30 @@ public final class AudioLooper extends Thread {
      * It blocks and never be back.
      */
     public void run() {
+        renderer.start();
+        // fill the ring before starting to play
+        while (writeIndex - readIndex < ring.length) {
+            LockSupport.parkNanos(WAIT_NSEC);
+        }
         line.start();
         for (;;) {
-            if (null != channel) {
-                channel.generate(BUFFER_SIZE_IN_SHORTS);
-                short[] channelBuffer = channel.getBuffer();
-                for (int offset = 0; offset < BUFFER_SIZE_IN_SHORTS; offset++) {
-                    int value = channelBuffer[offset] & SHORT_MASK;
-                    buffer[offset * 2 + 0] = (byte) (value >> BITS_PER_BYTE);
-                    buffer[offset * 2 + 1] = (byte) value;
+            long index = readIndex;
+            if (index == writeIndex) {
+                // the line still plays queued audio, and the renderer may
+                // catch up before it drains
+                if (line.getBufferSize() - line.available()
+                        > DRAIN_MARGIN_IN_BYTES) {
+                    LockSupport.parkNanos(WAIT_NSEC);
+                    continue;
                 }
-                line.write(buffer, 0, BUFFER_SIZE_IN_SHORTS * 2);
+                underruns++;
+                line.write(silence, 0, BUFFER_SIZE_IN_BYTES);
+                continue;
             }
+            line.write(ring[(int) (index % ring.length)], 0,
+                    BUFFER_SIZE_IN_BYTES);
+            // release the block after it is written
+            readIndex = index + 1;
         }
     }
 }
@@ -0,0 +1,351 @@
+/**
+ * T'SoundSystem for J2SE (Java Sound API)
+ */
+package org.twintail.j2se.tss;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.twintail.Log;
+import org.twintail.tss.MasterChannel;
+import org.twintail.tss.PsgDeviceChannel;
+import org.twintail.tss.PsglogPlayer;
+import org.twintail.tss.VgmPlayer;
+
+/**
+ * class BatchRenderer
+ *
+ * This class renders many VGM and PSGLOG files into WAV or raw PCM
+ * files in parallel.
+ * Usage: BatchRenderer [-o dir] [-j workers] [-l loops] [-t seconds]
+ *                      [-s seconds] [-r rate] [-abc] [-blep] [-raw] [-v]
+ *                      file-or-directory...
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class BatchRenderer {
+    private static final int DEFAULT_LOOPS = 1;
+    private static final int DEFAULT_MAX_SECONDS = 600;
+    private static final double NSEC_PER_SEC = 1000000000.0;
+    private static final double NSEC_PER_MSEC = 1000000.0;
+    private static final double P50 = 0.50;
+    private static final double P99 = 0.99;
+    private static final int ABC_NEAR = PsgDeviceChannel.PAN_UNITY * 3 / 4;
+    private static final int ABC_FAR = PsgDeviceChannel.PAN_UNITY / 4;
+    private static final int ABC_CENTER = PsgDeviceChannel.PAN_UNITY / 2;
+
+    private File outputDirectory = new File(".");
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int loops = DEFAULT_LOOPS;
+    private int maxSeconds = DEFAULT_MAX_SECONDS;
+    private int format = OfflineRenderer.FORMAT_WAV;
+    private int segmentSeconds = 0;
+    private int sampleRate = MasterChannel.DEFAULT_SAMPLE_FREQUENCY;
+    private boolean abc = false;
+    private boolean blep = false;
+    private ExecutorService segmentExecutor = null;
+    private final List<File> files = new ArrayList<File>();
+
+    /**
+     * class Worker
+     *
+     * This class holds one audio graph reused by a worker thread.
+     */
+    private static final class Worker {
+        private final MasterChannel master = new MasterChannel();
+        private final OfflineRenderer renderer = new OfflineRenderer();
+    }
+
+    /**
+     * class Result
+     *
+     * This class holds a rendering result of one file.
+     */
+    private static final class Result {
+        private long samples = 0;
+        private long time = 0;
+    }
+
+    private final ThreadLocal<Worker> worker = new ThreadLocal<Worker>() {
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    /**
+     * Check if a file looks like a playable file.
+     * @param file file to check
+     * @return true if the file is VGM, VGZ or PSGLOG
+     */
+    private static boolean isPlayable(final File file) {
+        String name = file.getName().toLowerCase();
+        return isVgm(file) || name.contains("psglog");
+    }
+
+    /**
+     * Check if a file is VGM or VGZ.
+     * @param file file to check
+     * @return true if the file is VGM or VGZ
+     */
+    private static boolean isVgm(final File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".vgm") || name.endsWith(".vgz");
+    }
+
+    /**
+     * Add a file, or playable files in a directory.
+     * @param file file or directory to add
+     */
+    public void addFile(final File file) {
+        if (!file.isDirectory()) {
+            files.add(file);
+            return;
+        }
+        File[] list = file.listFiles();
+        if (null == list) {
+            return;
+        }
+        Arrays.sort(list);
+        for (int i = 0; i < list.length; i++) {
+            if (list[i].isFile() && isPlayable(list[i])) {
+                files.add(list[i]);
+            }
+        }
+    }
+
+    /**
+     * Pan voices in ABC stereo, i.e. A to left, B to center, and C to
+     * right. Buffers are allocated again when the renderer sets the
+     * buffer length of the MasterChannel.
+     * @param psg PsgDeviceChannel to set
+     */
+    private static void setAbcStereo(final PsgDeviceChannel psg) {
+        psg.setOutput(PsgDeviceChannel.OUTPUT_PAN);
+        psg.setPan(PsgDeviceChannel.VOICE_A, ABC_NEAR, ABC_FAR);
+        psg.setPan(PsgDeviceChannel.VOICE_B, ABC_CENTER, ABC_CENTER);
+        psg.setPan(PsgDeviceChannel.VOICE_C, ABC_FAR, ABC_NEAR);
+        psg.setPan(PsgDeviceChannel.VOICE_NOISE, ABC_CENTER, ABC_CENTER);
+    }
+
+    /**
+     * Render one file with the worker graph of the current thread.
+     * @param file file to render
+     * @return rendering result
+     * @throws IOException exception on reading or writing
+     */
+    private Result render(final File file) throws IOException {
+        Worker w = worker.get();
+        InputStream in = null;
+        try {
+            boolean playing;
+            if (isVgm(file)) {
+                VgmPlayer vgm = new VgmPlayer();
+                vgm.setLoopLimit(loops);
+                vgm.setMasterChannel(w.master);
+                playing = vgm.play(file);
+            } else {
+                PsglogPlayer psglog = new PsglogPlayer();
+                psglog.setMasterChannel(w.master);
+                in = new BufferedInputStream(new FileInputStream(file));
+                playing = psglog.play(in);
+            }
+            if (!playing) {
+                throw new IOException("can not play " + file);
+            }
+            PsgDeviceChannel psg = (PsgDeviceChannel) w.master.getChannel(0);
+            if (blep) {
+                psg.setSynthesis(PsgDeviceChannel.SYNTHESIS_BLEP);
+            }
+            if (abc) {
+                setAbcStereo(psg);
+            }
+            w.renderer.setFormat(format);
+            w.renderer.setSampleRate(sampleRate);
+            w.renderer.setSegmentExecutor(segmentExecutor);
+            if (0 != segmentSeconds) {
+                w.renderer.setSegmentLength(
+                        segmentSeconds * sampleRate);
+            }
+            w.renderer.setChannel(w.master);
+            // keep the original extension so that foo.vgm and foo.vgz
+            // never overwrite each other
+            String name = file.getName();
+            if (OfflineRenderer.FORMAT_WAV == format) {
+                name += ".wav";
+            } else {
+                name += ".pcm";
+            }
+            Result result = new Result();
+            result.samples = w.renderer.render(
+                    new File(outputDirectory, name),
+                    (long) maxSeconds * sampleRate);
+            result.time = w.renderer.getRenderTime();
+            return result;
+        } finally {
+            if (null != in) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Get a percentile value from sorted values.
+     * @param sorted sorted values
+     * @param ratio percentile ratio
+     * @return percentile value
+     */
+    private static long percentile(final long[] sorted, final double ratio) {
+        int index = (int) Math.ceil(ratio * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    /**
+     * Render all added files, and print a summary.
+     * @return number of failed files
+     */
+    public int run() {
+        ExecutorService executor;
+        if (0 == segmentSeconds) {
+            executor = Executors.newFixedThreadPool(workers);
+        } else {
+            // render files one by one, each in segments on all workers
+            executor = Executors.newSingleThreadExecutor();
+            segmentExecutor = Executors.newFixedThreadPool(workers);
+        }
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < files.size(); i++) {
+            final File file = files.get(i);
+            futures.add(executor.submit(new Callable<Result>() {
+                public Result call() throws IOException {
+                    return render(file);
+                }
+            }));
+        }
+        long[] times = new long[files.size()];
+        int rendered = 0;
+        int failed = 0;
+        long samples = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                Result result = futures.get(i).get();
+                times[rendered++] = result.time;
+                samples += result.samples;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                failed++;
+                System.err.println(files.get(i) + ": "
+                        + e.getCause().toString());
+            }
+        }
+        long wall = System.nanoTime() - start;
+        executor.shutdown();
+        if (null != segmentExecutor) {
+            segmentExecutor.shutdown();
+            segmentExecutor = null;
+        }
+
+        double wallSeconds = wall / NSEC_PER_SEC;
+        double audioSeconds = (double) samples / sampleRate;
+        System.out.println(String.format(
+                "files: %d rendered, %d failed, %d workers", rendered, failed,
+                workers));
+        System.out.println(String.format(
+                "time: %.3f s wall, %.1f files/s", wallSeconds,
+                rendered / wallSeconds));
+        System.out.println(String.format(
+                "audio: %.1f s, x%.1f real time", audioSeconds,
+                audioSeconds / wallSeconds));
+        if (0 != rendered) {
+            long[] sorted = Arrays.copyOf(times, rendered);
+            Arrays.sort(sorted);
+            System.out.println(String.format(
+                    "render time per file: p50 %.3f ms, p99 %.3f ms",
+                    percentile(sorted, P50) / NSEC_PER_MSEC,
+                    percentile(sorted, P99) / NSEC_PER_MSEC));
+        }
+        return failed;
+    }
+
+    /**
+     * Print usage.
+     */
+    private static void usage() {
+        System.err.println("Usage: BatchRenderer [-o dir] [-j workers]"
+                + " [-l loops] [-t seconds] [-s seconds] [-r rate] [-abc]"
+                + " [-blep] [-raw] [-v]"
+                + " file-or-directory...");
+        System.err.println("  -o dir      output directory (default: .)");
+        System.err.println("  -j workers  number of worker threads"
+                + " (default: number of processors)");
+        System.err.println("  -l loops    VGM loop count (default: "
+                + DEFAULT_LOOPS + ")");
+        System.err.println("  -t seconds  maximum length per file (default: "
+                + DEFAULT_MAX_SECONDS + ")");
+        System.err.println("  -s seconds  render each file in segments of"
+                + " the length in parallel");
+        System.err.println("  -r rate     output sample rate in Hz (default: "
+                + MasterChannel.DEFAULT_SAMPLE_FREQUENCY + ")");
+        System.err.println("  -abc        pan voices in ABC stereo");
+        System.err.println("  -blep       band-limited step synthesis");
+        System.err.println("  -raw        write raw PCM instead of WAV");
+        System.err.println("  -v          verbose log");
+    }
+
+    /**
+     * Main to run batch rendering.
+     * @param args command line arguments
+     */
+    public static void main(final String[] args) {
+        BatchRenderer batch = new BatchRenderer();
+        Log.setLog(new Log() { });
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-o".equals(args[i])) {
+                    batch.outputDirectory = new File(args[++i]);
+                } else if ("-j".equals(args[i])) {
+                    batch.workers = Integer.parseInt(args[++i]);
+                } else if ("-l".equals(args[i])) {
+                    batch.loops = Integer.parseInt(args[++i]);
+                } else if ("-t".equals(args[i])) {
+                    batch.maxSeconds = Integer.parseInt(args[++i]);
+                } else if ("-s".equals(args[i])) {
+                    batch.segmentSeconds = Integer.parseInt(args[++i]);
+                } else if ("-r".equals(args[i])) {
+                    batch.sampleRate = Integer.parseInt(args[++i]);
+                } else if ("-abc".equals(args[i])) {
+                    batch.abc = true;
+                } else if ("-blep".equals(args[i])) {
+                    batch.blep = true;
+                } else if ("-raw".equals(args[i])) {
+                    batch.format = OfflineRenderer.FORMAT_RAW;
+                } else if ("-v".equals(args[i])) {
+                    Log.setLog(new J2SELog());
+                } else {
+                    batch.addFile(new File(args[i]));
+                }
+            }
+        } catch (RuntimeException e) {
+            usage();
+            System.exit(1);
+        }
+        if (batch.files.isEmpty() || (batch.workers <= 0)
+                || (batch.segmentSeconds < 0) || (batch.sampleRate <= 0)) {
+            usage();
+            System.exit(1);
+        }
+        batch.outputDirectory.mkdirs();
+        System.exit(0 == batch.run() ? 0 : 1);
+    }
+}
@@ -0,0 +1,879 @@
+/**
+ * T'SoundSystem for J2SE (Java Sound API)
+ */
+package org.twintail.j2se.tss;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.twintail.Log;
+import org.twintail.cpu.Cpu6502;
+import org.twintail.cpu.Memory;
+import org.twintail.cpu.PagedMemory;
+import org.twintail.tss.Channel;
+import org.twintail.tss.FrequencyConversionChannel;
+import org.twintail.tss.MasterChannel;
+import org.twintail.tss.PsgDeviceChannel;
+import org.twintail.tss.PsglogPlayer;
+
+/**
+ * class Benchmark
+ *
+ * This class measures tss rendering performance.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class Benchmark {
+    private static final int BUFFER_LENGTH = 8192;
+    private static final int WARM_UP_LOOPS = 200;
+    private static final int LOOPS = 400;
+    private static final int[] SLAVES = { 1, 4, 16, 64 };
+    private static final int NSEC_PER_MSEC = 1000000;
+    private static final int TONE_MASK = 0x3ff;
+    private static final int TONE_BASE = 0x40;
+    private static final int TONE_PRIME = 37;
+    private static final int MIX_SLAVES = 8;
+    private static final int MIX_VOLUME = 8;
+    private static final int MAX_WAVE_VALUE = 32767;
+    private static final int MIN_WAVE_VALUE = -32767;
+    private static final int CORPUS_MAX_SECONDS = 600;
+    private static final int CORPUS_REPEATS = 3;
+    private static final int ALIAS_TONE = 20;
+    private static final int ALIAS_SAMPLES = 1 << 16;
+    private static final int ALIAS_WINDOW = 1 << 14;
+    private static final int ALIAS_PITCH_SAMPLES = 1 << 20;
+    private static final int ALIAS_REPEATS = 5;
+    private static final int[] ALIAS_RATIOS = { 4, 16 };
+    private static final int ALIAS_TAPS_PER_RATIO = 16;
+    private static final double ALIAS_CUTOFF = 0.45;
+    private static final double BLACKMAN_A0 = 0.42;
+    private static final double BLACKMAN_A1 = 0.5;
+    private static final double BLACKMAN_A2 = 0.08;
+    private static final double DB = 10.0;
+    private static final int NATURAL_RATE_DIVISOR = 16;
+    private static final int CPU_MEMORY_SIZE = 0x10000;
+    private static final int CPU_STEPS = 1 << 22;
+    private static final int CPU_WARM_UP_REPEATS = 3;
+    private static final int CPU_REPEATS = 5;
+    private static final int CPU_SEED = 6502;
+    private static final double NSEC_PER_SEC = 1000000000.0;
+    private static final double MEGA = 1000000.0;
+    private static final int CPU_BUDGET = 1000;
+    private static final int CPU_FRAMES = 1 << 13;
+    private static final String[] CPU_VARIANTS = { "6502", "65C02", "65CE02" };
+    // a loop at the reset PC only with NMOS instructions, which sums
+    // $1000-$10ff into $80 and stores halves into $2000-$20ff
+    private static final int[] CPU_LOOP = {
+        0xa2, 0x00,                               // LDX #$00
+        0xbd, 0x00, 0x10,                         // LDA $1000,X
+        0x18,                                     // CLC
+        0x65, 0x80,                               // ADC $80
+        0x85, 0x80,                               // STA $80
+        0x4a,                                     // LSR A
+        0x9d, 0x00, 0x20,                         // STA $2000,X
+        0xe8,                                     // INX
+        0xe0, 0x00,                               // CPX #$00
+        0xf0, 0x03,                               // BEQ $0016
+        0x6c, 0x82, 0x00,                         // JMP ($0082)
+        0xc6, 0x81,                               // DEC $81
+        0x6c, 0x84, 0x00,                         // JMP ($0084)
+    };
+    private static final int CPU_LOOP_OUTPUT_PAGE = 0x20;
+    private static final int CPU_LOOP_VECTOR_ADDRESS = 0x0082;
+    private static final int[] CPU_LOOP_VECTORS = {
+        0x02, 0x00,                               // $0002
+        0x00, 0x00,                               // $0000
+    };
+
+    /**
+     * class FixedChannel
+     *
+     * This class provides a channel that keeps returning a fixed buffer.
+     */
+    private static final class FixedChannel implements Channel {
+        private final Random random;
+        private short[] buffer = null;
+
+        /**
+         * Class constructor.
+         * @param seed random seed to fill the buffer
+         */
+        FixedChannel(final long seed) {
+            random = new Random(seed);
+        }
+
+        /**
+         * @see Channel
+         * @param length buffer length or size in shorts
+         */
+        public void setBufferLength(final int length) {
+            buffer = new short[length];
+            for (int i = 0; i < length; i++) {
+                buffer[i] = (short) random.nextInt();
+            }
+        }
+
+        /**
+         * @see Channel
+         * @param rate sample rate in Hz
+         */
+        public void setSampleRate(final int rate) {
+        }
+
+        /**
+         * @see Channel
+         * @return audio stream buffer
+         */
+        public short[] getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * @see Channel
+         * @return STEREO
+         */
+        public int getNumOfChannels() {
+            return STEREO;
+        }
+
+        /**
+         * @see Channel
+         * @param length buffer length or size in shorts to generate
+         */
+        public void generate(final int length) {
+        }
+    }
+
+    /**
+     * class RamMemory
+     *
+     * This class provides a flat 64KB memory for Cpu6502.
+     */
+    private static final class RamMemory implements Memory {
+        private final char[] memory = new char[CPU_MEMORY_SIZE];
+
+        /**
+         * Store a byte data.
+         * @param address memory address to store
+         * @param data data to store
+         */
+        void store(final int address, final int data) {
+            memory[address] = (char) data;
+        }
+
+        /**
+         * @see Memory
+         * @param address memory address to write
+         * @param data data to write
+         */
+        public void writeChar(final int address, final char data) {
+            memory[address] = data;
+        }
+
+        /**
+         * @see Memory
+         * @param address memory address to read
+         * @return read data
+         */
+        public char readChar(final int address) {
+            return memory[address];
+        }
+    }
+
+    /**
+     * Mix buffers in the way MasterChannel used to do.
+     * @param buffers slave buffers
+     * @param buffer output buffer
+     * @param length buffer length to mix
+     * @param volume mixing volume
+     */
+    private static void mixReference(final short[][] buffers,
+            final short[] buffer, final int length, final int volume) {
+        int size = buffers.length;
+        for (int offset = 0; offset < length; offset++) {
+            int value = 0;
+            for (int channel = 0; channel < size; channel++) {
+                value += (int) buffers[channel][offset];
+            }
+            value *= volume;
+            if (value > MAX_WAVE_VALUE) { value = MAX_WAVE_VALUE; }
+            if (value < MIN_WAVE_VALUE) { value = MIN_WAVE_VALUE; }
+            buffer[offset] = (short) value;
+        }
+    }
+
+    /**
+     * Create a PsgDeviceChannel playing a fixed tone.
+     * @param index index to choose the tone
+     * @return created PsgDeviceChannel
+     */
+    private static PsgDeviceChannel createPsg(final int index) {
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setMode(PsgDeviceChannel.MODE_SIGNED);
+        int tone = TONE_BASE + ((index * TONE_PRIME) & TONE_MASK);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_LOW,
+                tone & 0xff);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_HIGH,
+                tone >> 8);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_MIXER, 0x36);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_VOLUME, 0x0f);
+        return psg;
+    }
+
+    /**
+     * Create a MasterChannel driving PSG slaves playing fixed tones.
+     * @param slaves number of slave channels
+     * @return created MasterChannel
+     */
+    private static MasterChannel createPsgMaster(final int slaves) {
+        MasterChannel master = new MasterChannel();
+        master.setBufferLength(BUFFER_LENGTH);
+        master.setVolume(1);
+        for (int i = 0; i < slaves; i++) {
+            master.addChannel(createPsg(i));
+        }
+        return master;
+    }
+
+    /**
+     * Measure generate() time.
+     * @param master MasterChannel to run
+     * @return average time per generate() call in nsec
+     */
+    private static long measure(final MasterChannel master) {
+        for (int i = 0; i < WARM_UP_LOOPS; i++) {
+            master.generate(BUFFER_LENGTH);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOPS; i++) {
+            master.generate(BUFFER_LENGTH);
+        }
+        return (System.nanoTime() - start) / LOOPS;
+    }
+
+    /**
+     * Benchmark serial and parallel slave generation in MasterChannel.
+     * @return true if both modes produce identical output
+     */
+    public boolean bench00() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        boolean identical = true;
+        try {
+            for (int i = 0; i < SLAVES.length; i++) {
+                MasterChannel serial = createPsgMaster(SLAVES[i]);
+                MasterChannel parallel = createPsgMaster(SLAVES[i]);
+                parallel.setExecutor(executor);
+                long serialTime = measure(serial);
+                long parallelTime = measure(parallel);
+                serial.generate(BUFFER_LENGTH);
+                parallel.generate(BUFFER_LENGTH);
+                if (!Arrays.equals(serial.getBuffer(), parallel.getBuffer())) {
+                    identical = false;
+                }
+                Log.getLog().info(String.format(
+                        "BENCH00> slaves %2d: serial %8.3f ms, "
+                        + "parallel(%d) %8.3f ms, x%.2f",
+                        SLAVES[i],
+                        (double) serialTime / NSEC_PER_MSEC,
+                        threads,
+                        (double) parallelTime / NSEC_PER_MSEC,
+                        (double) serialTime / parallelTime));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        if (!identical) {
+            Log.getLog().error("BENCH00> NG: parallel output differs");
+        }
+        return identical;
+    }
+
+    /**
+     * Benchmark MasterChannel mixing kernel against the per-sample loop.
+     * @return true if both kernels produce identical output
+     */
+    public boolean bench01() {
+        MasterChannel master = new MasterChannel();
+        master.setBufferLength(BUFFER_LENGTH);
+        master.setVolume(MIX_VOLUME);
+        short[][] buffers = new short[MIX_SLAVES][];
+        for (int i = 0; i < MIX_SLAVES; i++) {
+            FixedChannel channel = new FixedChannel(i);
+            master.addChannel(channel);
+            buffers[i] = channel.getBuffer();
+        }
+        short[] reference = new short[BUFFER_LENGTH];
+        for (int i = 0; i < WARM_UP_LOOPS; i++) {
+            mixReference(buffers, reference, BUFFER_LENGTH, MIX_VOLUME);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOPS; i++) {
+            mixReference(buffers, reference, BUFFER_LENGTH, MIX_VOLUME);
+        }
+        long referenceTime = (System.nanoTime() - start) / LOOPS;
+        long masterTime = measure(master);
+        boolean identical = Arrays.equals(reference, master.getBuffer());
+        Log.getLog().info(String.format(
+                "BENCH01> %d slaves: per-sample %8.3f ms, "
+                + "MasterChannel %8.3f ms, x%.2f",
+                MIX_SLAVES,
+                (double) referenceTime / NSEC_PER_MSEC,
+                (double) masterTime / NSEC_PER_MSEC,
+                (double) referenceTime / masterTime));
+        if (!identical) {
+            Log.getLog().error("BENCH01> NG: mixing output differs");
+        }
+        return identical;
+    }
+
+    /**
+     * Read a whole file.
+     * @param file file to read
+     * @return file contents
+     * @throws IOException exception on reading
+     */
+    private static byte[] readFile(final File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int size = in.read(data, offset, data.length - offset);
+                if (size < 0) {
+                    throw new IOException("Unexpected EOF: " + file);
+                }
+                offset += size;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Render a PSGLOG capture with a synthesis method.
+     * @param data PSGLOG capture
+     * @param synthesis PsgDeviceChannel synthesis method
+     * @param hash array to store an output hash at index 0
+     * @return time spent in generate() in nsec
+     */
+    private static long renderPsglog(final byte[] data, final int synthesis,
+            final int[] hash) {
+        MasterChannel master = new MasterChannel();
+        master.setBufferLength(BUFFER_LENGTH);
+        PsglogPlayer player = new PsglogPlayer();
+        player.setMasterChannel(master);
+        ((PsgDeviceChannel) master.getChannel(0)).setSynthesis(synthesis);
+        player.play(new ByteArrayInputStream(data));
+        long maxShorts = (long) CORPUS_MAX_SECONDS
+            * MasterChannel.DEFAULT_SAMPLE_FREQUENCY * 2;
+        hash[0] = 0;
+        long start = System.nanoTime();
+        for (long shorts = 0; (shorts < maxShorts) && master.isPlaying();
+                shorts += BUFFER_LENGTH) {
+            master.generate(BUFFER_LENGTH);
+            hash[0] = hash[0] * TONE_PRIME
+                + Arrays.hashCode(master.getBuffer());
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Benchmark per-sample and run-length AY-3-8910 synthesis over
+     * a corpus of PSGLOG captures.
+     * @param files PSGLOG captures
+     * @return true if both methods produce identical output
+     * @throws IOException exception on reading captures
+     */
+    public boolean bench02(final List<File> files) throws IOException {
+        boolean identical = true;
+        for (int i = 0; i < files.size(); i++) {
+            byte[] data = readFile(files.get(i));
+            int[] sampleHash = new int[1];
+            int[] runHash = new int[1];
+            renderPsglog(data, PsgDeviceChannel.SYNTHESIS_SAMPLE,
+                    sampleHash);
+            renderPsglog(data, PsgDeviceChannel.SYNTHESIS_RUN, runHash);
+            long sampleTime = Long.MAX_VALUE;
+            long runTime = Long.MAX_VALUE;
+            for (int repeat = 0; repeat < CORPUS_REPEATS; repeat++) {
+                sampleTime = Math.min(sampleTime, renderPsglog(data,
+                        PsgDeviceChannel.SYNTHESIS_SAMPLE, sampleHash));
+                runTime = Math.min(runTime, renderPsglog(data,
+                        PsgDeviceChannel.SYNTHESIS_RUN, runHash));
+            }
+            if (!Arrays.equals(sampleHash, runHash)) {
+                identical = false;
+                Log.getLog().error("BENCH02> NG: output differs: "
+                        + files.get(i));
+            }
+            Log.getLog().info(String.format(
+                    "BENCH02> %s: per-sample %8.3f ms, run %8.3f ms, x%.2f",
+                    files.get(i).getName(),
+                    (double) sampleTime / NSEC_PER_MSEC,
+                    (double) runTime / NSEC_PER_MSEC,
+                    (double) sampleTime / runTime));
+        }
+        return identical;
+    }
+
+    /**
+     * Create a PsgDeviceChannel playing a fixed tone on channel A.
+     * @param synthesis synthesis method
+     * @param ratio oversampling ratio
+     * @param samples buffer length in samples
+     * @return created PsgDeviceChannel
+     */
+    private static PsgDeviceChannel createTone(final int synthesis,
+            final int ratio, final int samples) {
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setMode(PsgDeviceChannel.MODE_SIGNED);
+        psg.setSynthesis(synthesis);
+        psg.setSampleRate(MasterChannel.DEFAULT_SAMPLE_FREQUENCY * ratio);
+        psg.setBufferLength(samples * 2);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_LOW,
+                ALIAS_TONE);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_MIXER, 0x3e);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_VOLUME, 0x0f);
+        return psg;
+    }
+
+    /**
+     * Measure the tone frequency from edges of a long naive rendering.
+     * @param ratio oversampling ratio
+     * @return tone frequency as a ratio of the output sample rate
+     */
+    private static double measurePitch(final int ratio) {
+        PsgDeviceChannel psg = createTone(PsgDeviceChannel.SYNTHESIS_RUN,
+                ratio, ALIAS_PITCH_SAMPLES);
+        psg.generate(ALIAS_PITCH_SAMPLES * 2);
+        short[] buffer = psg.getBuffer();
+        int first = -1;
+        int last = -1;
+        int edges = 0;
+        for (int i = 1; i < ALIAS_PITCH_SAMPLES; i++) {
+            if (buffer[i] != buffer[i - 1]) {
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+                edges++;
+            }
+        }
+        return (double) (edges - 1) / 2 / (last - first) * ratio;
+    }
+
+    /**
+     * Create a Blackman windowed sinc low-pass filter with unity gain.
+     * @param taps number of taps
+     * @param cutoff cutoff frequency as a ratio of the sample rate
+     * @return filter coefficients
+     */
+    private static double[] createLowPass(final int taps,
+            final double cutoff) {
+        double[] fir = new double[taps];
+        double sum = 0;
+        for (int i = 0; i < taps; i++) {
+            double x = 2 * cutoff * (i - (taps - 1) / 2.0);
+            double sinc = 1;
+            if (0 != x) {
+                sinc = Math.sin(Math.PI * x) / (Math.PI * x);
+            }
+            double w = 2 * Math.PI * i / (taps - 1);
+            fir[i] = sinc * (BLACKMAN_A0 - BLACKMAN_A1 * Math.cos(w)
+                    + BLACKMAN_A2 * Math.cos(2 * w));
+            sum += fir[i];
+        }
+        for (int i = 0; i < taps; i++) {
+            fir[i] /= sum;
+        }
+        return fir;
+    }
+
+    /**
+     * Render the fixed tone.
+     * @param synthesis synthesis method
+     * @param ratio oversampling ratio, or 1 to render at the output rate
+     * @param fir decimation filter, or null if ratio is 1
+     * @return rendered samples at the output rate
+     */
+    private static short[] renderTone(final int synthesis, final int ratio,
+            final double[] fir) {
+        if (1 == ratio) {
+            PsgDeviceChannel psg = createTone(synthesis, 1, ALIAS_SAMPLES);
+            psg.generate(ALIAS_SAMPLES * 2);
+            return psg.getBuffer();
+        }
+        int samples = ALIAS_SAMPLES * ratio + fir.length;
+        PsgDeviceChannel psg = createTone(synthesis, ratio, samples);
+        psg.generate(samples * 2);
+        short[] in = psg.getBuffer();
+        short[] out = new short[ALIAS_SAMPLES];
+        for (int n = 0; n < ALIAS_SAMPLES; n++) {
+            double value = 0;
+            int base = n * ratio;
+            for (int tap = 0; tap < fir.length; tap++) {
+                value += fir[tap] * in[base + tap];
+            }
+            out[n] = (short) Math.max(MIN_WAVE_VALUE,
+                    Math.min(MAX_WAVE_VALUE, Math.round(value)));
+        }
+        return out;
+    }
+
+    /**
+     * Measure power of everything but the tone harmonics in the last
+     * ALIAS_WINDOW samples, i.e. aliases folded back from above Nyquist.
+     * Harmonic power is taken by Goertzel at each exact harmonic under
+     * a Blackman window.
+     * @param samples rendered samples
+     * @param pitch tone frequency as a ratio of the sample rate
+     * @return alias to total power ratio in dB
+     */
+    private static double measureAlias(final short[] samples,
+            final double pitch) {
+        int base = samples.length - ALIAS_WINDOW;
+        double mean = 0;
+        for (int i = 0; i < ALIAS_WINDOW; i++) {
+            mean += samples[base + i];
+        }
+        mean /= ALIAS_WINDOW;
+        double[] x = new double[ALIAS_WINDOW];
+        double windowSum = 0;
+        double windowPower = 0;
+        double total = 0;
+        for (int i = 0; i < ALIAS_WINDOW; i++) {
+            double w = 2 * Math.PI * i / (ALIAS_WINDOW - 1);
+            w = BLACKMAN_A0 - BLACKMAN_A1 * Math.cos(w)
+                + BLACKMAN_A2 * Math.cos(2 * w);
+            x[i] = (samples[base + i] - mean) * w;
+            windowSum += w;
+            windowPower += w * w;
+            total += x[i] * x[i];
+        }
+        double harmonics = 0;
+        for (double f = pitch; f < 0.5; f += pitch) {
+            double coeff = 2 * Math.cos(2 * Math.PI * f);
+            double s1 = 0;
+            double s2 = 0;
+            for (int i = 0; i < ALIAS_WINDOW; i++) {
+                double s0 = x[i] + coeff * s1 - s2;
+                s2 = s1;
+                s1 = s0;
+            }
+            double power = s1 * s1 + s2 * s2 - coeff * s1 * s2;
+            harmonics += 2 * power * windowPower / (windowSum * windowSum);
+        }
+        return DB * Math.log10(Math.max(total - harmonics, 1) / total);
+    }
+
+    /**
+     * Benchmark one configuration of bench03.
+     * @param name configuration name
+     * @param synthesis synthesis method
+     * @param ratio oversampling ratio
+     * @return alias to total power ratio in dB
+     */
+    private static double benchAlias(final String name, final int synthesis,
+            final int ratio) {
+        double[] fir = null;
+        if (1 != ratio) {
+            fir = createLowPass(ALIAS_TAPS_PER_RATIO * ratio,
+                    ALIAS_CUTOFF / ratio);
+        }
+        short[] samples = renderTone(synthesis, ratio, fir);
+        long time = Long.MAX_VALUE;
+        for (int repeat = 0; repeat < ALIAS_REPEATS; repeat++) {
+            long start = System.nanoTime();
+            renderTone(synthesis, ratio, fir);
+            time = Math.min(time, System.nanoTime() - start);
+        }
+        double alias = measureAlias(samples, measurePitch(ratio));
+        Log.getLog().info(String.format(
+                "BENCH03> %-12s %8.3f ms, alias %7.1f dB", name,
+                (double) time / NSEC_PER_MSEC, alias));
+        return alias;
+    }
+
+    /**
+     * Benchmark band-limited step synthesis against naive synthesis,
+     * and oversampling followed by a decimation filter, on a high tone.
+     * @return true if band-limited step synthesis reduces aliasing
+     */
+    public boolean bench03() {
+        double naive = benchAlias("naive", PsgDeviceChannel.SYNTHESIS_RUN,
+                1);
+        double blep = benchAlias("blep", PsgDeviceChannel.SYNTHESIS_BLEP,
+                1);
+        for (int i = 0; i < ALIAS_RATIOS.length; i++) {
+            benchAlias("oversample" + ALIAS_RATIOS[i],
+                    PsgDeviceChannel.SYNTHESIS_RUN, ALIAS_RATIOS[i]);
+        }
+        if (blep >= naive) {
+            Log.getLog().error("BENCH03> NG: aliasing is not reduced");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Benchmark a PSG running at its natural rate, i.e. clock / 16, and
+     * converted by FrequencyConversionChannel, against a PSG running at
+     * the output rate directly.
+     * @return always true
+     */
+    public boolean bench04() {
+        MasterChannel direct = createPsgMaster(1);
+        MasterChannel natural = new MasterChannel();
+        natural.setBufferLength(BUFFER_LENGTH);
+        natural.setVolume(1);
+        FrequencyConversionChannel conversion =
+            new FrequencyConversionChannel();
+        conversion.setInputFrequency(
+                PsgDeviceChannel.CLOCK_3_58MHZ / NATURAL_RATE_DIVISOR);
+        conversion.setChannel(createPsg(0));
+        natural.addChannel(conversion);
+        long directTime = measure(direct);
+        long naturalTime = measure(natural);
+        Log.getLog().info(String.format(
+                "BENCH04> direct %8.3f ms, natural rate and conversion "
+                + "%8.3f ms, x%.2f",
+                (double) directTime / NSEC_PER_MSEC,
+                (double) naturalTime / NSEC_PER_MSEC,
+                (double) naturalTime / directTime));
+        return true;
+    }
+
+    /**
+     * Store CPU_LOOP into a memory.
+     * @param memory memory to store
+     * @return the memory
+     */
+    private static Memory createLoopMemory(final Memory memory) {
+        for (int i = 0; i < CPU_LOOP.length; i++) {
+            memory.writeChar(i, (char) CPU_LOOP[i]);
+        }
+        for (int i = 0; i < CPU_LOOP_VECTORS.length; i++) {
+            memory.writeChar(CPU_LOOP_VECTOR_ADDRESS + i,
+                    (char) CPU_LOOP_VECTORS[i]);
+        }
+        return memory;
+    }
+
+    /**
+     * Check that CPU_LOOP kept its code and vectors, and that the
+     * processor still runs in it, so that a broken loop is not measured.
+     * @param cpu processor which ran the loop
+     * @param memory memory holding the loop
+     * @return true if the loop is intact
+     */
+    private static boolean isLoopIntact(final Cpu6502 cpu,
+            final Memory memory) {
+        for (int i = 0; i < CPU_LOOP.length; i++) {
+            if (memory.readChar(i) != CPU_LOOP[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < CPU_LOOP_VECTORS.length; i++) {
+            if (memory.readChar(CPU_LOOP_VECTOR_ADDRESS + i)
+                    != CPU_LOOP_VECTORS[i]) {
+                return false;
+            }
+        }
+        return cpu.readRegister(Cpu6502.REG_PC) < CPU_LOOP.length;
+    }
+
+    /**
+     * Measure Cpu6502 runStep() speed.
+     * @param cpu processor to run
+     * @return instructions per second
+     */
+    private static double measureCpu(final Cpu6502 cpu) {
+        for (int i = 0; i < CPU_WARM_UP_REPEATS * CPU_STEPS; i++) {
+            cpu.runStep();
+        }
+        long time = Long.MAX_VALUE;
+        for (int repeat = 0; repeat < CPU_REPEATS; repeat++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < CPU_STEPS; i++) {
+                cpu.runStep();
+            }
+            time = Math.min(time, System.nanoTime() - start);
+        }
+        return CPU_STEPS * NSEC_PER_SEC / time;
+    }
+
+    /**
+     * Benchmark Cpu6502 variants on a loop which every variant runs in
+     * the same way, and then on random memory which also runs
+     * instructions each variant does not have.
+     * @return true if the loop runs as intended on every variant
+     */
+    public boolean bench05() {
+        Memory loop = createLoopMemory(new RamMemory());
+        RamMemory random = new RamMemory();
+        Random generator = new Random(CPU_SEED);
+        for (int i = 0; i < CPU_MEMORY_SIZE; i++) {
+            random.store(i, generator.nextInt() & 0xff);
+        }
+        Memory[] memories = { loop, random };
+        String[] names = { "loop", "random" };
+        for (int m = 0; m < memories.length; m++) {
+            for (int v = 0; v < CPU_VARIANTS.length; v++) {
+                Cpu6502 cpu = new Cpu6502(v);
+                cpu.setMemory(memories[m]);
+                Log.getLog().info(String.format(
+                        "BENCH05> %-6s %-6s %7.1f Minst/s", names[m],
+                        CPU_VARIANTS[v], measureCpu(cpu) / MEGA));
+                if ((loop == memories[m]) && !isLoopIntact(cpu, loop)) {
+                    Log.getLog().error("BENCH05> NG: " + CPU_VARIANTS[v]
+                            + " left the loop");
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Run a cycle budget per frame in the way a sound driver does.
+     * @param cpu processor to run
+     * @param batched use Cpu.run() if true, or Cpu.runStep() if false
+     * @return time in nsec
+     */
+    private static long runFrames(final Cpu6502 cpu, final boolean batched) {
+        long start = System.nanoTime();
+        int overshoot = 0;
+        for (int frame = 0; frame < CPU_FRAMES; frame++) {
+            if (batched) {
+                overshoot = cpu.run(CPU_BUDGET - overshoot);
+            } else {
+                int target = cpu.getCycles() + CPU_BUDGET - overshoot;
+                while (target - cpu.getCycles() > 0) {
+                    cpu.runStep();
+                }
+                overshoot = cpu.getCycles() - target;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Benchmark Cpu.run() against a driver loop calling Cpu.runStep().
+     * @return true if both run the same cycles
+     */
+    public boolean bench06() {
+        Cpu6502 stepCpu = new Cpu6502();
+        stepCpu.setMemory(createLoopMemory(new RamMemory()));
+        Cpu6502 runCpu = new Cpu6502();
+        runCpu.setMemory(createLoopMemory(new RamMemory()));
+        long stepTime = Long.MAX_VALUE;
+        long runTime = Long.MAX_VALUE;
+        for (int repeat = 0; repeat < CPU_WARM_UP_REPEATS + CPU_REPEATS;
+                repeat++) {
+            stepTime = Math.min(stepTime, runFrames(stepCpu, false));
+            runTime = Math.min(runTime, runFrames(runCpu, true));
+        }
+        double cycles = (double) CPU_FRAMES * CPU_BUDGET;
+        Log.getLog().info(String.format(
+                "BENCH06> runStep %7.1f Mcycles/s, run %7.1f Mcycles/s",
+                cycles * NSEC_PER_SEC / stepTime / MEGA,
+                cycles * NSEC_PER_SEC / runTime / MEGA));
+        if (stepCpu.getCycles() != runCpu.getCycles()) {
+            Log.getLog().error("BENCH06> NG: cycles differ");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Benchmark CPU_LOOP on a Memory accessed through the interface, on a
+     * PagedMemory, and on a PagedMemory whose output page is mapped to I/O.
+     * @return true if the I/O handler receives writes to the page
+     */
+    public boolean bench07() {
+        final int[] writes = new int[1];
+        PagedMemory io = new PagedMemory();
+        createLoopMemory(io);
+        io.mapIo(CPU_LOOP_OUTPUT_PAGE, new Memory() {
+            /**
+             * @see Memory
+             * @param address memory address to write
+             * @param data data to write
+             */
+            public void writeChar(final int address, final char data) {
+                writes[0]++;
+            }
+
+            /**
+             * @see Memory
+             * @param address memory address to read
+             * @return always 0
+             */
+            public char readChar(final int address) {
+                return 0;
+            }
+        });
+        Memory[] memories = {
+            createLoopMemory(new RamMemory()),
+            createLoopMemory(new PagedMemory()),
+            io,
+        };
+        String[] names = { "interface", "paged", "paged+io" };
+        for (int m = 0; m < memories.length; m++) {
+            Cpu6502 cpu = new Cpu6502();
+            cpu.setMemory(memories[m]);
+            Log.getLog().info(String.format("BENCH07> %-9s %7.1f Minst/s",
+                    names[m], measureCpu(cpu) / MEGA));
+        }
+        if (0 == writes[0]) {
+            Log.getLog().error("BENCH07> NG: I/O page is not accessed");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Main to run benchmarks.
+     * @param args PSGLOG captures or directories for bench02
+     */
+    public static void main(final String[] args) {
+        Log.setLog(new J2SELog());
+        Benchmark bench = new Benchmark();
+        bench.bench00();
+        bench.bench01();
+        bench.bench03();
+        bench.bench04();
+        bench.bench05();
+        bench.bench06();
+        bench.bench07();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            File file = new File(args[i]);
+            File[] list = file.listFiles();
+            if (null == list) {
+                files.add(file);
+                continue;
+            }
+            Arrays.sort(list);
+            for (int j = 0; j < list.length; j++) {
+                if (list[j].getName().toLowerCase().contains("psglog")) {
+                    files.add(list[j]);
+                }
+            }
+        }
+        try {
+            bench.bench02(files);
+        } catch (IOException e) {
+            Log.getLog().error("BENCH02> " + e.toString());
+        }
+    }
+}
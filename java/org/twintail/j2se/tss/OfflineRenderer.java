@@ -0,0 +1,327 @@
+/**
+ * T'SoundSystem for J2SE (Java Sound API)
+ */
+package org.twintail.j2se.tss;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import org.twintail.tss.Channel;
+import org.twintail.tss.MasterChannel;
+
+/**
+ * class OfflineRenderer
+ *
+ * This class renders a Channel into a WAV or raw PCM file as fast as
+ * possible. Output is 16-bit little endian signed PCM.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class OfflineRenderer {
+    public static final int FORMAT_WAV = 0;
+    public static final int FORMAT_RAW = 1;
+    private static final int BYTES_PER_CHANNEL = 2;
+    private static final int BITS_PER_CHANNEL = 16;
+    private static final int NUM_OF_CHANNELS = 2;
+    private static final int DEFAULT_BUFFER_SIZE_IN_SHORTS = 8192;
+    private static final int WAV_HEADER_SIZE = 44;
+    private static final int WAV_RIFF_HEADER_SIZE = 8;
+    private static final int WAV_FMT_SIZE = 16;
+    private static final short WAV_FORMAT_PCM = 1;
+    private static final int WAV_RIFF = 0x46464952; // "RIFF"
+    private static final int WAV_WAVE = 0x45564157; // "WAVE"
+    private static final int WAV_FMT = 0x20746d66; // "fmt "
+    private static final int WAV_DATA = 0x61746164; // "data"
+    private static final double NSEC_PER_SEC = 1000000000.0;
+    private static final int DEFAULT_SEGMENT_SECONDS = 30;
+    private static final int BYTES_PER_SAMPLE =
+        NUM_OF_CHANNELS * BYTES_PER_CHANNEL;
+    private static final long MAX_RIFF_SIZE = 0xffffffffL;
+    private static final long MAX_WAV_DATA_SIZE = (MAX_RIFF_SIZE
+            - WAV_HEADER_SIZE + WAV_RIFF_HEADER_SIZE)
+        / BYTES_PER_SAMPLE * BYTES_PER_SAMPLE;
+
+    private int format = FORMAT_WAV;
+    private int bufferSizeInShorts = DEFAULT_BUFFER_SIZE_IN_SHORTS;
+    private int sampleRate = MasterChannel.DEFAULT_SAMPLE_FREQUENCY;
+    private Channel channel = null;
+    private ByteBuffer byteBuffer = null;
+    private ShortBuffer shortBuffer = null;
+    private short[] stereoBuffer = null;
+    private long renderedSamples = 0;
+    private long renderTime = 0;
+    private ExecutorService segmentExecutor = null;
+    private int segmentSizeInSamples = 0;
+
+    /**
+     * Class constructor.
+     */
+    public OfflineRenderer() {
+        allocateBuffer();
+    }
+
+    /**
+     * Allocate direct buffer reused over rendering.
+     */
+    private void allocateBuffer() {
+        byteBuffer = ByteBuffer.allocateDirect(Math.max(WAV_HEADER_SIZE,
+                bufferSizeInShorts * BYTES_PER_CHANNEL));
+        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        shortBuffer = byteBuffer.asShortBuffer();
+        stereoBuffer = new short[bufferSizeInShorts];
+    }
+
+    /**
+     * Expand a mono buffer to interleaved stereo.
+     * @param mono mono buffer
+     * @param stereo buffer to store interleaved stereo stream
+     * @param length length to expand in shorts of interleaved stereo
+     */
+    static void expand(final short[] mono, final short[] stereo,
+            final int length) {
+        for (int offset = 0; offset < length; offset++) {
+            stereo[offset] = mono[offset >> 1];
+        }
+    }
+
+    /**
+     * Set output file format.
+     * @param newFormat FORMAT_WAV or FORMAT_RAW
+     */
+    public void setFormat(final int newFormat) {
+        if ((FORMAT_WAV != newFormat) && (FORMAT_RAW != newFormat)) {
+            throw new IllegalArgumentException("Undefined format: "
+                    + newFormat);
+        }
+        format = newFormat;
+    }
+
+    /**
+     * Set rendering block size.
+     * @param length block size in shorts
+     */
+    public void setBufferLength(final int length) {
+        bufferSizeInShorts = length;
+        allocateBuffer();
+        if (null != channel) {
+            channel.setBufferLength(length);
+        }
+    }
+
+    /**
+     * Set output sample rate. It is propagated to the channel, and
+     * written into the WAV header.
+     * @param rate sample rate in Hz
+     */
+    public void setSampleRate(final int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Invalid rate: " + rate);
+        }
+        sampleRate = rate;
+        if (null != channel) {
+            channel.setSampleRate(rate);
+        }
+    }
+
+    /**
+     * Get output sample rate.
+     * @return sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Set executor to render one song in segments in parallel.
+     * It works with a MasterChannel which has only one PsgDeviceChannel.
+     * Output is identical to the serial mode.
+     * Set null to go back to the serial mode.
+     * @param executor executor to render segments, or null
+     */
+    public void setSegmentExecutor(final ExecutorService executor) {
+        segmentExecutor = executor;
+    }
+
+    /**
+     * Set segment length for the parallel rendering.
+     * It is rounded up to a multiple of the block size.
+     * The default is 30 seconds at the output sample rate.
+     * @param samples segment length in samples
+     */
+    public void setSegmentLength(final int samples) {
+        if (samples <= 0) {
+            throw new IllegalArgumentException("Invalid length: " + samples);
+        }
+        segmentSizeInSamples = samples;
+    }
+
+    /**
+     * Register sound generator.
+     * @param newChannel sound generator
+     */
+    public void setChannel(final Channel newChannel) {
+        newChannel.setSampleRate(sampleRate);
+        newChannel.setBufferLength(bufferSizeInShorts);
+        channel = newChannel;
+    }
+
+    /**
+     * Render audio into a file.
+     * Rendering stops after maxSamples, or when a MasterChannel
+     * finishes playing its EventPlayer. WAV files are limited to the
+     * samples which fit 32-bit RIFF sizes.
+     * @param file file to write
+     * @param maxSamples maximum samples to render
+     * @return rendered samples
+     * @throws IOException exception on writing
+     */
+    public long render(final File file, final long maxSamples)
+            throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            return render(out.getChannel(), maxSamples);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Render audio into a FileChannel.
+     * @see #render(File, long)
+     * @param out FileChannel to write
+     * @param maxSamples maximum samples to render
+     * @return rendered samples
+     * @throws IOException exception on writing
+     */
+    public long render(final FileChannel out, final long maxSamples)
+            throws IOException {
+        long start = System.nanoTime();
+        long base = out.position();
+        if (FORMAT_WAV == format) {
+            writeWavHeader(out, 0);
+        }
+        MasterChannel master = null;
+        if (channel instanceof MasterChannel) {
+            master = (MasterChannel) channel;
+        }
+        long maxShorts = maxSamples * NUM_OF_CHANNELS;
+        if (FORMAT_WAV == format) {
+            maxShorts = Math.min(maxShorts,
+                    MAX_WAV_DATA_SIZE / BYTES_PER_CHANNEL);
+        }
+        long shorts = 0;
+        if ((null != master) && (null != segmentExecutor)) {
+            int segmentSamples = segmentSizeInSamples;
+            if (0 == segmentSamples) {
+                segmentSamples = DEFAULT_SEGMENT_SECONDS * sampleRate;
+            }
+            SegmentRenderer segments = new SegmentRenderer(segmentExecutor,
+                    bufferSizeInShorts, segmentSamples);
+            long position = out.position();
+            shorts = segments.render(master, out, position, maxShorts);
+            out.position(position + shorts * BYTES_PER_CHANNEL);
+        } else {
+            while (shorts < maxShorts) {
+                int length = (int) Math.min(bufferSizeInShorts,
+                        maxShorts - shorts);
+                channel.generate(length);
+                if (null != master) {
+                    // drop the padding after the end of the song
+                    length = master.getPlayedLength();
+                }
+                short[] samples = channel.getBuffer();
+                if (Channel.MONO == channel.getNumOfChannels()) {
+                    expand(samples, stereoBuffer, length);
+                    samples = stereoBuffer;
+                }
+                shortBuffer.clear();
+                shortBuffer.put(samples, 0, length);
+                byteBuffer.clear();
+                byteBuffer.limit(length * BYTES_PER_CHANNEL);
+                while (byteBuffer.hasRemaining()) {
+                    out.write(byteBuffer);
+                }
+                shorts += length;
+                if ((null != master) && !master.isPlaying()) {
+                    break;
+                }
+            }
+        }
+        if (FORMAT_WAV == format) {
+            long end = out.position();
+            out.position(base);
+            writeWavHeader(out, shorts * BYTES_PER_CHANNEL);
+            out.position(end);
+        }
+        renderedSamples = shorts / NUM_OF_CHANNELS;
+        renderTime = System.nanoTime() - start;
+        return renderedSamples;
+    }
+
+    /**
+     * Write WAV header.
+     * @param out FileChannel to write
+     * @param dataSize PCM data size in bytes
+     * @throws IOException exception on writing
+     */
+    private void writeWavHeader(final FileChannel out, final long dataSize)
+            throws IOException {
+        if ((dataSize < 0) || (dataSize > MAX_WAV_DATA_SIZE)) {
+            throw new IllegalArgumentException("Invalid size: " + dataSize);
+        }
+        // sizes are unsigned 32-bit, and casts keep their lower bits
+        byteBuffer.clear();
+        byteBuffer.putInt(WAV_RIFF);
+        byteBuffer.putInt((int) (dataSize + WAV_HEADER_SIZE
+                - WAV_RIFF_HEADER_SIZE));
+        byteBuffer.putInt(WAV_WAVE);
+        byteBuffer.putInt(WAV_FMT);
+        byteBuffer.putInt(WAV_FMT_SIZE);
+        byteBuffer.putShort(WAV_FORMAT_PCM);
+        byteBuffer.putShort((short) NUM_OF_CHANNELS);
+        byteBuffer.putInt(sampleRate);
+        byteBuffer.putInt(sampleRate * NUM_OF_CHANNELS
+                * BYTES_PER_CHANNEL);
+        byteBuffer.putShort((short) BYTES_PER_SAMPLE);
+        byteBuffer.putShort((short) BITS_PER_CHANNEL);
+        byteBuffer.putInt(WAV_DATA);
+        byteBuffer.putInt((int) dataSize);
+        byteBuffer.flip();
+        while (byteBuffer.hasRemaining()) {
+            out.write(byteBuffer);
+        }
+    }
+
+    /**
+     * Get samples rendered by the last render() call.
+     * @return rendered samples
+     */
+    public long getRenderedSamples() {
+        return renderedSamples;
+    }
+
+    /**
+     * Get time spent by the last render() call.
+     * @return time in nsec
+     */
+    public long getRenderTime() {
+        return renderTime;
+    }
+
+    /**
+     * Get how many times faster than real time the last render() was.
+     * @return real time multiple
+     */
+    public double getRealtimeMultiple() {
+        if (0 == renderTime) {
+            return 0;
+        }
+        return (double) renderedSamples / sampleRate
+            / (renderTime / NSEC_PER_SEC);
+    }
+}
@@ -0,0 +1,385 @@
+/**
+ * T'SoundSystem for J2SE (Java Sound API)
+ */
+package org.twintail.j2se.tss;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.twintail.tss.Channel;
+import org.twintail.tss.Device;
+import org.twintail.tss.EventPlayer;
+import org.twintail.tss.MasterChannel;
+import org.twintail.tss.PsgDeviceChannel;
+
+/**
+ * class SegmentRenderer
+ *
+ * This class renders one long song on many threads. A register-only
+ * pre-pass runs the player with MasterChannel.skip(), records every
+ * register write with its time, and saves PsgDeviceChannel state at
+ * each segment boundary. Then each segment restores the state, replays
+ * recorded writes and is synthesized independently. Output is identical
+ * to the serial rendering by OfflineRenderer.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+final class SegmentRenderer {
+    private static final int SHORTS_PER_SAMPLE = 2;
+    private static final int BYTES_PER_SHORT = 2;
+    private static final int INITIAL_WRITES = 4096;
+    private static final int WRITE_TIME = 0;
+    private static final int WRITE_DATA = 1;
+    private static final int WRITE_SIZE = 2;
+    private static final int ADDRESS_SHIFT = 8;
+    private static final int BYTE_MASK = 0xff;
+
+    private final ExecutorService executor;
+    private final int bufferSizeInShorts;
+    private final int segmentSizeInShorts;
+    private int[] writes = new int[INITIAL_WRITES * WRITE_SIZE];
+    private int writeCount = 0;
+
+    /**
+     * class ClockChannel
+     *
+     * This class counts samples passed in the pre-pass.
+     */
+    private static final class ClockChannel implements Channel {
+        private final short[] buffer = new short[0];
+        private long samples = 0;
+
+        /**
+         * @see Channel
+         * @param length buffer length or size in shorts
+         */
+        public void setBufferLength(final int length) {
+        }
+
+        /**
+         * @see Channel
+         * @param rate sample rate in Hz
+         */
+        public void setSampleRate(final int rate) {
+        }
+
+        /**
+         * @see Channel
+         * @return audio stream buffer
+         */
+        public short[] getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * @see Channel
+         * @return MONO
+         */
+        public int getNumOfChannels() {
+            return MONO;
+        }
+
+        /**
+         * @see Channel
+         * @param length buffer length or size in shorts to generate
+         */
+        public void generate(final int length) {
+            samples += (length + 1) / SHORTS_PER_SAMPLE;
+        }
+    }
+
+    /**
+     * class WriteRecorder
+     *
+     * This class records register writes with time stamps.
+     */
+    private final class WriteRecorder implements Device {
+        private final ClockChannel clock;
+
+        /**
+         * Class constructor.
+         * @param clockChannel clock to stamp writes
+         */
+        WriteRecorder(final ClockChannel clockChannel) {
+            clock = clockChannel;
+        }
+
+        /**
+         * @see Device
+         * @param address register address to write
+         * @param value register value to write
+         */
+        public void writeRegister(final int address, final int value) {
+            int offset = writeCount * WRITE_SIZE;
+            if (offset == writes.length) {
+                int[] newWrites = new int[writes.length * 2];
+                System.arraycopy(writes, 0, newWrites, 0, writes.length);
+                writes = newWrites;
+            }
+            writes[offset + WRITE_TIME] = (int) clock.samples;
+            writes[offset + WRITE_DATA] = (address << ADDRESS_SHIFT)
+                | (value & BYTE_MASK);
+            writeCount++;
+        }
+
+        /**
+         * @see Device
+         * @param address register address to read
+         * @return always 0
+         */
+        public int readRegister(final int address) {
+            return 0;
+        }
+    }
+
+    /**
+     * class WritePlayer
+     *
+     * This class replays recorded register writes of one segment.
+     */
+    private final class WritePlayer implements EventPlayer {
+        private final PsgDeviceChannel psg;
+        private final int end;
+        private int index;
+        private int position;
+        private int nextEventDelay = NO_EVENT;
+
+        /**
+         * Class constructor.
+         * @param device device to write
+         * @param begin index of the first write to replay
+         * @param last index next to the last write to replay
+         * @param start time of the segment in samples
+         */
+        WritePlayer(final PsgDeviceChannel device, final int begin,
+                final int last, final int start) {
+            psg = device;
+            index = begin;
+            end = last;
+            position = start;
+        }
+
+        /**
+         * @see Player
+         * @param channel master channel
+         */
+        public void setMasterChannel(final MasterChannel channel) {
+            channel.setPlayer(this);
+            if (index < end) {
+                int time = writes[index * WRITE_SIZE + WRITE_TIME];
+                channel.setNextPlayerInterval(time - position);
+                position = time;
+            }
+        }
+
+        /**
+         * @see Player
+         */
+        public void updateDevice() {
+            nextEventDelay = NO_EVENT;
+            while (index < end) {
+                int offset = index * WRITE_SIZE;
+                int time = writes[offset + WRITE_TIME];
+                if (time != position) {
+                    nextEventDelay = time - position;
+                    position = time;
+                    return;
+                }
+                int data = writes[offset + WRITE_DATA];
+                psg.writeRegister(data >> ADDRESS_SHIFT, data & BYTE_MASK);
+                index++;
+            }
+        }
+
+        /**
+         * @see EventPlayer
+         * @return time to the next event in samples
+         */
+        public int getNextEventDelay() {
+            return nextEventDelay;
+        }
+
+        /**
+         * Recorded writes are given by the constructor.
+         * @see Player
+         * @param input not used
+         * @return always false
+         */
+        public boolean play(final InputStream input) {
+            return false;
+        }
+    }
+
+    /**
+     * Class constructor.
+     * @param segmentExecutor executor to render segments
+     * @param bufferLength rendering block size in shorts
+     * @param segmentLength segment length in samples
+     */
+    SegmentRenderer(final ExecutorService segmentExecutor,
+            final int bufferLength, final int segmentLength) {
+        executor = segmentExecutor;
+        bufferSizeInShorts = bufferLength;
+        // align segments to blocks so that the song ends at the same
+        // block as the serial rendering
+        int blocks = (segmentLength * SHORTS_PER_SAMPLE + bufferLength - 1)
+            / bufferLength;
+        segmentSizeInShorts = Math.max(1, blocks) * bufferLength;
+    }
+
+    /**
+     * Find the only PsgDeviceChannel in a MasterChannel.
+     * @param master MasterChannel to check
+     * @return found PsgDeviceChannel
+     */
+    private static PsgDeviceChannel findPsg(final MasterChannel master) {
+        if ((1 != master.getChannelCount())
+                || !(master.getChannel(0) instanceof PsgDeviceChannel)) {
+            throw new IllegalStateException(
+                    "Segment rendering needs one PsgDeviceChannel");
+        }
+        return (PsgDeviceChannel) master.getChannel(0);
+    }
+
+    /**
+     * Render a MasterChannel into a FileChannel at a position.
+     * The MasterChannel and its player are at the end of rendering
+     * afterwards, as they are after the serial rendering.
+     * @param master MasterChannel to render
+     * @param out FileChannel to write
+     * @param position file position to write
+     * @param maxShorts maximum length to render in shorts
+     * @return rendered length in shorts
+     * @throws IOException exception on writing
+     */
+    long render(final MasterChannel master, final FileChannel out,
+            final long position, final long maxShorts) throws IOException {
+        if (maxShorts / SHORTS_PER_SAMPLE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too long: " + maxShorts);
+        }
+        PsgDeviceChannel psg = findPsg(master);
+
+        // register-only pre-pass
+        List<int[]> states = new ArrayList<int[]>();
+        List<Integer> indices = new ArrayList<Integer>();
+        ClockChannel clock = new ClockChannel();
+        writeCount = 0;
+        master.addChannel(clock);
+        psg.setWriteMonitor(new WriteRecorder(clock));
+        long shorts = 0;
+        try {
+            while (shorts < maxShorts) {
+                if (0 == shorts % segmentSizeInShorts) {
+                    states.add(psg.saveState());
+                    indices.add(Integer.valueOf(writeCount));
+                }
+                int length = (int) Math.min(bufferSizeInShorts,
+                        maxShorts - shorts);
+                master.skip(length);
+                shorts += master.getPlayedLength();
+                if (!master.isPlaying()) {
+                    break;
+                }
+            }
+        } finally {
+            psg.setWriteMonitor(null);
+            master.removeChannel(clock);
+        }
+        indices.add(Integer.valueOf(writeCount));
+
+        // synthesize segments in parallel
+        final long total = shorts;
+        final int volume = master.getVolume();
+        final int rate = master.getSampleRate();
+        final int synthesis = psg.getSynthesis();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int i = 0; i < states.size(); i++) {
+            final int[] state = states.get(i);
+            final int begin = indices.get(i).intValue();
+            final int last = indices.get(i + 1).intValue();
+            final long start = (long) i * segmentSizeInShorts;
+            final long end = Math.min(total, start + segmentSizeInShorts);
+            futures.add(executor.submit(new Callable<Object>() {
+                public Object call() throws IOException {
+                    renderSegment(state, begin, last, volume, rate,
+                            synthesis, start, end, out, position);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted: " + e.toString());
+        } catch (ExecutionException e) {
+            throw new IOException("Segment failed: "
+                    + e.getCause().toString());
+        }
+        return total;
+    }
+
+    /**
+     * Render one segment.
+     * @param state PsgDeviceChannel state at the beginning
+     * @param begin index of the first write to replay
+     * @param last index next to the last write to replay
+     * @param volume MasterChannel volume
+     * @param rate MasterChannel sample rate
+     * @param synthesis PsgDeviceChannel synthesis method
+     * @param start beginning of the segment in shorts
+     * @param end end of the segment in shorts
+     * @param out FileChannel to write
+     * @param position file position of the first sample
+     * @throws IOException exception on writing
+     */
+    private void renderSegment(final int[] state, final int begin,
+            final int last, final int volume, final int rate,
+            final int synthesis, final long start, final long end, final FileChannel out,
+            final long position) throws IOException {
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setSynthesis(synthesis);
+        psg.restoreState(state);
+        MasterChannel master = new MasterChannel();
+        master.setVolume(volume);
+        master.setSampleRate(rate);
+        master.setBufferLength(bufferSizeInShorts);
+        master.addChannel(psg);
+        WritePlayer player = new WritePlayer(psg, begin, last,
+                (int) (start / SHORTS_PER_SAMPLE));
+        player.setMasterChannel(master);
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(
+                bufferSizeInShorts * BYTES_PER_SHORT);
+        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        ShortBuffer shortBuffer = byteBuffer.asShortBuffer();
+        short[] stereoBuffer = new short[bufferSizeInShorts];
+        for (long shorts = start; shorts < end; ) {
+            int length = (int) Math.min(bufferSizeInShorts, end - shorts);
+            master.generate(length);
+            short[] samples = master.getBuffer();
+            if (Channel.MONO == master.getNumOfChannels()) {
+                OfflineRenderer.expand(samples, stereoBuffer, length);
+                samples = stereoBuffer;
+            }
+            shortBuffer.clear();
+            shortBuffer.put(samples, 0, length);
+            byteBuffer.clear();
+            byteBuffer.limit(length * BYTES_PER_SHORT);
+            long offset = position + shorts * BYTES_PER_SHORT;
+            while (byteBuffer.hasRemaining()) {
+                offset += out.write(byteBuffer, offset);
+            }
+            shorts += length;
+        }
+    }
+}
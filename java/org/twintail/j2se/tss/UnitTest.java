@@ -3,15 +3,39 @@
  */
 package org.twintail.j2se.tss;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.BufferedInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.URL;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
+import javax.sound.sampled.SourceDataLine;
 import org.twintail.Log;
+import org.twintail.cpu.Cpu6502;
+import org.twintail.cpu.Memory;
+import org.twintail.cpu.PagedMemory;
+import org.twintail.tss.Channel;
+import org.twintail.tss.CpuPsgPlayer;
+import org.twintail.tss.FrequencyConversionChannel;
 import org.twintail.tss.MasterChannel;
+import org.twintail.tss.Player;
+import org.twintail.tss.PsgDeviceChannel;
 import org.twintail.tss.PsglogPlayer;
+import org.twintail.tss.SimpleSlaveChannel;
 import org.twintail.tss.VgmPlayer;
 
 /**
@@ -21,6 +45,218 @@ import org.twintail.tss.VgmPlayer;
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
 public final class UnitTest {
+    private static final int TEST_BUFFER_LENGTH = 4096;
+    private static final int TEST_WARM_UP_LOOPS = 10000;
+    private static final int TEST_LOOPS = 1000;
+    private static final int TEST_FREQUENCY = 440;
+    private static final int TEST_INTERVAL_NUMERATOR = 1000;
+    private static final int TEST_INTERVAL_DENOMINATOR = 3;
+    private static final int TEST_CALL_BACKS = 10000;
+    private static final int TEST_ODD_BUFFER_LENGTH = 1234;
+    private static final int SHORTS_PER_SAMPLE = 2;
+    private static final int TEST_SPLIT_EVENTS = 20000;
+    private static final int TEST_SPLIT_RATE = 50;
+    private static final int TEST_SPLIT_SEED = 1;
+    private static final int TEST_SPLIT_MAX_SAMPLES = 2000;
+    private static final int TEST_RESTORE_EVENTS = 200;
+    private static final int TEST_AY_REGISTERS = 14;
+    private static final int TEST_BYTE_VALUES = 256;
+    private static final int TEST_SKIP_EVENTS = 5000;
+    private static final int TEST_SKIP_MAX_SAMPLES = 100000;
+    private static final int TEST_RUN_EVENTS = 20000;
+    private static final int TEST_RUN_MAX_SAMPLES = 5000;
+    private static final int TEST_PAN_EVENTS = 5000;
+    private static final int[] TEST_PAN_LEFT = { 256, 128, 0, 64 };
+    private static final int[] TEST_PAN_RIGHT = { 0, 128, 256, 192 };
+    private static final int TEST_PAN_SHIFT = 8;
+    private static final int TEST_BLEP_TONE_HIGH = 1;
+    private static final int TEST_BLEP_TONE = 4;
+    private static final int TEST_BLEP_MIXER = 7;
+    private static final int TEST_BLEP_TONE_A = 0x3e;
+    private static final int TEST_BLEP_VOLUME = 8;
+    private static final int TEST_BLEP_LEVEL = 15;
+    private static final int TEST_BLEP_ERROR_RATIO = 10;
+    private static final int[] TEST_SAMPLE_RATES = { 22050, 48000, 96000 };
+    private static final int TEST_RATE_TONE = 0x100;
+    private static final int TEST_RATE_CALL_BACKS = 100;
+    // the shortest noise and envelope periods, clamped to one sample
+    private static final int TEST_RATE_FAST_PERIOD = 1;
+    private static final int TEST_RATE_NOISE_A = 0x37;
+    private static final int TEST_RATE_SHAPE = 0x0e;
+    private static final int TEST_RATE_SAMPLES = 10000;
+    private static final int[] TEST_CONVERSION_RATES = {
+        22050, 48000, PsgDeviceChannel.CLOCK_3_58MHZ / 16
+    };
+    private static final int TEST_SINE_FREQUENCY = 1000;
+    private static final double TEST_SINE_LEVEL = 8192;
+    private static final int TEST_CONVERSION_SAMPLES = 20000;
+    private static final int TEST_CONVERSION_SETTLE = 1000;
+    private static final double TEST_CONVERSION_MAX_ERROR = 0.000001;
+    // set tone A, then toggle volume A with two delay loops forever
+    private static final int[] TEST_CPU_PROGRAM = {
+        0xa9, 0x00, 0x8d, 0x00, 0xc0,   // $00: LDA #0; STA $c000
+        0xa9, 0x3e, 0x8d, 0x01, 0xc0,   // $05: LDA #$3e; STA $c001
+        0xa9, 0x07, 0x8d, 0x00, 0xc0,   // $0a: LDA #7; STA $c000
+        0xa9, 0x3e, 0x8d, 0x01, 0xc0,   // $0f: LDA #$3e; STA $c001
+        0xa9, 0x08, 0x8d, 0x00, 0xc0,   // $14: LDA #8; STA $c000
+        0xa9, 0x0f, 0x8d, 0x01, 0xc0,   // $19: LDA #15; STA $c001
+        0xa2, 0x25,                     // $1e: LDX #37
+        0xca, 0xf0, 0x03,               // $20: DEX; BEQ $26
+        0x6c, 0x80, 0x00,               // $23: JMP ($0080)
+        0xa9, 0x00, 0x8d, 0x01, 0xc0,   // $26: LDA #0; STA $c001
+        0xa2, 0x35,                     // $2b: LDX #53
+        0xca, 0xf0, 0x03,               // $2d: DEX; BEQ $33
+        0x6c, 0x82, 0x00,               // $30: JMP ($0082)
+        0x6c, 0x84, 0x00,               // $33: JMP ($0084)
+    };
+    private static final int TEST_CPU_VECTORS = 0x80;
+    private static final int[] TEST_CPU_VECTOR_TABLE = {
+        0x20, 0x00, 0x2d, 0x00, 0x19, 0x00
+    };
+    private static final int TEST_SKIP_CONVERSION_BLOCKS = 10;
+    private static final int TEST_ENVELOPE_SHAPES = 16;
+    private static final int TEST_ENVELOPE_STEPS = 32;
+    private static final int TEST_ENVELOPE_CONTINUE = 8;
+    private static final int TEST_ENVELOPE_ATTACK = 4;
+    private static final int TEST_ENVELOPE_ALTERNATE = 2;
+    private static final int TEST_ENVELOPE_HOLD = 1;
+    private static final int[] TEST_ENVELOPE_PERIODS = { 20, 0x0105 };
+    private static final int TEST_ENVELOPE_SAMPLES = 10000;
+    private static final int TEST_ENVELOPE_ON = 0x10;
+    private static final int TEST_ENVELOPE_VOLUMES = 16;
+    private static final int TEST_ENVELOPE_TONE_HIGH = 1;
+    private static final int TEST_ENVELOPE_NOISE = 31;
+    // tone and noise of channel A, so that the output is +/- volume A
+    private static final int TEST_ENVELOPE_MIXER = 0x36;
+    // envelope counter steps of PsgDeviceChannel in fixed point
+    private static final long TEST_ENVELOPE_CLOCK_BIAS = 1000;
+    private static final int TEST_ENVELOPE_PERIOD_SHIFT = 14;
+    private static final long TEST_LOOPER_WAIT_MSEC = 100;
+    private static final long TEST_LOOPER_POLL_MSEC = 10;
+    private static final int TEST_LOOPER_POLLS = 500;
+    private static final int TEST_CPU_PORT_PAGE = 0xc0;
+    private static final int TEST_CPU_WRITES = 1000;
+    private static final int[] TEST_CPU_CLOCKS = { 1000000, 1789773 };
+    private static final int[] TEST_CPU_BATCHES = { 1, 20, 100 };
+    private static final int TEST_VGM_DATA_OFFSET = 0x40;
+    private static final int TEST_VGM_EOF_BASE = 0x04;
+    private static final int TEST_VGM_VERSION = 0x101;
+    private static final int TEST_VGM_LOOP_BASE = 0x1c;
+    private static final byte[] TEST_VGM_IDENT = { 'V', 'g', 'm', ' ' };
+    private static final int TEST_VGM_NO_LOOP = -1;
+    // write SN76489 volume 0, wait 735 samples twice, and end
+    private static final int[] TEST_VGM_SONG = { 0x50, 0x9f, 0x62, 0x62, 0x66 };
+    private static final int TEST_VGM_SONG_SAMPLES = 735 * 2;
+    private static final int TEST_VGM_SEGMENT_SAMPLES = 1000;
+    // same as TEST_VGM_SONG, but loop the second wait
+    private static final int TEST_VGM_WAIT_LOOP = 3;
+    private static final int TEST_VGM_LOOP_SAMPLES = 735;
+    private static final int TEST_VGM_LOOP_LIMIT = 1000;
+    private static final int TEST_VGM_LOOP_BLOCKS = 10;
+    private static final int TEST_RENDER_THREADS = 2;
+    private static final int TEST_WAV_HEADER_SIZE = 44;
+    private static final int TEST_WAV_BYTES_PER_SAMPLE = 4;
+
+    /**
+     * class CountingPlayer
+     *
+     * This class records positions where the player is called back.
+     */
+    private static final class CountingPlayer implements Player {
+        private MasterChannel master = null;
+        private long[] calls = new long[TEST_CALL_BACKS];
+        private int count = 0;
+        private long position = 0;
+        private int nextInterval = 0;
+
+        /**
+         * @see Player
+         * @param channel master channel
+         */
+        public void setMasterChannel(final MasterChannel channel) {
+            master = channel;
+            channel.setPlayer(this);
+        }
+
+        /**
+         * @see Player
+         */
+        public void updateDevice() {
+            if (count < calls.length) {
+                calls[count++] = position;
+            }
+            if (0 != nextInterval) {
+                master.setNextPlayerInterval(nextInterval);
+            }
+        }
+
+        /**
+         * @see Player
+         * @param input not used
+         * @return always true
+         */
+        public boolean play(final InputStream input) {
+            return true;
+        }
+    }
+
+    /**
+     * class PositionChannel
+     *
+     * This class tells the current sample position to CountingPlayer.
+     */
+    private static final class PositionChannel implements Channel {
+        private final CountingPlayer player;
+        private short[] buffer = null;
+
+        /**
+         * Class constructor.
+         * @param target player to notify the position
+         */
+        PositionChannel(final CountingPlayer target) {
+            player = target;
+        }
+
+        /**
+         * @see Channel
+         * @param length buffer length or size in shorts
+         */
+        public void setBufferLength(final int length) {
+            buffer = new short[length];
+        }
+
+        /**
+         * @see Channel
+         * @param rate sample rate in Hz
+         */
+        public void setSampleRate(final int rate) {
+        }
+
+        /**
+         * @see Channel
+         * @return audio stream buffer
+         */
+        public short[] getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * @see Channel
+         * @return MONO
+         */
+        public int getNumOfChannels() {
+            return MONO;
+        }
+
+        /**
+         * @see Channel
+         * @param length buffer length or size in shorts to generate
+         */
+        public void generate(final int length) {
+            player.position += length / SHORTS_PER_SAMPLE;
+        }
+    }
+
     /**
      * Test PSGLOG/AY-3-8910.
      */
@@ -75,6 +311,1308 @@ public final class UnitTest {
         }
     }
 
+    /**
+     * Test MasterChannel.generate() allocates nothing once warmed up.
+     * @return test result
+     */
+    public boolean test02() {
+        MasterChannel master = new MasterChannel();
+        master.setBufferLength(TEST_BUFFER_LENGTH);
+        master.addChannel(new SimpleSlaveChannel(TEST_FREQUENCY));
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setMode(PsgDeviceChannel.MODE_SIGNED);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_MIXER, 0x38);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_VOLUME, 0x0f);
+        master.addChannel(psg);
+        for (int i = 0; i < TEST_WARM_UP_LOOPS; i++) {
+            master.generate(TEST_BUFFER_LENGTH);
+        }
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < TEST_LOOPS; i++) {
+            master.generate(TEST_BUFFER_LENGTH);
+        }
+        long allocated = bean.getThreadAllocatedBytes(id) - before;
+        // getThreadAllocatedBytes() itself may allocate a few bytes once.
+        if (allocated >= TEST_LOOPS) {
+            Log.getLog().error("TEST02> NG: " + allocated + " bytes in "
+                    + TEST_LOOPS + " generate() calls");
+            return false;
+        }
+        Log.getLog().info("TEST02> OK: " + allocated + " bytes in "
+                + TEST_LOOPS + " generate() calls");
+        return true;
+    }
+
+    /**
+     * Test sample accurate player call back scheduling.
+     * @return test result
+     */
+    public boolean test03() {
+        MasterChannel master = new MasterChannel();
+        master.setBufferLength(TEST_ODD_BUFFER_LENGTH);
+        CountingPlayer player = new CountingPlayer();
+        player.setMasterChannel(master);
+        master.addChannel(new PositionChannel(player));
+        master.setPlayerIntervalFraction(TEST_INTERVAL_NUMERATOR,
+                TEST_INTERVAL_DENOMINATOR);
+        while (player.count < TEST_CALL_BACKS) {
+            master.generate(TEST_ODD_BUFFER_LENGTH);
+        }
+        for (int i = 0; i < TEST_CALL_BACKS; i++) {
+            long expected = (long) (i + 1) * TEST_INTERVAL_NUMERATOR
+                / TEST_INTERVAL_DENOMINATOR;
+            if (player.calls[i] != expected) {
+                Log.getLog().error("TEST03> NG: call back " + i + " at "
+                        + player.calls[i] + " (expected " + expected + ")");
+                return false;
+            }
+        }
+
+        // one shot intervals override the periodical one
+        player = new CountingPlayer();
+        player.setMasterChannel(master);
+        master.clearChannel();
+        master.addChannel(new PositionChannel(player));
+        player.nextInterval = TEST_FREQUENCY;
+        master.setPlayerInterval(TEST_INTERVAL_NUMERATOR);
+        while (player.count < TEST_CALL_BACKS) {
+            master.generate(TEST_ODD_BUFFER_LENGTH);
+        }
+        for (int i = 0; i < TEST_CALL_BACKS; i++) {
+            long expected = MasterChannel.DEFAULT_SAMPLE_FREQUENCY
+                + (long) i * TEST_FREQUENCY;
+            if (player.calls[i] != expected) {
+                Log.getLog().error("TEST03> NG: one shot call back " + i
+                        + " at " + player.calls[i] + " (expected " + expected
+                        + ")");
+                return false;
+            }
+        }
+        Log.getLog().info("TEST03> OK");
+        return true;
+    }
+
+    /**
+     * Play a random register write sequence twice, once without
+     * interruption and once moving to a new device at random points by
+     * saveState() and restoreState(), and compare both outputs.
+     * @param device device to emulate
+     * @param synthesis synthesis method
+     * @return true if both outputs are identical
+     */
+    private boolean splitAndCompare(final int device, final int synthesis) {
+        Random random = new Random(TEST_SPLIT_SEED);
+        int length = TEST_SPLIT_MAX_SAMPLES * SHORTS_PER_SAMPLE;
+        PsgDeviceChannel reference = new PsgDeviceChannel();
+        PsgDeviceChannel split = new PsgDeviceChannel();
+        PsgDeviceChannel[] psgs = { reference, split };
+        for (int i = 0; i < psgs.length; i++) {
+            psgs[i].setMode(PsgDeviceChannel.MODE_SIGNED);
+            psgs[i].setDevice(device);
+            psgs[i].setSynthesis(synthesis);
+            psgs[i].setBufferLength(length);
+        }
+        int[] state = new int[PsgDeviceChannel.STATE_SIZE];
+        for (int event = 0; event < TEST_SPLIT_EVENTS; event++) {
+            int address = random.nextInt(TEST_AY_REGISTERS);
+            int value = random.nextInt(TEST_BYTE_VALUES);
+            reference.writeRegister(address, value);
+            split.writeRegister(address, value);
+            int samples = 1 + random.nextInt(TEST_SPLIT_MAX_SAMPLES);
+            int shorts = samples * SHORTS_PER_SAMPLE;
+            reference.generate(shorts);
+            split.generate(shorts);
+            if (!Arrays.equals(Arrays.copyOf(reference.getBuffer(), samples),
+                    Arrays.copyOf(split.getBuffer(), samples))) {
+                Log.getLog().error("TEST04> NG: device " + device
+                        + " synthesis " + synthesis + " differs at event "
+                        + event);
+                return false;
+            }
+            if (0 == random.nextInt(TEST_SPLIT_RATE)) {
+                split.saveState(state);
+                split = new PsgDeviceChannel();
+                split.setSynthesis(synthesis);
+                split.setBufferLength(length);
+                split.restoreState(state);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * class SineChannel
+     *
+     * This class generates a sine wave at its sample rate.
+     */
+    private static final class SineChannel implements Channel {
+        private short[] buffer = null;
+        private int sampleRate = MasterChannel.DEFAULT_SAMPLE_FREQUENCY;
+        private long position = 0;
+
+        /**
+         * @see Channel
+         * @param length buffer length or size in shorts
+         */
+        public void setBufferLength(final int length) {
+            buffer = new short[(length + 1) / SHORTS_PER_SAMPLE];
+        }
+
+        /**
+         * @see Channel
+         * @param rate sample rate in Hz
+         */
+        public void setSampleRate(final int rate) {
+            sampleRate = rate;
+        }
+
+        /**
+         * @see Channel
+         * @return audio stream buffer
+         */
+        public short[] getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * @see Channel
+         * @return MONO
+         */
+        public int getNumOfChannels() {
+            return MONO;
+        }
+
+        /**
+         * @see Channel
+         * @param length buffer length or size in shorts to generate
+         */
+        public void generate(final int length) {
+            int samples = (length + 1) / SHORTS_PER_SAMPLE;
+            for (int i = 0; i < samples; i++) {
+                buffer[i] = (short) Math.round(TEST_SINE_LEVEL * Math.sin(
+                        2 * Math.PI * TEST_SINE_FREQUENCY * position++
+                        / sampleRate));
+            }
+        }
+    }
+
+    /**
+     * Play a random register write sequence on a device attached to a
+     * MasterChannel, then restore the device to a saved state while it
+     * is attached, and play the rest again.
+     * @param output output method
+     * @return true if the replayed output is identical
+     */
+    private boolean restoreAttachedAndCompare(final int output) {
+        Random random = new Random(TEST_SPLIT_SEED);
+        MasterChannel master = new MasterChannel();
+        master.setBufferLength(TEST_ODD_BUFFER_LENGTH);
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setMode(PsgDeviceChannel.MODE_SIGNED);
+        psg.setOutput(output);
+        master.addChannel(psg);
+        int[] addresses = new int[TEST_RESTORE_EVENTS];
+        int[] values = new int[TEST_RESTORE_EVENTS];
+        short[][] expected = new short[TEST_RESTORE_EVENTS][];
+        int[] state = null;
+        for (int event = 0; event < TEST_RESTORE_EVENTS; event++) {
+            if (TEST_RESTORE_EVENTS / 2 == event) {
+                state = psg.saveState();
+            }
+            addresses[event] = random.nextInt(TEST_AY_REGISTERS);
+            values[event] = random.nextInt(TEST_BYTE_VALUES);
+            psg.writeRegister(addresses[event], values[event]);
+            master.generate(TEST_ODD_BUFFER_LENGTH);
+            expected[event] = master.getBuffer().clone();
+        }
+        psg.restoreState(state);
+        for (int event = TEST_RESTORE_EVENTS / 2;
+                event < TEST_RESTORE_EVENTS; event++) {
+            psg.writeRegister(addresses[event], values[event]);
+            master.generate(TEST_ODD_BUFFER_LENGTH);
+            if (!Arrays.equals(expected[event], master.getBuffer())) {
+                Log.getLog().error("TEST04> NG: output " + output
+                        + " differs after restore at event " + event);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Test PsgDeviceChannel state save and restore.
+     * @return test result
+     */
+    public boolean test04() {
+        if (!splitAndCompare(PsgDeviceChannel.DEVICE_AY_3_8910,
+                PsgDeviceChannel.SYNTHESIS_RUN)
+                || !splitAndCompare(PsgDeviceChannel.DEVICE_SN76489,
+                        PsgDeviceChannel.SYNTHESIS_RUN)
+                || !restoreAttachedAndCompare(PsgDeviceChannel.OUTPUT_MIX)
+                || !restoreAttachedAndCompare(PsgDeviceChannel.OUTPUT_PAN)) {
+            return false;
+        }
+        Log.getLog().info("TEST04> OK");
+        return true;
+    }
+
+    /**
+     * Advance two devices with the same random register writes, one by
+     * generate() and the other by skip(), and compare their states.
+     * @param device device to emulate
+     * @param synthesis synthesis method
+     * @return true if both states are identical
+     */
+    private boolean skipAndCompare(final int device, final int synthesis) {
+        Random random = new Random(TEST_SPLIT_SEED);
+        PsgDeviceChannel reference = new PsgDeviceChannel();
+        PsgDeviceChannel skip = new PsgDeviceChannel();
+        reference.setDevice(device);
+        skip.setDevice(device);
+        reference.setSynthesis(synthesis);
+        skip.setSynthesis(synthesis);
+        reference.setBufferLength(TEST_SKIP_MAX_SAMPLES * SHORTS_PER_SAMPLE);
+        for (int event = 0; event < TEST_SKIP_EVENTS; event++) {
+            int address = random.nextInt(TEST_AY_REGISTERS);
+            int value = random.nextInt(TEST_BYTE_VALUES);
+            reference.writeRegister(address, value);
+            skip.writeRegister(address, value);
+            // odd lengths are rounded up to the next sample
+            int length = 1 + random.nextInt(
+                    TEST_SKIP_MAX_SAMPLES * SHORTS_PER_SAMPLE);
+            reference.generate(length);
+            skip.skip(length);
+            if (!Arrays.equals(reference.saveState(), skip.saveState())) {
+                Log.getLog().error("TEST05> NG: device " + device
+                        + " synthesis " + synthesis + " differs at event "
+                        + event);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Test PsgDeviceChannel.skip() advances the state as generate() does.
+     * @return test result
+     */
+    public boolean test05() {
+        if (!skipAndCompare(PsgDeviceChannel.DEVICE_AY_3_8910,
+                PsgDeviceChannel.SYNTHESIS_RUN)
+                || !skipAndCompare(PsgDeviceChannel.DEVICE_SN76489,
+                        PsgDeviceChannel.SYNTHESIS_RUN)) {
+            return false;
+        }
+        Log.getLog().info("TEST05> OK");
+        return true;
+    }
+
+    /**
+     * Play a random register write sequence by both synthesis methods,
+     * and compare outputs and states.
+     * @param mode wave form mode
+     * @return true if both outputs and states are identical
+     */
+    private boolean synthesizeAndCompare(final int mode) {
+        Random random = new Random(TEST_SPLIT_SEED);
+        int length = TEST_RUN_MAX_SAMPLES * SHORTS_PER_SAMPLE;
+        PsgDeviceChannel reference = new PsgDeviceChannel();
+        PsgDeviceChannel run = new PsgDeviceChannel();
+        reference.setSynthesis(PsgDeviceChannel.SYNTHESIS_SAMPLE);
+        run.setSynthesis(PsgDeviceChannel.SYNTHESIS_RUN);
+        PsgDeviceChannel[] psgs = { reference, run };
+        for (int i = 0; i < psgs.length; i++) {
+            psgs[i].setMode(mode);
+            psgs[i].setBufferLength(length);
+        }
+        for (int event = 0; event < TEST_RUN_EVENTS; event++) {
+            int address = random.nextInt(TEST_AY_REGISTERS);
+            int value = random.nextInt(TEST_BYTE_VALUES);
+            reference.writeRegister(address, value);
+            run.writeRegister(address, value);
+            int samples = 1 + random.nextInt(TEST_RUN_MAX_SAMPLES);
+            reference.generate(samples * SHORTS_PER_SAMPLE);
+            run.generate(samples * SHORTS_PER_SAMPLE);
+            if (!Arrays.equals(Arrays.copyOf(reference.getBuffer(), samples),
+                    Arrays.copyOf(run.getBuffer(), samples))
+                    || !Arrays.equals(reference.saveState(),
+                            run.saveState())) {
+                Log.getLog().error("TEST06> NG: mode " + mode
+                        + " differs at event " + event);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Test PsgDeviceChannel run-length synthesis generates the same
+     * sound stream as per-sample synthesis.
+     * @return test result
+     */
+    public boolean test06() {
+        if (!synthesizeAndCompare(PsgDeviceChannel.MODE_UNSIGNED)
+                || !synthesizeAndCompare(PsgDeviceChannel.MODE_SIGNED)) {
+            return false;
+        }
+        Log.getLog().info("TEST06> OK");
+        return true;
+    }
+
+    /**
+     * Play a random register write sequence in OUTPUT_MIX, OUTPUT_VOICES
+     * and OUTPUT_PAN, and check voice buffers and pan outputs against
+     * the mixed output.
+     * @param device device to emulate
+     * @return true if all outputs are consistent
+     */
+    private boolean panAndCompare(final int device) {
+        Random random = new Random(TEST_SPLIT_SEED);
+        int length = TEST_RUN_MAX_SAMPLES * SHORTS_PER_SAMPLE;
+        PsgDeviceChannel mix = new PsgDeviceChannel();
+        PsgDeviceChannel voices = new PsgDeviceChannel();
+        PsgDeviceChannel pan = new PsgDeviceChannel();
+        voices.setOutput(PsgDeviceChannel.OUTPUT_VOICES);
+        pan.setOutput(PsgDeviceChannel.OUTPUT_PAN);
+        for (int voice = 0; voice < PsgDeviceChannel.VOICES; voice++) {
+            pan.setPan(voice, TEST_PAN_LEFT[voice], TEST_PAN_RIGHT[voice]);
+        }
+        PsgDeviceChannel[] psgs = { mix, voices, pan };
+        for (int i = 0; i < psgs.length; i++) {
+            psgs[i].setMode(PsgDeviceChannel.MODE_SIGNED);
+            psgs[i].setDevice(device);
+            psgs[i].setBufferLength(length);
+        }
+        for (int event = 0; event < TEST_PAN_EVENTS; event++) {
+            int address = random.nextInt(TEST_AY_REGISTERS);
+            int value = random.nextInt(TEST_BYTE_VALUES);
+            int samples = 1 + random.nextInt(TEST_RUN_MAX_SAMPLES);
+            for (int i = 0; i < psgs.length; i++) {
+                psgs[i].writeRegister(address, value);
+                psgs[i].generate(samples * SHORTS_PER_SAMPLE);
+            }
+            for (int offset = 0; offset < samples; offset++) {
+                short sum = 0;
+                int left = 0;
+                int right = 0;
+                for (int voice = 0; voice < PsgDeviceChannel.VOICES;
+                        voice++) {
+                    short level = voices.getVoiceBuffer(voice)[offset];
+                    sum += level;
+                    left += level * TEST_PAN_LEFT[voice];
+                    right += level * TEST_PAN_RIGHT[voice];
+                }
+                short expected = mix.getBuffer()[offset];
+                if ((sum != expected)
+                        || (voices.getBuffer()[offset] != expected)
+                        || (pan.getBuffer()[offset * 2 + 0]
+                                != (short) (left >> TEST_PAN_SHIFT))
+                        || (pan.getBuffer()[offset * 2 + 1]
+                                != (short) (right >> TEST_PAN_SHIFT))) {
+                    Log.getLog().error("TEST07> NG: device " + device
+                            + " differs at event " + event);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Test PsgDeviceChannel voice and pan outputs.
+     * @return test result
+     */
+    public boolean test07() {
+        if (!panAndCompare(PsgDeviceChannel.DEVICE_AY_3_8910)
+                || !panAndCompare(PsgDeviceChannel.DEVICE_SN76489)) {
+            return false;
+        }
+        Log.getLog().info("TEST07> OK");
+        return true;
+    }
+
+    /**
+     * Test PsgDeviceChannel band-limited step synthesis keeps state save,
+     * restore and skip exact, and stays close to the naive output for a
+     * low tone where aliasing is negligible.
+     * @return test result
+     */
+    public boolean test08() {
+        int[] devices = {
+            PsgDeviceChannel.DEVICE_AY_3_8910,
+            PsgDeviceChannel.DEVICE_SN76489
+        };
+        for (int i = 0; i < devices.length; i++) {
+            if (!splitAndCompare(devices[i], PsgDeviceChannel.SYNTHESIS_BLEP)
+                    || !skipAndCompare(devices[i],
+                            PsgDeviceChannel.SYNTHESIS_BLEP)) {
+                return false;
+            }
+        }
+        int length = TEST_RUN_MAX_SAMPLES * SHORTS_PER_SAMPLE;
+        PsgDeviceChannel naive = new PsgDeviceChannel();
+        PsgDeviceChannel blep = new PsgDeviceChannel();
+        blep.setSynthesis(PsgDeviceChannel.SYNTHESIS_BLEP);
+        PsgDeviceChannel[] psgs = { naive, blep };
+        for (int i = 0; i < psgs.length; i++) {
+            psgs[i].setMode(PsgDeviceChannel.MODE_SIGNED);
+            psgs[i].setBufferLength(length);
+            psgs[i].writeRegister(TEST_BLEP_TONE_HIGH, TEST_BLEP_TONE);
+            psgs[i].writeRegister(TEST_BLEP_MIXER, TEST_BLEP_TONE_A);
+            psgs[i].writeRegister(TEST_BLEP_VOLUME, TEST_BLEP_LEVEL);
+            psgs[i].generate(length);
+        }
+        long error = 0;
+        long power = 0;
+        for (int offset = 0; offset < TEST_RUN_MAX_SAMPLES; offset++) {
+            int level = naive.getBuffer()[offset];
+            int diff = blep.getBuffer()[offset] - level;
+            error += Math.abs(diff);
+            power += Math.abs(level);
+        }
+        // smoothed edges differ from the naive edges, and only edges
+        if (error * TEST_BLEP_ERROR_RATIO > power) {
+            Log.getLog().error("TEST08> NG: error " + error + " / " + power);
+            return false;
+        }
+        Log.getLog().info("TEST08> OK");
+        return true;
+    }
+
+    /**
+     * Count level changes of a PsgDeviceChannel tone in one second.
+     * @param rate sample rate in Hz
+     * @return number of level changes
+     */
+    private int countToneEdges(final int rate) {
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setSampleRate(rate);
+        psg.setBufferLength(rate * SHORTS_PER_SAMPLE);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_LOW,
+                TEST_RATE_TONE & 0xff);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_HIGH,
+                TEST_RATE_TONE >> 8);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_MIXER,
+                TEST_BLEP_TONE_A);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_VOLUME,
+                TEST_BLEP_LEVEL);
+        psg.generate(rate * SHORTS_PER_SAMPLE);
+        short[] buffer = psg.getBuffer();
+        int edges = 0;
+        for (int i = 1; i < rate; i++) {
+            if (buffer[i] != buffer[i - 1]) {
+                edges++;
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Generate noise and envelope of the shortest periods after the
+     * sample rate changes.
+     * @param firstRate sample rate in Hz to write registers at
+     * @param rate sample rate in Hz to generate at
+     * @return generated audio
+     */
+    private short[] generateFastSteps(final int firstRate, final int rate) {
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setSampleRate(firstRate);
+        psg.setBufferLength(TEST_RATE_SAMPLES * SHORTS_PER_SAMPLE);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_NOISE_TP,
+                TEST_RATE_FAST_PERIOD);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_EP_LOW,
+                TEST_RATE_FAST_PERIOD);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_EP_HIGH, 0);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_EP_CONTROL,
+                TEST_RATE_SHAPE);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_MIXER,
+                TEST_RATE_NOISE_A);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_VOLUME,
+                TEST_ENVELOPE_ON);
+        psg.setSampleRate(rate);
+        psg.generate(TEST_RATE_SAMPLES * SHORTS_PER_SAMPLE);
+        return Arrays.copyOf(psg.getBuffer(), TEST_RATE_SAMPLES);
+    }
+
+    /**
+     * Test sample rate keeps tone pitches and player intervals in time,
+     * and steps clamped at an old sample rate follow a new one.
+     * @return test result
+     */
+    public boolean test09() {
+        int expected = countToneEdges(MasterChannel.DEFAULT_SAMPLE_FREQUENCY);
+        for (int i = 0; i < TEST_SAMPLE_RATES.length; i++) {
+            int edges = countToneEdges(TEST_SAMPLE_RATES[i]);
+            if (Math.abs(edges - expected) > 1) {
+                Log.getLog().error("TEST09> NG: " + edges + " edges at "
+                        + TEST_SAMPLE_RATES[i] + " Hz (expected "
+                        + expected + ")");
+                return false;
+            }
+        }
+        int highest = TEST_SAMPLE_RATES[TEST_SAMPLE_RATES.length - 1];
+        for (int i = 0; i < TEST_SAMPLE_RATES.length; i++) {
+            int rate = TEST_SAMPLE_RATES[i];
+            if (!Arrays.equals(generateFastSteps(rate, rate),
+                    generateFastSteps(highest, rate))) {
+                Log.getLog().error("TEST09> NG: steps after changing "
+                        + "sample rate to " + rate + " Hz");
+                return false;
+            }
+        }
+        for (int i = 0; i < TEST_SAMPLE_RATES.length; i++) {
+            int rate = TEST_SAMPLE_RATES[i];
+            MasterChannel master = new MasterChannel();
+            master.setBufferLength(TEST_ODD_BUFFER_LENGTH);
+            CountingPlayer player = new CountingPlayer();
+            player.setMasterChannel(master);
+            master.addChannel(new PositionChannel(player));
+            // an interval set in msec follows the sample rate set later
+            master.setPlayerInterval(TEST_INTERVAL_NUMERATOR);
+            master.setSampleRate(rate);
+            while (player.count < TEST_RATE_CALL_BACKS) {
+                master.generate(TEST_ODD_BUFFER_LENGTH);
+            }
+            for (int call = 0; call < TEST_RATE_CALL_BACKS; call++) {
+                long position = (long) (call + 1) * rate;
+                if (player.calls[call] != position) {
+                    Log.getLog().error("TEST09> NG: call back " + call
+                            + " at " + player.calls[call] + " (expected "
+                            + position + ")");
+                    return false;
+                }
+            }
+        }
+        Log.getLog().info("TEST09> OK");
+        return true;
+    }
+
+    /**
+     * Convert a sine wave from a sample rate.
+     * @param rate input sample rate in Hz
+     * @param length block length in shorts to generate at once
+     * @return converted sine wave
+     */
+    private short[] convertSine(final int rate, final int length) {
+        FrequencyConversionChannel conversion =
+            new FrequencyConversionChannel();
+        conversion.setInputFrequency(rate);
+        conversion.setSampleRate(MasterChannel.DEFAULT_SAMPLE_FREQUENCY);
+        conversion.setBufferLength(length);
+        conversion.setChannel(new SineChannel());
+        short[] samples = new short[TEST_CONVERSION_SAMPLES];
+        for (int offset = 0; offset < samples.length; ) {
+            int size = Math.min(length / SHORTS_PER_SAMPLE,
+                    samples.length - offset);
+            conversion.generate(size * SHORTS_PER_SAMPLE);
+            System.arraycopy(conversion.getBuffer(), 0, samples, offset,
+                    size);
+            offset += size;
+        }
+        return samples;
+    }
+
+    /**
+     * Test FrequencyConversionChannel converts a sine wave without delay
+     * nor distortion, and independently of the block length.
+     * @return test result
+     */
+    public boolean test10() {
+        for (int i = 0; i < TEST_CONVERSION_RATES.length; i++) {
+            int rate = TEST_CONVERSION_RATES[i];
+            short[] samples = convertSine(rate, TEST_BUFFER_LENGTH);
+            if (!Arrays.equals(samples,
+                    convertSine(rate, TEST_ODD_BUFFER_LENGTH))) {
+                Log.getLog().error("TEST10> NG: " + rate
+                        + " Hz output depends on the block length");
+                return false;
+            }
+            double error = 0;
+            double power = 0;
+            for (int n = TEST_CONVERSION_SETTLE; n < samples.length; n++) {
+                double expected = TEST_SINE_LEVEL * Math.sin(2 * Math.PI
+                        * TEST_SINE_FREQUENCY * n
+                        / MasterChannel.DEFAULT_SAMPLE_FREQUENCY);
+                error += (samples[n] - expected) * (samples[n] - expected);
+                power += expected * expected;
+            }
+            if (error > power * TEST_CONVERSION_MAX_ERROR) {
+                Log.getLog().error("TEST10> NG: " + rate
+                        + " Hz error ratio " + (error / power));
+                return false;
+            }
+        }
+        Log.getLog().info("TEST10> OK");
+        return true;
+    }
+
+    /**
+     * class WriteRecorder
+     *
+     * This class records PSG port writes with CPU cycles.
+     */
+    private static final class WriteRecorder implements Memory {
+        private final Cpu6502 cpu;
+        private final int[] cycles = new int[TEST_CPU_WRITES];
+        private final int[] registers = new int[TEST_CPU_WRITES];
+        private final int[] values = new int[TEST_CPU_WRITES];
+        private int count = 0;
+        private int latch = 0;
+
+        /**
+         * Class constructor.
+         * @param target CPU to read cycles
+         */
+        WriteRecorder(final Cpu6502 target) {
+            cpu = target;
+        }
+
+        /**
+         * @see Memory
+         * @param address memory address to write
+         * @param data data to write
+         */
+        public void writeChar(final int address, final char data) {
+            if (0 == (address & 1)) {
+                latch = data;
+            } else if (count < cycles.length) {
+                cycles[count] = cpu.getCycles();
+                registers[count] = latch;
+                values[count] = data;
+                count++;
+            }
+        }
+
+        /**
+         * @see Memory
+         * @param address memory address to read
+         * @return always 0
+         */
+        public char readChar(final int address) {
+            return 0;
+        }
+    }
+
+    /**
+     * Create the test program image.
+     * @return program image
+     */
+    private byte[] createCpuProgram() {
+        byte[] image = new byte[TEST_CPU_VECTORS
+                                + TEST_CPU_VECTOR_TABLE.length];
+        for (int i = 0; i < TEST_CPU_PROGRAM.length; i++) {
+            image[i] = (byte) TEST_CPU_PROGRAM[i];
+        }
+        for (int i = 0; i < TEST_CPU_VECTOR_TABLE.length; i++) {
+            image[TEST_CPU_VECTORS + i] = (byte) TEST_CPU_VECTOR_TABLE[i];
+        }
+        return image;
+    }
+
+    /**
+     * Render the test program by CpuPsgPlayer.
+     * @param clock CPU clock in Hz
+     * @param batch batch interval in msec
+     * @param length block length in shorts to generate at once
+     * @param samples samples to render
+     * @return rendered audio
+     */
+    private short[] playCpuProgram(final int clock, final int batch,
+            final int length, final int samples) {
+        MasterChannel master = new MasterChannel();
+        master.setBufferLength(length);
+        CpuPsgPlayer player = new CpuPsgPlayer();
+        player.setMasterChannel(master);
+        player.setCpuClock(clock);
+        player.setBatchInterval(batch);
+        player.setPortPage(TEST_CPU_PORT_PAGE);
+        player.play(new ByteArrayInputStream(createCpuProgram()));
+        short[] out = new short[samples * SHORTS_PER_SAMPLE];
+        int filled = 0;
+        for (int offset = 0; offset < out.length; ) {
+            int size = Math.min(length, out.length - offset);
+            master.generate(size);
+            filled = copyOut(master, size, out, filled);
+            offset += size;
+        }
+        return out;
+    }
+
+    /**
+     * Append generated audio of a master channel to an array. Mono audio
+     * takes a half of the generated length.
+     * @param master master channel which generated audio
+     * @param length generated length in shorts
+     * @param out array to append
+     * @param offset offset in the array to append
+     * @return offset after appended audio
+     */
+    private int copyOut(final MasterChannel master, final int length,
+            final short[] out, final int offset) {
+        int size = length;
+        if (Channel.MONO == master.getNumOfChannels()) {
+            size = length / SHORTS_PER_SAMPLE;
+        }
+        System.arraycopy(master.getBuffer(), 0, out, offset, size);
+        return offset + size;
+    }
+
+    /**
+     * Render the test program by writing registers at sample positions
+     * calculated from cycles of a CPU stepped alone.
+     * @param clock CPU clock in Hz
+     * @return rendered audio
+     */
+    private short[] renderCpuProgram(final int clock) {
+        Cpu6502 cpu = new Cpu6502();
+        PagedMemory memory = new PagedMemory();
+        byte[] image = createCpuProgram();
+        memory.load(0, image, 0, image.length);
+        WriteRecorder recorder = new WriteRecorder(cpu);
+        memory.mapIo(TEST_CPU_PORT_PAGE, recorder);
+        cpu.setMemory(memory);
+        cpu.init();
+        while (recorder.count < TEST_CPU_WRITES) {
+            cpu.runStep();
+        }
+        int rate = MasterChannel.DEFAULT_SAMPLE_FREQUENCY;
+        int samples = (int) ((long) recorder.cycles[TEST_CPU_WRITES - 1]
+                * rate / clock);
+        MasterChannel master = new MasterChannel();
+        master.setBufferLength(samples * SHORTS_PER_SAMPLE);
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setMode(PsgDeviceChannel.MODE_SIGNED);
+        psg.setDevice(PsgDeviceChannel.DEVICE_AY_3_8910);
+        master.addChannel(psg);
+        short[] out = new short[samples * SHORTS_PER_SAMPLE];
+        int position = 0;
+        int filled = 0;
+        for (int i = 0; i < TEST_CPU_WRITES; i++) {
+            int next = Math.min(samples,
+                    (int) ((long) recorder.cycles[i] * rate / clock));
+            int size = (next - position) * SHORTS_PER_SAMPLE;
+            if (0 != size) {
+                master.generate(size);
+                filled = copyOut(master, size, out, filled);
+                position = next;
+            }
+            psg.writeRegister(recorder.registers[i], recorder.values[i]);
+        }
+        return out;
+    }
+
+    /**
+     * Test CpuPsgPlayer applies port writes at sample positions of their
+     * CPU cycles, independently of batch and block lengths.
+     * @return test result
+     */
+    public boolean test11() {
+        for (int i = 0; i < TEST_CPU_CLOCKS.length; i++) {
+            int clock = TEST_CPU_CLOCKS[i];
+            short[] expected = renderCpuProgram(clock);
+            int samples = expected.length / SHORTS_PER_SAMPLE;
+            for (int j = 0; j < TEST_CPU_BATCHES.length; j++) {
+                int batch = TEST_CPU_BATCHES[j];
+                if (!Arrays.equals(expected, playCpuProgram(clock, batch,
+                        TEST_BUFFER_LENGTH, samples))
+                        || !Arrays.equals(expected, playCpuProgram(clock,
+                                batch, TEST_ODD_BUFFER_LENGTH, samples))) {
+                    Log.getLog().error("TEST11> NG: " + clock + " Hz CPU "
+                            + "with " + batch + " msec batches");
+                    return false;
+                }
+            }
+        }
+        Log.getLog().info("TEST11> OK");
+        return true;
+    }
+
+    /**
+     * Create a MasterChannel which converts a sine wave from a sample rate.
+     * @param rate input sample rate in Hz
+     * @return master channel
+     */
+    private MasterChannel createConversionMaster(final int rate) {
+        FrequencyConversionChannel conversion =
+            new FrequencyConversionChannel();
+        conversion.setInputFrequency(rate);
+        conversion.setChannel(new SineChannel());
+        MasterChannel master = new MasterChannel();
+        master.setBufferLength(TEST_ODD_BUFFER_LENGTH);
+        master.addChannel(conversion);
+        return master;
+    }
+
+    /**
+     * Test MasterChannel.skip() skips FrequencyConversionChannel as a
+     * SkippableChannel, and following generate() outputs the same audio.
+     * @return test result
+     */
+    public boolean test12() {
+        for (int i = 0; i < TEST_CONVERSION_RATES.length; i++) {
+            int rate = TEST_CONVERSION_RATES[i];
+            MasterChannel generated = createConversionMaster(rate);
+            MasterChannel skipped = createConversionMaster(rate);
+            for (int block = 1; block < TEST_SKIP_CONVERSION_BLOCKS;
+                    block++) {
+                generated.generate(TEST_ODD_BUFFER_LENGTH);
+                skipped.skip(TEST_ODD_BUFFER_LENGTH);
+            }
+            generated.generate(TEST_ODD_BUFFER_LENGTH);
+            skipped.generate(TEST_ODD_BUFFER_LENGTH);
+            if (!Arrays.equals(generated.getBuffer(), skipped.getBuffer())) {
+                Log.getLog().error("TEST12> NG: " + rate
+                        + " Hz output differs after skip");
+                return false;
+            }
+        }
+        Log.getLog().info("TEST12> OK");
+        return true;
+    }
+
+    /**
+     * Create a device that outputs +/- volume of channel A.
+     * @param synthesis synthesis method
+     * @param volume channel A volume register value
+     * @return device
+     */
+    private PsgDeviceChannel createEnvelopeDevice(final int synthesis,
+            final int volume) {
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setMode(PsgDeviceChannel.MODE_SIGNED);
+        psg.setSynthesis(synthesis);
+        psg.setBufferLength(TEST_ENVELOPE_SAMPLES * SHORTS_PER_SAMPLE);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_HIGH,
+                TEST_ENVELOPE_TONE_HIGH);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_NOISE_TP,
+                TEST_ENVELOPE_NOISE);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_MIXER,
+                TEST_ENVELOPE_MIXER);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_VOLUME, volume);
+        return psg;
+    }
+
+    /**
+     * Calculate an envelope level as the data sheet describes shapes.
+     * @param shape envelope shape
+     * @param step envelope steps since the shape is written
+     * @return envelope level in 32 steps
+     */
+    private int envelopeLevel(final int shape, final int step) {
+        boolean attack = 0 != (shape & TEST_ENVELOPE_ATTACK);
+        int max = TEST_ENVELOPE_STEPS - 1;
+        int phase = step % TEST_ENVELOPE_STEPS;
+        if (step < TEST_ENVELOPE_STEPS) {
+            return attack ? phase : max - phase;
+        }
+        if (0 == (shape & TEST_ENVELOPE_CONTINUE)) {
+            return 0;
+        }
+        boolean alternate = 0 != (shape & TEST_ENVELOPE_ALTERNATE);
+        if (0 != (shape & TEST_ENVELOPE_HOLD)) {
+            return (attack ^ alternate) ? max : 0;
+        }
+        boolean odd = 1 == (step / TEST_ENVELOPE_STEPS) % 2;
+        return (attack ^ (alternate && odd)) ? phase : max - phase;
+    }
+
+    /**
+     * Play each envelope shape on channel A, and check output levels
+     * against the data sheet shapes stepped one sample at a time.
+     * @param synthesis synthesis method
+     * @param amplitudes output amplitudes of fixed volumes
+     * @return true if all levels are as expected
+     */
+    private boolean envelopeAndCompare(final int synthesis,
+            final int[] amplitudes) {
+        long step = TEST_ENVELOPE_CLOCK_BIAS * PsgDeviceChannel.CLOCK_3_58MHZ
+            / MasterChannel.DEFAULT_SAMPLE_FREQUENCY;
+        for (int i = 0; i < TEST_ENVELOPE_PERIODS.length; i++) {
+            int period = TEST_ENVELOPE_PERIODS[i];
+            long threshold = Math.max(step,
+                    (long) period << TEST_ENVELOPE_PERIOD_SHIFT);
+            for (int shape = 0; shape < TEST_ENVELOPE_SHAPES; shape++) {
+                PsgDeviceChannel psg =
+                    createEnvelopeDevice(synthesis, TEST_ENVELOPE_ON);
+                psg.writeRegister(PsgDeviceChannel.REGISTER_AY_EP_LOW,
+                        period & (TEST_BYTE_VALUES - 1));
+                psg.writeRegister(PsgDeviceChannel.REGISTER_AY_EP_HIGH,
+                        period / TEST_BYTE_VALUES);
+                psg.writeRegister(PsgDeviceChannel.REGISTER_AY_EP_CONTROL,
+                        shape);
+                psg.generate(TEST_ENVELOPE_SAMPLES * SHORTS_PER_SAMPLE);
+                long count = 0;
+                int steps = 0;
+                for (int n = 0; n < TEST_ENVELOPE_SAMPLES; n++) {
+                    count += step;
+                    if (count > threshold) {
+                        count -= threshold;
+                        steps++;
+                    }
+                    // AY-3-8910 has a half of envelope levels
+                    int expected = amplitudes[envelopeLevel(shape, steps) / 2];
+                    if (Math.abs(psg.getBuffer()[n]) != expected) {
+                        Log.getLog().error("TEST13> NG: synthesis "
+                                + synthesis + " shape " + shape
+                                + " period " + period + " at " + n);
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Test PsgDeviceChannel envelope shapes, and test run-length and
+     * band-limited step synthesis while an envelope is active.
+     * @return test result
+     */
+    public boolean test13() {
+        int[] amplitudes = new int[TEST_ENVELOPE_VOLUMES];
+        for (int volume = 0; volume < amplitudes.length; volume++) {
+            PsgDeviceChannel psg = createEnvelopeDevice(
+                    PsgDeviceChannel.SYNTHESIS_SAMPLE, volume);
+            psg.generate(SHORTS_PER_SAMPLE);
+            amplitudes[volume] = Math.abs(psg.getBuffer()[0]);
+        }
+        if (!envelopeAndCompare(PsgDeviceChannel.SYNTHESIS_SAMPLE,
+                amplitudes)
+                || !envelopeAndCompare(PsgDeviceChannel.SYNTHESIS_RUN,
+                        amplitudes)) {
+            return false;
+        }
+        int length = TEST_ENVELOPE_SAMPLES * SHORTS_PER_SAMPLE;
+        for (int shape = 0; shape < TEST_ENVELOPE_SHAPES; shape++) {
+            PsgDeviceChannel naive = createEnvelopeDevice(
+                    PsgDeviceChannel.SYNTHESIS_SAMPLE, TEST_ENVELOPE_ON);
+            PsgDeviceChannel blep = createEnvelopeDevice(
+                    PsgDeviceChannel.SYNTHESIS_BLEP, TEST_ENVELOPE_ON);
+            PsgDeviceChannel[] psgs = { naive, blep };
+            for (int i = 0; i < psgs.length; i++) {
+                // dense noise edges would hide envelope edges
+                psgs[i].writeRegister(PsgDeviceChannel.REGISTER_AY_MIXER,
+                        TEST_BLEP_TONE_A);
+                psgs[i].writeRegister(TEST_BLEP_TONE_HIGH, TEST_BLEP_TONE);
+                psgs[i].writeRegister(PsgDeviceChannel.REGISTER_AY_EP_HIGH,
+                        TEST_ENVELOPE_PERIODS[1] / TEST_BYTE_VALUES);
+                psgs[i].writeRegister(PsgDeviceChannel.REGISTER_AY_EP_LOW,
+                        TEST_ENVELOPE_PERIODS[1] & (TEST_BYTE_VALUES - 1));
+                psgs[i].writeRegister(
+                        PsgDeviceChannel.REGISTER_AY_EP_CONTROL, shape);
+                psgs[i].generate(length);
+            }
+            long error = 0;
+            long power = 0;
+            for (int n = 0; n < TEST_ENVELOPE_SAMPLES; n++) {
+                int level = naive.getBuffer()[n];
+                error += Math.abs(blep.getBuffer()[n] - level);
+                power += Math.abs(level);
+            }
+            // envelope steps are edges, and smoothed as tone edges are
+            if (error * TEST_BLEP_ERROR_RATIO > power) {
+                Log.getLog().error("TEST13> NG: shape " + shape
+                        + " band-limited error " + error + " / " + power);
+                return false;
+            }
+        }
+        Log.getLog().info("TEST13> OK");
+        return true;
+    }
+
+    /**
+     * class LineHandler
+     *
+     * This class provides a SourceDataLine through Proxy, that queues
+     * written bytes until the test drains them.
+     */
+    private static final class LineHandler implements InvocationHandler {
+        private volatile int bufferSize = 0;
+        private volatile int queued = 0;
+        private volatile int writes = 0;
+
+        /**
+         * @see InvocationHandler
+         * @param proxy proxy instance
+         * @param method invoked method
+         * @param args arguments
+         * @return result of the method
+         */
+        public Object invoke(final Object proxy, final Method method,
+                final Object[] args) {
+            String name = method.getName();
+            if ("open".equals(name) && (2 == args.length)) {
+                bufferSize = ((Integer) args[1]).intValue();
+            } else if ("getBufferSize".equals(name)) {
+                return Integer.valueOf(bufferSize);
+            } else if ("available".equals(name)) {
+                return Integer.valueOf(Math.max(0, bufferSize - queued));
+            } else if ("write".equals(name)) {
+                int length = ((Integer) args[2]).intValue();
+                queued += length;
+                writes++;
+                return Integer.valueOf(length);
+            } else if ("toString".equals(name)) {
+                return "LineHandler";
+            }
+            if (Boolean.TYPE == method.getReturnType()) {
+                return Boolean.FALSE;
+            } else if (Integer.TYPE == method.getReturnType()) {
+                return Integer.valueOf(0);
+            } else if (Long.TYPE == method.getReturnType()) {
+                return Long.valueOf(0);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * class GateChannel
+     *
+     * This class generates silence only when the test opens its gate.
+     */
+    private static final class GateChannel implements Channel {
+        private final Semaphore gate = new Semaphore(0);
+        private short[] buffer = null;
+
+        /**
+         * @see Channel
+         * @param length buffer length or size in shorts
+         */
+        public void setBufferLength(final int length) {
+            buffer = new short[length];
+        }
+
+        /**
+         * @see Channel
+         * @param rate sample rate in Hz
+         */
+        public void setSampleRate(final int rate) {
+        }
+
+        /**
+         * @see Channel
+         * @return audio stream buffer
+         */
+        public short[] getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * @see Channel
+         * @return STEREO
+         */
+        public int getNumOfChannels() {
+            return STEREO;
+        }
+
+        /**
+         * @see Channel
+         * @param length buffer length or size in shorts to generate
+         */
+        public void generate(final int length) {
+            gate.acquireUninterruptibly();
+        }
+    }
+
+    /**
+     * Sleep shortly.
+     * @param msec time to sleep in msec
+     */
+    private static void pause(final long msec) {
+        try {
+            Thread.sleep(msec);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Test AudioLooper counts an underrun only when the line is drained
+     * on an empty ring.
+     * @return test result
+     */
+    public boolean test14() {
+        LineHandler handler = new LineHandler();
+        SourceDataLine line = (SourceDataLine) Proxy.newProxyInstance(
+                SourceDataLine.class.getClassLoader(),
+                new Class<?>[] { SourceDataLine.class }, handler);
+        AudioLooper looper;
+        try {
+            looper = new AudioLooper(MasterChannel.DEFAULT_SAMPLE_FREQUENCY,
+                    1, line);
+        } catch (Exception e) {
+            Log.getLog().error("TEST14> NG: " + e);
+            return false;
+        }
+        GateChannel channel = new GateChannel();
+        looper.setChannel(channel);
+        looper.setDaemon(true);
+        channel.gate.release();
+        looper.start();
+        for (int i = 0; (i < TEST_LOOPER_POLLS) && (handler.writes < 1);
+                i++) {
+            pause(TEST_LOOPER_POLL_MSEC);
+        }
+        // the ring is empty, but the line still has a block to play
+        pause(TEST_LOOPER_WAIT_MSEC);
+        if ((1 != handler.writes) || (0 != looper.getUnderruns())) {
+            Log.getLog().error("TEST14> NG: " + looper.getUnderruns()
+                    + " underruns before the line drains");
+            return false;
+        }
+        handler.queued = 0;
+        for (int i = 0; (i < TEST_LOOPER_POLLS)
+                && (0 == looper.getUnderruns()); i++) {
+            pause(TEST_LOOPER_POLL_MSEC);
+        }
+        // a silent block is queued, and no more underruns until it drains
+        pause(TEST_LOOPER_WAIT_MSEC);
+        if ((2 != handler.writes) || (1 != looper.getUnderruns())) {
+            Log.getLog().error("TEST14> NG: " + looper.getUnderruns()
+                    + " underruns after the line drains");
+            return false;
+        }
+        channel.gate.release();
+        for (int i = 0; (i < TEST_LOOPER_POLLS) && (handler.writes < 3);
+                i++) {
+            pause(TEST_LOOPER_POLL_MSEC);
+        }
+        if ((3 != handler.writes) || (1 != looper.getUnderruns())) {
+            Log.getLog().error("TEST14> NG: rendered block is not written");
+            return false;
+        }
+        Log.getLog().info("TEST14> OK");
+        return true;
+    }
+
+    /**
+     * Create VGM data of SN76489 commands.
+     * @param commands VGM commands following the header
+     * @param loop index of the command where the loop starts,
+     *             or TEST_VGM_NO_LOOP
+     * @return VGM data
+     */
+    private static byte[] createVgm(final int[] commands, final int loop) {
+        ByteBuffer vgm = ByteBuffer.allocate(TEST_VGM_DATA_OFFSET
+                + commands.length);
+        vgm.order(ByteOrder.LITTLE_ENDIAN);
+        vgm.put(TEST_VGM_IDENT);
+        vgm.putInt(vgm.capacity() - TEST_VGM_EOF_BASE);
+        vgm.putInt(TEST_VGM_VERSION);
+        vgm.putInt(PsgDeviceChannel.CLOCK_3_58MHZ);
+        if (TEST_VGM_NO_LOOP != loop) {
+            vgm.putInt(TEST_VGM_LOOP_BASE,
+                    TEST_VGM_DATA_OFFSET + loop - TEST_VGM_LOOP_BASE);
+        }
+        vgm.position(TEST_VGM_DATA_OFFSET);
+        for (int i = 0; i < commands.length; i++) {
+            vgm.put((byte) commands[i]);
+        }
+        return vgm.array();
+    }
+
+    /**
+     * Render TEST_VGM_SONG into a WAV file, and check that the file ends
+     * at the end of the song.
+     * @param file file to write
+     * @param executor executor for segment rendering, or null
+     * @return test result
+     * @throws IOException exception on rendering
+     */
+    private boolean renderVgmSong(final File file,
+            final ExecutorService executor) throws IOException {
+        OfflineRenderer renderer = new OfflineRenderer();
+        renderer.setBufferLength(TEST_ODD_BUFFER_LENGTH);
+        if (null != executor) {
+            renderer.setSegmentExecutor(executor);
+            renderer.setSegmentLength(TEST_VGM_SEGMENT_SAMPLES);
+        }
+        MasterChannel master = new MasterChannel();
+        VgmPlayer player = new VgmPlayer();
+        player.setMasterChannel(master);
+        renderer.setChannel(master);
+        if (!player.play(new ByteArrayInputStream(
+                createVgm(TEST_VGM_SONG, TEST_VGM_NO_LOOP)))) {
+            return false;
+        }
+        long samples = renderer.render(file, Integer.MAX_VALUE);
+        return (TEST_VGM_SONG_SAMPLES == samples)
+            && (TEST_WAV_HEADER_SIZE + samples * TEST_WAV_BYTES_PER_SAMPLE
+                    == file.length());
+    }
+
+    /**
+     * Test OfflineRenderer stops at the end of the song even in the
+     * middle of a block, both on serial and segment rendering.
+     * @return test result
+     */
+    public boolean test15() {
+        ExecutorService executor =
+            Executors.newFixedThreadPool(TEST_RENDER_THREADS);
+        File file = null;
+        try {
+            file = File.createTempFile("tss", ".wav");
+            if (!renderVgmSong(file, null)) {
+                Log.getLog().error("TEST15> NG: serial rendering");
+                return false;
+            }
+            if (!renderVgmSong(file, executor)) {
+                Log.getLog().error("TEST15> NG: segment rendering");
+                return false;
+            }
+        } catch (IOException e) {
+            Log.getLog().error("TEST15> Exception: " + e.toString());
+            return false;
+        } finally {
+            executor.shutdown();
+            if (null != file) {
+                file.delete();
+            }
+        }
+        Log.getLog().info("TEST15> OK");
+        return true;
+    }
+
+    /**
+     * Test VgmPlayer plays a loop section which has only waits one
+     * period per call back. A loop limit is set so that a regression
+     * ends the song at once instead of spinning forever.
+     * @return test result
+     */
+    public boolean test16() {
+        MasterChannel master = new MasterChannel();
+        master.setBufferLength(TEST_BUFFER_LENGTH);
+        VgmPlayer player = new VgmPlayer();
+        player.setMasterChannel(master);
+        player.setLoopLimit(TEST_VGM_LOOP_LIMIT);
+        if (!player.play(new ByteArrayInputStream(
+                createVgm(TEST_VGM_SONG, TEST_VGM_WAIT_LOOP)))) {
+            Log.getLog().error("TEST16> NG: play");
+            return false;
+        }
+        for (int i = 0; i < TEST_VGM_LOOP_BLOCKS; i++) {
+            master.generate(TEST_BUFFER_LENGTH);
+        }
+        // the first loop starts at the first call back, and following
+        // loops start at the end of the song and every period after it
+        long samples = (long) TEST_VGM_LOOP_BLOCKS * TEST_BUFFER_LENGTH
+            / SHORTS_PER_SAMPLE;
+        long loops = 2 + (samples - TEST_VGM_SONG_SAMPLES)
+            / TEST_VGM_LOOP_SAMPLES;
+        if (!master.isPlaying() || (loops != player.getLoopCount())) {
+            Log.getLog().error("TEST16> NG: " + player.getLoopCount()
+                    + " loops in " + samples + " samples");
+            return false;
+        }
+        Log.getLog().info("TEST16> OK");
+        return true;
+    }
+
     /**
      * Main to run simple test.
      * @param args arguments (not used)
@@ -82,6 +1620,21 @@ public final class UnitTest {
     public static void main(final String[] args) {
         Log.setLog(new J2SELog());
         UnitTest test = new UnitTest();
+        test.test02();
+        test.test03();
+        test.test04();
+        test.test05();
+        test.test06();
+        test.test07();
+        test.test08();
+        test.test09();
+        test.test10();
+        test.test11();
+        test.test12();
+        test.test13();
+        test.test14();
+        test.test15();
+        test.test16();
         //test.test00();
         test.test01();
     }
@@ -7,21 +7,39 @@ package org.twintail.tss;
  * interface Channel
  *
  * This interface provides a call-back method for audio generation.
+ * Buffer length is always given in shorts of interleaved stereo stream,
+ * i.e. two shorts per sample. A mono channel stores one short per sample,
+ * and its buffer contents are half of the given length.
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
 public interface Channel {
+    int MONO = 1;
+    int STEREO = 2;
+
     /**
      * Set internal buffer length.
      * @param length buffer length or size in shorts
      */
     void setBufferLength(int length);
 
+    /**
+     * Set output sample rate.
+     * @param rate sample rate in Hz
+     */
+    void setSampleRate(int rate);
+
     /**
      * Get internal buffer.
      * @return audio stream buffer
      */
     short[] getBuffer();
 
+    /**
+     * Get the number of audio channels in the internal buffer.
+     * @return MONO or STEREO
+     */
+    int getNumOfChannels();
+
     /**
      * Generate audio stream to internal buffer.
      * @param length buffer length or size in shorts to generate audio stream
@@ -0,0 +1,294 @@
+/**
+ * T'SoundSystem for Java
+ */
+package org.twintail.tss;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.twintail.cpu.Cpu6502;
+import org.twintail.cpu.Memory;
+import org.twintail.cpu.PagedMemory;
+
+/**
+ * class CpuPsgPlayer
+ *
+ * Play a 6502 program driving an AY-3-8910 through an I/O port.
+ * The program image is loaded at $0000 and runs from $0000. The PSG is
+ * mapped to a port page, where writes to even addresses latch a register
+ * number, and writes to odd addresses write the latched register.
+ * The CPU runs in batches of cycles, and each port write is queued with
+ * the sample position converted from its cycle count. Then each write
+ * is applied as an event of MasterChannel, so that audio between two
+ * writes is generated at once, and writes keep sample accurate timing
+ * without running the CPU per sample.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class CpuPsgPlayer implements EventPlayer {
+    public static final int DEFAULT_CPU_CLOCK = 1000000;
+    public static final int DEFAULT_PORT_PAGE = 0xc0;
+    public static final int DEFAULT_BATCH_MSEC = 20;
+    private static final int PORT_DATA = 1;
+    private static final int NUM_OF_REGISTERS = 16;
+    private static final int REGISTER_MASK = NUM_OF_REGISTERS - 1;
+    private static final int BYTE_MASK = 0xff;
+    private static final int MSEC_PER_SEC = 1000;
+    private static final int INITIAL_QUEUE_SIZE = 256;
+
+    private final Cpu6502 cpu = new Cpu6502();
+    private final PagedMemory memory = new PagedMemory();
+    private MasterChannel masterChannel = null;
+    private PsgDeviceChannel psg = null;
+    private Exception lastException = null;
+    private int cpuClock = DEFAULT_CPU_CLOCK;
+    private int portPage = DEFAULT_PORT_PAGE;
+    private int batchMsec = DEFAULT_BATCH_MSEC;
+    private boolean playing = false;
+    private int nextEventDelay = NO_EVENT;
+    private int latch = 0;
+    private final int[] shadow = new int[NUM_OF_REGISTERS];
+    private long cycles = 0;
+    private long samples = 0;
+    private int batchCycles = 0;
+    private int batchLength = 0;
+    private int batchPosition = 0;
+    private int[] queueOffsets = new int[INITIAL_QUEUE_SIZE];
+    private int[] queueRegisters = new int[INITIAL_QUEUE_SIZE];
+    private int[] queueValues = new int[INITIAL_QUEUE_SIZE];
+    private int queueSize = 0;
+    private int queueIndex = 0;
+
+    /**
+     * class Port
+     *
+     * This class provides the PSG port mapped to the port page.
+     */
+    private final class Port implements Memory {
+        /**
+         * @see Memory
+         * @param address memory address to write
+         * @param data data to write
+         */
+        public void writeChar(final int address, final char data) {
+            if (PORT_DATA == (address & PORT_DATA)) {
+                queue(latch, data & BYTE_MASK);
+            } else {
+                latch = data & REGISTER_MASK;
+            }
+        }
+
+        /**
+         * Reads return the last value written to the latched register,
+         * even if it is not applied to the PSG yet.
+         * @see Memory
+         * @param address memory address to read
+         * @return read data
+         */
+        public char readChar(final int address) {
+            return (char) shadow[latch];
+        }
+    }
+
+    /**
+     * Get last happened exception.
+     * @return last happened exception
+     */
+    public Exception getLastException() {
+        return lastException;
+    }
+
+    /**
+     * Set CPU clock.
+     * @param hz clock in Hz
+     */
+    public void setCpuClock(final int hz) {
+        if (hz <= 0) {
+            throw new IllegalArgumentException("Invalid clock: " + hz);
+        }
+        cpuClock = hz;
+    }
+
+    /**
+     * Set the page where the PSG port is mapped. It takes effect on the
+     * next play().
+     * @param page page number
+     */
+    public void setPortPage(final int page) {
+        if ((page < 0) || (page >= PagedMemory.NUM_OF_PAGES)) {
+            throw new IllegalArgumentException("Invalid page: " + page);
+        }
+        portPage = page;
+    }
+
+    /**
+     * Set time to run the CPU at once. Longer batches call the CPU less
+     * often, and need a larger write queue.
+     * @param msec batch time in msec
+     */
+    public void setBatchInterval(final int msec) {
+        if (msec <= 0) {
+            throw new IllegalArgumentException("Invalid interval: " + msec);
+        }
+        batchMsec = msec;
+    }
+
+    /**
+     * Get the PSG device, e.g. to set its clock.
+     * @return PSG device channel, or null before setMasterChannel()
+     */
+    public PsgDeviceChannel getDevice() {
+        return psg;
+    }
+
+    /**
+     * Get the CPU memory, e.g. to map ROM pages after play().
+     * @return CPU memory
+     */
+    public PagedMemory getMemory() {
+        return memory;
+    }
+
+    /**
+     * @see Player
+     * @param channel master channel
+     */
+    public void setMasterChannel(final MasterChannel channel) {
+        psg = new PsgDeviceChannel();
+        psg.setMode(PsgDeviceChannel.MODE_SIGNED);
+        psg.setDevice(PsgDeviceChannel.DEVICE_AY_3_8910);
+        channel.clearChannel();
+        channel.addChannel(psg);
+        channel.setPlayer(this);
+        masterChannel = channel;
+    }
+
+    /**
+     * Queue a register write at the sample position of the current cycle.
+     * Writes by the last instruction of a batch may exceed the batch, and
+     * they are applied at the end of the batch, before the next batch
+     * runs.
+     * @param register register to write
+     * @param value value to write
+     */
+    private void queue(final int register, final int value) {
+        shadow[register] = value;
+        long cycle = cycles + (cpu.getCycles() - batchCycles);
+        long position = cycle * masterChannel.getSampleRate() / cpuClock;
+        int offset = (int) Math.max(0,
+                Math.min(batchLength, position - samples));
+        if (queueSize == queueOffsets.length) {
+            int size = queueSize * 2;
+            int[] offsets = new int[size];
+            int[] registers = new int[size];
+            int[] values = new int[size];
+            System.arraycopy(queueOffsets, 0, offsets, 0, queueSize);
+            System.arraycopy(queueRegisters, 0, registers, 0, queueSize);
+            System.arraycopy(queueValues, 0, values, 0, queueSize);
+            queueOffsets = offsets;
+            queueRegisters = registers;
+            queueValues = values;
+        }
+        queueOffsets[queueSize] = offset;
+        queueRegisters[queueSize] = register;
+        queueValues[queueSize] = value;
+        queueSize++;
+    }
+
+    /**
+     * Run the CPU for the next batch, and queue its port writes.
+     * The cycle budget is calculated from the total samples, so that the
+     * CPU never drifts from the audio.
+     */
+    private void runBatch() {
+        long rate = masterChannel.getSampleRate();
+        samples += batchLength;
+        batchLength = (int) Math.max(1, rate * batchMsec / MSEC_PER_SEC);
+        batchPosition = 0;
+        queueSize = 0;
+        queueIndex = 0;
+        long end = (samples + batchLength) * cpuClock / rate;
+        batchCycles = cpu.getCycles();
+        cpu.run((int) (end - cycles));
+        cycles += cpu.getCycles() - batchCycles;
+    }
+
+    /**
+     * @see Player
+     */
+    public void updateDevice() {
+        nextEventDelay = NO_EVENT;
+        if (!playing) {
+            return;
+        }
+        for (;;) {
+            while ((queueIndex < queueSize)
+                    && (queueOffsets[queueIndex] <= batchPosition)) {
+                psg.writeRegister(queueRegisters[queueIndex],
+                        queueValues[queueIndex]);
+                queueIndex++;
+            }
+            if (batchPosition != batchLength) {
+                break;
+            }
+            runBatch();
+        }
+        // sleep until the next write, or the end of the batch
+        int next = batchLength;
+        if (queueIndex < queueSize) {
+            next = queueOffsets[queueIndex];
+        }
+        nextEventDelay = next - batchPosition;
+        batchPosition = next;
+    }
+
+    /**
+     * @see EventPlayer
+     * @return time to the next event in samples
+     */
+    public int getNextEventDelay() {
+        return nextEventDelay;
+    }
+
+    /**
+     * Load a program image at $0000, and play it from $0000.
+     * @see Player
+     * @param input InputStream of the program image
+     * @return success or not
+     */
+    public boolean play(final InputStream input) {
+        playing = false;
+        byte[] image = new byte[PagedMemory.MEMORY_SIZE];
+        int size = 0;
+        try {
+            while (size < image.length) {
+                int read = input.read(image, size, image.length - size);
+                if (read < 0) {
+                    break;
+                }
+                size += read;
+            }
+        } catch (IOException e) {
+            lastException = e;
+            return false;
+        }
+        memory.load(0, image, 0, image.length);
+        for (int page = 0; page < PagedMemory.NUM_OF_PAGES; page++) {
+            memory.mapRam(page);
+        }
+        memory.mapIo(portPage, new Port());
+        cpu.setMemory(memory);
+        cpu.init();
+        latch = 0;
+        for (int i = 0; i < NUM_OF_REGISTERS; i++) {
+            shadow[i] = 0;
+        }
+        cycles = 0;
+        samples = 0;
+        batchLength = 0;
+        batchPosition = 0;
+        queueSize = 0;
+        queueIndex = 0;
+        playing = true;
+        masterChannel.setNextPlayerInterval(0);
+        return true;
+    }
+}
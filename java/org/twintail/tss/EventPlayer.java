@@ -0,0 +1,27 @@
+/**
+ * T'SoundSystem for Java
+ */
+package org.twintail.tss;
+
+/**
+ * interface EventPlayer
+ *
+ * This interface provides event driven device control interfaces
+ * to Channel object. Instead of being called back periodically,
+ * the player tells the time to its next event, and Channel generates
+ * the whole period at once before calling updateDevice() again.
+ * updateDevice() must apply all device writes due at the time.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public interface EventPlayer extends Player {
+    /**
+     * Value returned by getNextEventDelay() at the end of stream.
+     */
+    int NO_EVENT = -1;
+
+    /**
+     * Get time to the next event. It is called after updateDevice().
+     * @return time to the next event in samples, or NO_EVENT
+     */
+    int getNextEventDelay();
+}
@@ -0,0 +1,350 @@
+/**
+ * T'SoundSystem for Java
+ */
+package org.twintail.tss;
+
+/**
+ * class FrequencyConversionChannel
+ *
+ * This class converts the sample rate of another channel by a polyphase
+ * windowed sinc filter bank. The input channel runs at the input
+ * frequency, and this channel outputs at the sample rate given by
+ * setSampleRate(). Output time advances exactly by the rational ratio
+ * of both rates, and each output sample takes the filter phase of its
+ * fractional input position, quantized to at most MAX_PHASES phases.
+ * The filter cutoff follows the lower rate, so that down sampling also
+ * works as a decimation filter. Equal rates pass the input through.
+ * Input history is kept in a ring buffer, and nothing is allocated while
+ * generating.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class FrequencyConversionChannel implements SkippableChannel {
+    private static final int SHORTS_PER_SAMPLE = 2;
+    private static final int TAPS = 32;
+    private static final int MAX_PHASES = 1024;
+    private static final double CUTOFF = 0.45;
+    private static final int COEFFICIENT_SHIFT = 14;
+    private static final int COEFFICIENT_ROUND = 1 << (COEFFICIENT_SHIFT - 1);
+    private static final int MAX_WAVE_VALUE = 32767;
+    private static final int MIN_WAVE_VALUE = -32767;
+    private static final double BLACKMAN_A0 = 0.42;
+    private static final double BLACKMAN_A1 = 0.5;
+    private static final double BLACKMAN_A2 = 0.08;
+
+    private Channel channel = null;
+    private int inFrequency = MasterChannel.DEFAULT_SAMPLE_FREQUENCY;
+    private int outFrequency = MasterChannel.DEFAULT_SAMPLE_FREQUENCY;
+    private short[] buffer = null;
+    private int inLength = 0;
+    private short[] inBuffer = null;
+    private int inFrames = 0;
+    private int inOffset = 0;
+    private int numOfChannels = MONO;
+    private int inStep = 1;
+    private int outStep = 1;
+    private int phases = 1;
+    private int taps = TAPS;
+    private int[] bank = null;
+    private int ringSize = 0;
+    private short[][] ring = null;
+    private int ringPosition = 0;
+    private int phase = 0;
+    private int need = 0;
+
+    /**
+     * Class constructor.
+     */
+    public FrequencyConversionChannel() {
+        reconstruct();
+    }
+
+    /**
+     * Calculate the greatest common divisor.
+     * @param a first value
+     * @param b second value
+     * @return the greatest common divisor
+     */
+    private static int gcd(final int a, final int b) {
+        int x = a;
+        int y = b;
+        while (0 != y) {
+            int z = x % y;
+            x = y;
+            y = z;
+        }
+        return x;
+    }
+
+    /**
+     * Set processing channel. It runs at the input frequency.
+     * @param newChannel channel to convert
+     */
+    public void setChannel(final Channel newChannel) {
+        channel = newChannel;
+        if (null != channel) {
+            channel.setSampleRate(inFrequency);
+            if (0 != inLength) {
+                channel.setBufferLength(inLength);
+            }
+        }
+        reset();
+    }
+
+    /**
+     * Set input frequency. History is cleared if it changes.
+     * @param frequency input frequency in Hz
+     */
+    public void setInputFrequency(final int frequency) {
+        if (frequency <= 0) {
+            throw new IllegalArgumentException("Invalid frequency: "
+                    + frequency);
+        }
+        if (frequency == inFrequency) {
+            return;
+        }
+        inFrequency = frequency;
+        if (null != channel) {
+            channel.setSampleRate(inFrequency);
+        }
+        reconstruct();
+    }
+
+    /**
+     * Set output frequency. History is cleared if it changes.
+     * @see Channel
+     * @param rate output frequency in Hz
+     */
+    public void setSampleRate(final int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Invalid frequency: " + rate);
+        }
+        if (rate == outFrequency) {
+            return;
+        }
+        outFrequency = rate;
+        reconstruct();
+    }
+
+    /**
+     * Create the filter bank for the current frequencies.
+     * Phase p holds taps for an output sample p / phases input samples
+     * after the center tap. Each phase is normalized to unity gain.
+     */
+    private void reconstruct() {
+        int divisor = gcd(inFrequency, outFrequency);
+        inStep = inFrequency / divisor;
+        outStep = outFrequency / divisor;
+        phases = Math.min(outStep, MAX_PHASES);
+        double cutoff = CUTOFF;
+        taps = TAPS;
+        if (inFrequency > outFrequency) {
+            cutoff = CUTOFF * outFrequency / inFrequency;
+            taps = (int) Math.ceil((double) TAPS * inFrequency / outFrequency);
+            taps += taps & 1;
+        }
+        bank = new int[phases * taps];
+        int half = taps / 2;
+        for (int p = 0; p < phases; p++) {
+            double fraction = (double) p / phases;
+            double[] h = new double[taps];
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                double t = k - (half - 1) - fraction;
+                double x = 2 * cutoff * t;
+                double sinc = 1;
+                if (0 != x) {
+                    sinc = Math.sin(Math.PI * x) / (Math.PI * x);
+                }
+                double w = 2 * Math.PI * t / taps;
+                h[k] = sinc * (BLACKMAN_A0 + BLACKMAN_A1 * Math.cos(w)
+                        + BLACKMAN_A2 * Math.cos(2 * w));
+                sum += h[k];
+            }
+            for (int k = 0; k < taps; k++) {
+                bank[p * taps + k] = (int) Math.round(
+                        h[k] / sum * (1 << COEFFICIENT_SHIFT));
+            }
+        }
+        ringSize = Integer.highestOneBit(taps) << 1;
+        ring = new short[SHORTS_PER_SAMPLE][ringSize * 2];
+        reset();
+    }
+
+    /**
+     * Reset history and position. The first output sample is aligned to
+     * the first input sample.
+     */
+    private void reset() {
+        if (null != ring) {
+            for (int c = 0; c < ring.length; c++) {
+                for (int i = 0; i < ring[c].length; i++) {
+                    ring[c][i] = 0;
+                }
+            }
+        }
+        ringPosition = 0;
+        phase = 0;
+        need = taps / 2 + 1;
+        inFrames = 0;
+        inOffset = 0;
+    }
+
+    /**
+     * @see Channel
+     * @param length buffer length or size in shorts
+     */
+    public void setBufferLength(final int length) {
+        buffer = new short[length];
+        inLength = length + (length & 1);
+        if (null != channel) {
+            channel.setBufferLength(inLength);
+        }
+        inFrames = 0;
+        inOffset = 0;
+    }
+
+    /**
+     * @see Channel
+     * @return audio stream buffer
+     */
+    public short[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Output has as many channels as the input channel has.
+     * @see Channel
+     * @return MONO or STEREO
+     */
+    public int getNumOfChannels() {
+        if (null == channel) {
+            return MONO;
+        }
+        return channel.getNumOfChannels();
+    }
+
+    /**
+     * Push the next input sample into the ring buffer. Each sample is
+     * written twice so that any window of taps is contiguous.
+     */
+    private void push() {
+        if (inOffset == inFrames) {
+            channel.generate(inLength);
+            inBuffer = channel.getBuffer();
+            inFrames = inLength / SHORTS_PER_SAMPLE;
+            inOffset = 0;
+        }
+        int position = ringPosition;
+        if (MONO == numOfChannels) {
+            short value = inBuffer[inOffset];
+            ring[0][position] = value;
+            ring[0][position + ringSize] = value;
+        } else {
+            int offset = inOffset * SHORTS_PER_SAMPLE;
+            for (int c = 0; c < SHORTS_PER_SAMPLE; c++) {
+                short value = inBuffer[offset + c];
+                ring[c][position] = value;
+                ring[c][position + ringSize] = value;
+            }
+        }
+        inOffset++;
+        ringPosition = (position + 1) & (ringSize - 1);
+    }
+
+    /**
+     * Advance output position as generate() does without filtering.
+     * Input is still pushed into the history, so that following
+     * generate() outputs the same samples.
+     * @see SkippableChannel
+     * @param length sound length in short to skip
+     */
+    public void skip(final int length) {
+        if ((null == buffer) || (null == channel)) {
+            return;
+        }
+        int channels = channel.getNumOfChannels();
+        if (channels != numOfChannels) {
+            numOfChannels = channels;
+            reset();
+        }
+        if (inFrequency == outFrequency) {
+            if (channel instanceof SkippableChannel) {
+                ((SkippableChannel) channel).skip(length);
+            } else {
+                channel.generate(length);
+            }
+            return;
+        }
+        int frames = length / SHORTS_PER_SAMPLE;
+        if (MONO == numOfChannels) {
+            frames = (length + 1) / SHORTS_PER_SAMPLE;
+        }
+        for (int frame = 0; frame < frames; frame++) {
+            for (; need > 0; need--) {
+                push();
+            }
+            phase += inStep;
+            need = phase / outStep;
+            phase -= need * outStep;
+        }
+    }
+
+    /**
+     * Generate specified length sound stream into internal buffer.
+     * @see Channel
+     * @param length sound length in short to generate
+     */
+    public void generate(final int length) {
+        if (null == buffer) {
+            return;
+        }
+        if (null == channel) {
+            for (int i = 0; i < length; i++) {
+                buffer[i] = 0;
+            }
+            return;
+        }
+        int channels = channel.getNumOfChannels();
+        if (channels != numOfChannels) {
+            numOfChannels = channels;
+            reset();
+        }
+        int frames = length / SHORTS_PER_SAMPLE;
+        if (MONO == numOfChannels) {
+            frames = (length + 1) / SHORTS_PER_SAMPLE;
+        }
+        if (inFrequency == outFrequency) {
+            channel.generate(length);
+            System.arraycopy(channel.getBuffer(), 0, buffer, 0,
+                    frames * numOfChannels);
+            return;
+        }
+        final int[] coefficients = bank;
+        final int size = taps;
+        for (int frame = 0; frame < frames; frame++) {
+            for (; need > 0; need--) {
+                push();
+            }
+            // the window starts at the oldest of the last taps samples
+            int base = (ringPosition - size) & (ringSize - 1);
+            int offset = phase;
+            if (phases != outStep) {
+                offset = (int) ((long) phase * phases / outStep);
+            }
+            offset *= size;
+            for (int c = 0; c < numOfChannels; c++) {
+                final short[] history = ring[c];
+                int value = 0;
+                for (int k = 0; k < size; k++) {
+                    value += history[base + k] * coefficients[offset + k];
+                }
+                value = (value + COEFFICIENT_ROUND) >> COEFFICIENT_SHIFT;
+                buffer[frame * numOfChannels + c] = (short) Math.max(
+                        MIN_WAVE_VALUE, Math.min(MAX_WAVE_VALUE, value));
+            }
+            phase += inStep;
+            need = phase / outStep;
+            phase -= need * outStep;
+        }
+    }
+}
@@ -3,9 +3,14 @@
  */
 package org.twintail.tss;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * class MasterChannel (thread unsafe)
@@ -13,34 +18,181 @@ import java.util.LinkedList;
  * This class provide main audio generation loop.
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
-public final class MasterChannel implements Channel {
-    public static final int SAMPLE_FREQUENCY = 44100;
+public final class MasterChannel implements SkippableChannel {
+    public static final int DEFAULT_SAMPLE_FREQUENCY = 44100;
     private static final int MAX_WAVE_VALUE = 32767;
     private static final int MIN_WAVE_VALUE = -32767;
     private static final int MSEC_PER_SEC = 1000;
+    private static final int SHORTS_PER_SAMPLE = 2;
     private static final int DEFAULT_VOLUME = 8;
+    private static final Channel[] NO_CHANNELS = new Channel[0];
     private final List<Channel> channels = new LinkedList<Channel>();
+    private Channel[] channelArray = NO_CHANNELS;
+    private List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    private ExecutorService executor = null;
     private short[][] buffers = null;
+    private int[] bufferChannels = null;
+    private int numOfChannels = MONO;
+    private int[] mixBuffer = null;
     private short[] buffer = null;
     private int bufferLength = 0;
+    private int sampleRate = DEFAULT_SAMPLE_FREQUENCY;
     private Player player = null;
-    private int intervalLength = 0;
+    private EventPlayer eventPlayer = null;
+    private long intervalNumerator = 0;
+    private long intervalDenominator = 1;
+    private long intervalRemainder = 0;
     private int intervalRestLength = 0;
+    private boolean intervalScheduled = false;
     private int volume = DEFAULT_VOLUME;
+    private boolean skipping = false;
+    private int playedLength = 0;
 
     /**
-     * Reconstruct slave buffer references.
+     * class SlaveTask
+     *
+     * This class generates one slave channel on a worker thread.
+     */
+    private static final class SlaveTask implements Callable<Object> {
+        private final Channel channel;
+        private int length = 0;
+
+        /**
+         * Class constructor.
+         * @param slave slave channel to generate
+         */
+        SlaveTask(final Channel slave) {
+            channel = slave;
+        }
+
+        /**
+         * Generate the slave channel.
+         * @return not used
+         */
+        public Object call() {
+            channel.generate(length);
+            return null;
+        }
+    }
+
+    /**
+     * Reconstruct slave channel and buffer references.
+     * Audio generation loop walks these arrays instead of the list
+     * so that it never allocates iterators.
      */
     private void reconstructBuffers() {
-        Iterator<Channel> it = channels.iterator();
-        short[][] newBuffers = new short[channels.size()][];
-        for (int i = 0; it.hasNext(); i++) {
-            Channel channel = it.next();
-            newBuffers[i] = channel.getBuffer();
+        Channel[] newChannels = channels.toArray(new Channel[channels.size()]);
+        short[][] newBuffers = new short[newChannels.length][];
+        int[] newBufferChannels = new int[newChannels.length];
+        int newNumOfChannels = MONO;
+        for (int i = 0; i < newChannels.length; i++) {
+            newBuffers[i] = newChannels[i].getBuffer();
+            newBufferChannels[i] = newChannels[i].getNumOfChannels();
+            if (STEREO == newBufferChannels[i]) {
+                newNumOfChannels = STEREO;
+            }
+        }
+        List<Callable<Object>> newTasks =
+            new ArrayList<Callable<Object>>(newChannels.length);
+        for (int i = 0; i < newChannels.length; i++) {
+            newTasks.add(new SlaveTask(newChannels[i]));
         }
+        channelArray = newChannels;
+        tasks = newTasks;
+        bufferChannels = newBufferChannels;
+        numOfChannels = newNumOfChannels;
         buffers = newBuffers;
     }
 
+    /**
+     * Set executor to generate slave channels in parallel.
+     * Each slave channel generates its own buffer on the executor, and
+     * mixing starts after all of them finish. Output is identical to
+     * the serial mode. Slave channels must not share any state.
+     * Set null to go back to the serial mode.
+     * @param newExecutor executor to use, or null
+     */
+    public void setExecutor(final ExecutorService newExecutor) {
+        executor = newExecutor;
+    }
+
+    /**
+     * Generate slave channels on the executor and wait for all of them.
+     * @param length buffer length to generate
+     */
+    private void generateSlavesInParallel(final int length) {
+        for (int i = 0; i < tasks.size(); i++) {
+            ((SlaveTask) tasks.get(i)).length = length;
+        }
+        try {
+            List<Future<Object>> results = executor.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                results.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted: " + e.toString());
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Slave failed: "
+                    + e.getCause().toString());
+        }
+    }
+
+    /**
+     * Calculate the greatest common divisor.
+     * @param a first value
+     * @param b second value
+     * @return the greatest common divisor
+     */
+    private static long gcd(final long a, final long b) {
+        long x = a;
+        long y = b;
+        while (0 != y) {
+            long z = x % y;
+            x = y;
+            y = z;
+        }
+        return x;
+    }
+
+    /**
+     * Set output sample rate, and propagate it to all channels.
+     * Periodical player interval keeps its length in time, and the
+     * current interval starts again.
+     * Players which schedule their own events should read the sample
+     * rate by getSampleRate() so that it is set before playing.
+     * @param rate sample rate in Hz
+     */
+    public void setSampleRate(final int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Invalid rate: " + rate);
+        }
+        if (0 != intervalNumerator) {
+            long numerator = intervalNumerator * rate;
+            long denominator = intervalDenominator * sampleRate;
+            long divisor = gcd(numerator, denominator);
+            intervalNumerator = numerator / divisor;
+            intervalDenominator = denominator / divisor;
+            intervalRemainder = 0;
+            if (!intervalScheduled) {
+                intervalRestLength = nextIntervalLength();
+            }
+        }
+        sampleRate = rate;
+        Iterator<Channel> it = channels.iterator();
+        while (it.hasNext()) {
+            it.next().setSampleRate(rate);
+        }
+    }
+
+    /**
+     * Get output sample rate.
+     * @return sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
     /**
      * Set mixing volume.
      * Every device sets maximum volume of each sound channel
@@ -53,18 +205,45 @@ public final class MasterChannel implements Channel {
         volume = newVolume;
     }
 
+    /**
+     * Get mixing volume.
+     * @return volume
+     */
+    public int getVolume() {
+        return volume;
+    }
+
+    /**
+     * Get the number of channels in audio play back loop.
+     * @return number of channels
+     */
+    public int getChannelCount() {
+        return channels.size();
+    }
+
+    /**
+     * Get a channel in audio play back loop.
+     * @param index channel index
+     * @return channel
+     */
+    public Channel getChannel(final int index) {
+        return channels.get(index);
+    }
+
     /**
      * Add channel to audio play back loop.
      * @param channel channel to add
      * @return result
      */
     public boolean addChannel(final Channel channel) {
+        boolean result = channels.add(channel);
+        channel.setSampleRate(sampleRate);
         if (0 != bufferLength) {
             buffers = null;
             channel.setBufferLength(bufferLength);
             reconstructBuffers();
         }
-        return channels.add(channel);
+        return result;
     }
 
     /**
@@ -90,21 +269,110 @@ public final class MasterChannel implements Channel {
 
     /**
      * Set player object to control devices periodically.
+     * If the player is an EventPlayer, it is called back at each event
+     * instead, and audio between two events is generated at once.
+     * Periodical interval is reset, and an EventPlayer should call
+     * setNextPlayerInterval() to start when it is ready to play.
      * @param newPlayer player to call back
      */
     public void setPlayer(final Player newPlayer) {
         player = newPlayer;
+        eventPlayer = null;
+        if (newPlayer instanceof EventPlayer) {
+            eventPlayer = (EventPlayer) newPlayer;
+        }
+        intervalNumerator = 0;
+        intervalDenominator = 1;
+        intervalRemainder = 0;
+        intervalRestLength = 0;
+        intervalScheduled = false;
+    }
+
+    /**
+     * Check if the player is still called back.
+     * An EventPlayer stops being called back at the end of its stream,
+     * while a periodical player keeps being called back.
+     * @return true if the player will be called back
+     */
+    public boolean isPlaying() {
+        return (null != player)
+            && ((0 != intervalNumerator) || intervalScheduled);
+    }
+
+    /**
+     * Get the length of the last generate() or skip() that was played
+     * before the player stopped being called back. It is the whole length
+     * unless the player reached its end in the call, and is 0 if the
+     * player had already stopped. Without a player, it is the whole
+     * length.
+     * @return played length in shorts
+     */
+    public int getPlayedLength() {
+        return playedLength;
     }
 
     /**
      * Set time interval to call back player periodically.
+     * Intervals which are not multiple of one sample are kept exactly
+     * by carrying the remainder over to the next interval.
      * @param msec time interval
      */
     public void setPlayerInterval(final int msec) {
-        // TODO: intervalLength must be doubled value. See, 80551a7b51fa
-        intervalLength = (int) ((long) SAMPLE_FREQUENCY * (long) msec
-                / (long) MSEC_PER_SEC);
-        intervalRestLength = intervalLength;
+        setPlayerIntervalFraction((long) sampleRate * (long) msec,
+                MSEC_PER_SEC);
+    }
+
+    /**
+     * Set time interval to call back player periodically in samples.
+     * @param samples time interval in samples
+     */
+    public void setPlayerIntervalInSamples(final int samples) {
+        setPlayerIntervalFraction(samples, 1);
+    }
+
+    /**
+     * Set time interval to call back player periodically as a fraction
+     * of samples, e.g. 44100 / 60 for NTSC frames. Fractional part is
+     * carried over to following intervals, so it never drifts.
+     * @param numerator time interval numerator in samples
+     * @param denominator time interval denominator
+     */
+    public void setPlayerIntervalFraction(final long numerator,
+            final long denominator) {
+        if ((numerator < 0) || (denominator <= 0)) {
+            throw new IllegalArgumentException("Invalid interval: "
+                    + numerator + "/" + denominator);
+        }
+        intervalNumerator = numerator;
+        intervalDenominator = denominator;
+        intervalRemainder = 0;
+        intervalRestLength = nextIntervalLength();
+    }
+
+    /**
+     * Set time to the next player call back in samples.
+     * This overrides the periodical interval only once, and is intended
+     * to be called in Player.updateDevice() so that a player can sleep
+     * until its next event directly.
+     * @param samples time to the next call back in samples
+     */
+    public void setNextPlayerInterval(final int samples) {
+        if (samples < 0) {
+            throw new IllegalArgumentException("Invalid interval: "
+                    + samples);
+        }
+        intervalRestLength = samples * SHORTS_PER_SAMPLE;
+        intervalScheduled = true;
+    }
+
+    /**
+     * Calculate the next periodical interval.
+     * @return interval length in shorts
+     */
+    private int nextIntervalLength() {
+        long samples = intervalNumerator + intervalRemainder;
+        intervalRemainder = samples % intervalDenominator;
+        return (int) (samples / intervalDenominator) * SHORTS_PER_SAMPLE;
     }
 
     /**
@@ -113,21 +381,59 @@ public final class MasterChannel implements Channel {
      * @param length buffer length to generate
      */
     private void generateInternal(final int base, final int length) {
-        Iterator<Channel> it = channels.iterator();
-        while (it.hasNext()) {
-            Channel channel = it.next();
-            channel.generate(length);
+        final Channel[] slaves = channelArray;
+        final int size = slaves.length;
+        if (skipping) {
+            for (int channel = 0; channel < size; channel++) {
+                if (slaves[channel] instanceof SkippableChannel) {
+                    ((SkippableChannel) slaves[channel]).skip(length);
+                } else {
+                    slaves[channel].generate(length);
+                }
+            }
+            return;
         }
-        int size = channels.size();
-        for (int offset = 0; offset < length; offset++) {
-            int value = 0;
+        if ((null != executor) && (size > 1)) {
+            generateSlavesInParallel(length);
+        } else {
             for (int channel = 0; channel < size; channel++) {
-                value += (int) buffers[channel][offset];
+                slaves[channel].generate(length);
             }
-            value *= volume;
-            if (value > MAX_WAVE_VALUE) { value = MAX_WAVE_VALUE; }
-            if (value < MIN_WAVE_VALUE) { value = MIN_WAVE_VALUE; }
-            buffer[base + offset] = (short) value;
+        }
+        // Sum slave buffers channel by channel, then scale and saturate
+        // in a separate pass. Both loops are simple enough for the JIT
+        // to vectorize them. Mono slaves are mixed in mono, and expanded
+        // only if a stereo slave exists.
+        final int[] mix = mixBuffer;
+        final int count;
+        final int outBase;
+        if (MONO == numOfChannels) {
+            count = (length + 1) / SHORTS_PER_SAMPLE;
+            outBase = base / SHORTS_PER_SAMPLE;
+        } else {
+            count = length;
+            outBase = base;
+        }
+        for (int offset = 0; offset < count; offset++) {
+            mix[offset] = 0;
+        }
+        for (int channel = 0; channel < size; channel++) {
+            final short[] slave = buffers[channel];
+            if (bufferChannels[channel] == numOfChannels) {
+                for (int offset = 0; offset < count; offset++) {
+                    mix[offset] += slave[offset];
+                }
+            } else {
+                for (int offset = 0; offset < count; offset++) {
+                    mix[offset] += slave[offset >> 1];
+                }
+            }
+        }
+        final int gain = volume;
+        final short[] out = buffer;
+        for (int offset = 0; offset < count; offset++) {
+            out[outBase + offset] = (short) Math.max(MIN_WAVE_VALUE,
+                    Math.min(MAX_WAVE_VALUE, mix[offset] * gain));
         }
     }
 
@@ -138,6 +444,7 @@ public final class MasterChannel implements Channel {
     public void setBufferLength(final int length) {
         buffers = null;
         buffer = new short[length];
+        mixBuffer = new int[length];
         bufferLength = length;
         Iterator<Channel> it = channels.iterator();
         while (it.hasNext()) {
@@ -155,29 +462,78 @@ public final class MasterChannel implements Channel {
         return buffer;
     }
 
+    /**
+     * MasterChannel is mono while all slave channels are mono.
+     * @see Channel
+     * @return MONO or STEREO
+     */
+    public int getNumOfChannels() {
+        return numOfChannels;
+    }
+
+    /**
+     * Advance players and channels as generate() does, but without
+     * mixing. SkippableChannel slaves skip sound generation, and other
+     * channels generate into their own buffers as usual.
+     * Buffer contents are not updated.
+     * @see SkippableChannel
+     * @param length buffer length or size in shorts to skip
+     */
+    public void skip(final int length) {
+        skipping = true;
+        try {
+            generate(length);
+        } finally {
+            skipping = false;
+        }
+    }
+
     /**
      * @see Channel
      * @param length buffer length or size in shorts to generate audio stream
      */
     public void generate(final int length) {
         if (null == buffers) {
+            playedLength = 0;
             return;
         }
-        if ((null == player) || (0 == intervalLength)) {
+        if (null == player) {
+            playedLength = length;
+            generateInternal(0, length);
+        } else if ((0 == intervalNumerator) && !intervalScheduled) {
+            playedLength = 0;
             generateInternal(0, length);
         } else {
+            playedLength = length;
             int restLength = length;
             int offset = 0;
-            while (restLength > intervalRestLength) {
+            while (restLength >= intervalRestLength) {
                 generateInternal(offset, intervalRestLength);
                 restLength -= intervalRestLength;
                 offset += intervalRestLength;
-                intervalRestLength = intervalLength;
+                intervalScheduled = false;
                 player.updateDevice();
+                if (null != eventPlayer) {
+                    int delay = eventPlayer.getNextEventDelay();
+                    if (EventPlayer.NO_EVENT != delay) {
+                        setNextPlayerInterval(delay);
+                    }
+                }
+                if (!intervalScheduled) {
+                    if (0 == intervalNumerator) {
+                        // no more call backs are requested
+                        playedLength = offset;
+                        intervalRestLength = 0;
+                        break;
+                    }
+                    intervalRestLength = nextIntervalLength();
+                }
             }
             if (0 != restLength) {
                 generateInternal(offset, restLength);
-                intervalRestLength -= restLength;
+                if (0 != intervalRestLength) {
+                    intervalRestLength -= restLength;
+                }
             }
         }
     }
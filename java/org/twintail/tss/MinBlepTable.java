@@ -0,0 +1,152 @@
+/**
+ * T'SoundSystem for Java
+ */
+package org.twintail.tss;
+
+/**
+ * class MinBlepTable
+ *
+ * This class creates a minimum phase band-limited step (MinBLEP) residual
+ * table. A band-limited step is an integrated windowed sinc, converted to
+ * minimum phase through the real cepstrum so that it has almost no
+ * pre-ringing and no latency. The table holds the difference between
+ * the band-limited step and the ideal step, sampled at each output sample
+ * after the edge, for each sub-sample phase of the edge.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+final class MinBlepTable {
+    private static final int PADDING = 4;
+    private static final double LOG_FLOOR = 1.0e-12;
+    private static final double BLACKMAN_A0 = 0.42;
+    private static final double BLACKMAN_A1 = 0.5;
+    private static final double BLACKMAN_A2 = 0.08;
+
+    /**
+     * Class constructor.
+     */
+    private MinBlepTable() {
+    }
+
+    /**
+     * Transform in place by radix-2 FFT.
+     * @param re real parts
+     * @param im imaginary parts
+     * @param inverse true for inverse transform
+     */
+    private static void fft(final double[] re, final double[] im,
+            final boolean inverse) {
+        int n = re.length;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; 0 != (j & bit); bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int size = 2; size <= n; size <<= 1) {
+            double angle = 2 * Math.PI / size;
+            if (inverse) {
+                angle = -angle;
+            }
+            for (int base = 0; base < n; base += size) {
+                for (int k = 0; k < size / 2; k++) {
+                    double c = Math.cos(angle * k);
+                    double s = -Math.sin(angle * k);
+                    int a = base + k;
+                    int b = a + size / 2;
+                    double r = re[b] * c - im[b] * s;
+                    double i = re[b] * s + im[b] * c;
+                    re[b] = re[a] - r;
+                    im[b] = im[a] - i;
+                    re[a] += r;
+                    im[a] += i;
+                }
+            }
+        }
+        if (inverse) {
+            for (int i = 0; i < n; i++) {
+                re[i] /= n;
+                im[i] /= n;
+            }
+        }
+    }
+
+    /**
+     * Create a residual table.
+     * @param phases number of sub-sample phases
+     * @param taps number of output samples affected by one edge
+     * @param cutoff cutoff frequency as a ratio of the output sample rate
+     * @param scale fixed point scale of the table
+     * @return residuals indexed by phase and sample after the edge
+     */
+    static int[][] create(final int phases, final int taps,
+            final double cutoff, final int scale) {
+        int length = phases * taps;
+        int size = Integer.highestOneBit(length * PADDING);
+
+        // windowed sinc in the oversampled domain
+        double[] re = new double[size];
+        double[] im = new double[size];
+        for (int i = 0; i < length; i++) {
+            double t = (double) (i - length / 2) / phases;
+            double x = 2 * cutoff * t;
+            double sinc = 1;
+            if (0 != x) {
+                sinc = Math.sin(Math.PI * x) / (Math.PI * x);
+            }
+            double w = 2 * Math.PI * i / (length - 1);
+            re[i] = sinc * (BLACKMAN_A0 - BLACKMAN_A1 * Math.cos(w)
+                    + BLACKMAN_A2 * Math.cos(2 * w));
+        }
+
+        // real cepstrum, folded to make minimum phase
+        fft(re, im, false);
+        for (int i = 0; i < size; i++) {
+            re[i] = Math.log(Math.max(LOG_FLOOR,
+                    Math.hypot(re[i], im[i])));
+            im[i] = 0;
+        }
+        fft(re, im, true);
+        for (int i = 1; i < size / 2; i++) {
+            re[i] *= 2;
+        }
+        for (int i = size / 2 + 1; i < size; i++) {
+            re[i] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            im[i] = 0;
+        }
+        fft(re, im, false);
+        for (int i = 0; i < size; i++) {
+            double magnitude = Math.exp(re[i]);
+            double phase = im[i];
+            re[i] = magnitude * Math.cos(phase);
+            im[i] = magnitude * Math.sin(phase);
+        }
+        fft(re, im, true);
+
+        // integrate into a step, and take residuals from the ideal step
+        double[] step = new double[length];
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += re[i];
+            step[i] = sum;
+        }
+        int[][] table = new int[phases][taps];
+        for (int phase = 0; phase < phases; phase++) {
+            for (int tap = 0; tap < taps; tap++) {
+                double residual = step[tap * phases + phase] / sum - 1;
+                table[phase][tap] = (int) Math.round(residual * scale);
+            }
+        }
+        return table;
+    }
+}
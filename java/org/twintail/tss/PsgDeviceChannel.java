@@ -3,6 +3,8 @@
  */
 package org.twintail.tss;
 
+import java.util.Arrays;
+
 /**
  * class PsgDeviceChannel
  *
@@ -10,7 +12,7 @@ package org.twintail.tss;
  * AY-3-8910 is a reference model.
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
-public final class PsgDeviceChannel implements Device, Channel {
+public final class PsgDeviceChannel implements Device, SkippableChannel {
     public static final int CLOCK_4MHZ = 4000000;
     public static final int CLOCK_3_58MHZ = 3579545;
     public static final int MODE_UNSIGNED = 0;
@@ -47,6 +49,18 @@ public final class PsgDeviceChannel implements Device, Channel {
     public static final int REGISTER_SN_CH_A_TP_HIGH = 0;
     public static final int REGISTER_SN_CH_B_TP_HIGH = 2;
     public static final int REGISTER_SN_CH_C_TP_HIGH = 4;
+    public static final int SYNTHESIS_SAMPLE = 0;
+    public static final int SYNTHESIS_RUN = 1;
+    public static final int SYNTHESIS_BLEP = 2;
+    public static final int OUTPUT_MIX = 0;
+    public static final int OUTPUT_VOICES = 1;
+    public static final int OUTPUT_PAN = 2;
+    public static final int VOICE_A = 0;
+    public static final int VOICE_B = 1;
+    public static final int VOICE_C = 2;
+    public static final int VOICE_NOISE = 3;
+    public static final int VOICES = 4;
+    public static final int PAN_UNITY = 256;
 
     private static final int DEFAULT_AY_CH_A_TP_LOW = 0x55;
     private static final int DEFAULT_AY_CH_A_TP_HIGH = 0x00;
@@ -125,11 +139,76 @@ public final class PsgDeviceChannel implements Device, Channel {
             0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
         },
     };
+    private static final int TAP_NOISE_PERIOD = 57337;
+    private static final int SHIFT_NOISE_PERIOD = 15;
+    private static final int RUN_MIN_SAMPLES = 10;
+    private static final int PAN_SHIFT = 8;
+    private static final int MAX_WAVE_VALUE = 32767;
+    private static final int MIN_WAVE_VALUE = -32767;
+    private static final int ENVELOPE_SHAPES = 16;
+    private static final int ENVELOPE_STEPS = 32;
+    private static final int ENVELOPE_POSITIONS = ENVELOPE_STEPS * 2;
+    private static final int ENVELOPE_MAX_LEVEL = ENVELOPE_STEPS - 1;
+    private static final int ENVELOPE_CONTINUE = 8;
+    private static final int ENVELOPE_ATTACK = 4;
+    private static final int ENVELOPE_ALTERNATE = 2;
+    private static final int ENVELOPE_HOLD = 1;
+    private static final int ENVELOPE_SHAPE_MASK = 0x0f;
+    private static final int ENVELOPE_AY_LEVEL_MASK = 0x1e;
+    private static final int ENVELOPE_YM_LEVEL_MASK = 0x1f;
+    private static final int ENVELOPE_STEP_BIAS = 14;
+    private static final int ENVELOPE_BASE_STEP_SHIFT =
+        STEP_BIAS - ENVELOPE_STEP_BIAS;
+    private static final int BLEP_PHASES = 64;
+    private static final int BLEP_TAPS = 16;
+    private static final int BLEP_MASK = BLEP_TAPS - 1;
+    private static final int BLEP_SHIFT = 14;
+    private static final int BLEP_ROUND = 1 << (BLEP_SHIFT - 1);
+    private static final double BLEP_CUTOFF = 0.45;
+    private static final int RATE_SHIFT = 16;
+    private static final int STATE_DEVICE = 0;
+    private static final int STATE_CLOCK = 1;
+    private static final int STATE_MODE = 2;
+    private static final int STATE_ACTIVE_REGISTER = 3;
+    private static final int STATE_SEED = 4;
+    private static final int STATE_STEP_NOISE = 5;
+    private static final int STATE_COUNT_NOISE = 6;
+    private static final int STATE_FEEDBACK = 7;
+    private static final int STATE_VOLUME_NOISE = 8;
+    private static final int STATE_REGISTER = 9;
+    private static final int STATE_CHANNEL = STATE_REGISTER + REGISTERS;
+    private static final int STATE_VOLUME = 0;
+    private static final int STATE_ENVELOPE = 1;
+    private static final int STATE_ACTIVE = 2;
+    private static final int STATE_STEP_TONE = 3;
+    private static final int STATE_COUNT_TONE = 4;
+    private static final int STATE_MIXER_TONE = 5;
+    private static final int STATE_MIXER_NOISE = 6;
+    private static final int STATE_CHANNEL_SIZE = 7;
+    private static final int STATE_OUTPUT =
+        STATE_CHANNEL + CHANNELS * STATE_CHANNEL_SIZE;
+    private static final int STATE_PAN_LEFT = STATE_OUTPUT + 1;
+    private static final int STATE_PAN_RIGHT = STATE_PAN_LEFT + VOICES;
+    private static final int STATE_ENVELOPE_SHAPE = STATE_PAN_RIGHT + VOICES;
+    private static final int STATE_ENVELOPE_POSITION =
+        STATE_ENVELOPE_SHAPE + 1;
+    private static final int STATE_STEP_ENVELOPE = STATE_ENVELOPE_POSITION + 1;
+    private static final int STATE_COUNT_ENVELOPE = STATE_STEP_ENVELOPE + 1;
+    private static final int STATE_BLEP_LEVEL = STATE_COUNT_ENVELOPE + 1;
+    private static final int STATE_BLEP_HEAD = STATE_BLEP_LEVEL + 1;
+    private static final int STATE_BLEP_RING = STATE_BLEP_HEAD + 1;
+    // saved state ends at the BLEP ring
+    public static final int STATE_SIZE = STATE_BLEP_RING + BLEP_TAPS;
     private static final int[] NOISE_TP_TABLE = {
         128, 256, 512, 0,
     };
+    private static final int[][] ENVELOPE_TABLE = createEnvelopeTable();
+    private static final int[] ENVELOPE_LOOP = createEnvelopeLoop();
+    private static final int[][] BLEP_TABLE = MinBlepTable.create(
+            BLEP_PHASES, BLEP_TAPS, BLEP_CUTOFF, 1 << BLEP_SHIFT);
 
     private int clock = CLOCK_3_58MHZ;
+    private int sampleRate = MasterChannel.DEFAULT_SAMPLE_FREQUENCY;
     private int mode = MODE_UNSIGNED;
     private int device = DEVICE_AY_3_8910;
     private int activeRegister = 0;
@@ -149,6 +228,80 @@ public final class PsgDeviceChannel implements Device, Channel {
     private boolean[] mixerNoise = new boolean[CHANNELS];
     private boolean feedback = false;
     private int volumeNoise = 0;
+    private long skipEvents = 0;
+    private Device writeMonitor = null;
+    private int synthesis = SYNTHESIS_RUN;
+    private int[] toneLeft = new int[CHANNELS];
+    private int output = OUTPUT_MIX;
+    private int bufferLength = 0;
+    private short[][] voiceBuffer = new short[VOICES][];
+    private int[] voiceLevel = new int[VOICES];
+    private int[] panLeft = { PAN_UNITY, PAN_UNITY, PAN_UNITY, PAN_UNITY };
+    private int[] panRight = { PAN_UNITY, PAN_UNITY, PAN_UNITY, PAN_UNITY };
+    private int envelopeBaseStep = 0;
+    private int envelopeShape = 0;
+    private int envelopePosition = 0;
+    private int stepEnvelope = 0;
+    private int countEnvelope = 0;
+    private short envelopeVolume = 0;
+    private int blepLevel = 0;
+    private int blepHead = 0;
+    private int[] blepRing = new int[BLEP_TAPS];
+
+    /**
+     * Create envelope level table.
+     * Each shape has two cycles of ENVELOPE_STEPS levels. The first cycle
+     * is the attack or decay, and the second cycle is the hold level, or
+     * the next cycle of repeating shapes. See ENVELOPE_LOOP for the
+     * position after the second cycle.
+     * @return envelope levels indexed by shape and position
+     */
+    private static int[][] createEnvelopeTable() {
+        int[][] table = new int[ENVELOPE_SHAPES][ENVELOPE_POSITIONS];
+        for (int shape = 0; shape < ENVELOPE_SHAPES; shape++) {
+            boolean attack = 0 != (shape & ENVELOPE_ATTACK);
+            for (int step = 0; step < ENVELOPE_STEPS; step++) {
+                int up = step;
+                int down = ENVELOPE_MAX_LEVEL - step;
+                int next;
+                if (0 == (shape & ENVELOPE_CONTINUE)) {
+                    next = 0;
+                } else if (0 != (shape & ENVELOPE_HOLD)) {
+                    if (attack ^ (0 != (shape & ENVELOPE_ALTERNATE))) {
+                        next = ENVELOPE_MAX_LEVEL;
+                    } else {
+                        next = 0;
+                    }
+                } else if (0 != (shape & ENVELOPE_ALTERNATE)) {
+                    next = attack ? down : up;
+                } else {
+                    next = attack ? up : down;
+                }
+                table[shape][step] = attack ? up : down;
+                table[shape][ENVELOPE_STEPS + step] = next;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Create envelope loop position table.
+     * Repeating shapes go back to the first cycle, and others stay in
+     * the second cycle that keeps the hold level.
+     * @return position after the last one for each shape
+     */
+    private static int[] createEnvelopeLoop() {
+        int[] loop = new int[ENVELOPE_SHAPES];
+        for (int shape = 0; shape < ENVELOPE_SHAPES; shape++) {
+            if ((0 != (shape & ENVELOPE_CONTINUE))
+                    && (0 == (shape & ENVELOPE_HOLD))) {
+                loop[shape] = 0;
+            } else {
+                loop[shape] = ENVELOPE_STEPS;
+            }
+        }
+        return loop;
+    }
 
     /**
      * Class constructor.
@@ -166,7 +319,11 @@ public final class PsgDeviceChannel implements Device, Channel {
     public void setClock(final int hz) {
         clock = hz; // tone frequency = clock / 32TP
         baseStep = (int) ((long) CLOCK_BIAS * (long) clock
-                / (long) MasterChannel.SAMPLE_FREQUENCY);
+                / (long) sampleRate);
+        envelopeBaseStep = baseStep >> ENVELOPE_BASE_STEP_SHIFT;
+        if (DEVICE_SN76489 != device) {
+            updateStepsAY();
+        }
     }
 
     /**
@@ -181,6 +338,81 @@ public final class PsgDeviceChannel implements Device, Channel {
         mode = newMode;
     }
 
+    /**
+     * Set synthesis method.
+     * SYNTHESIS_SAMPLE emulates counters sample by sample.
+     * SYNTHESIS_RUN finds runs of samples between tone and noise edges,
+     * and fills each run at once. Both generate identical sound stream,
+     * and SN76489 always runs sample by sample.
+     * SYNTHESIS_BLEP adds a band-limited step residual at each edge,
+     * placed at the sub-sample time where the counter exceeded its
+     * threshold. It removes most aliasing of high tones and noise without
+     * oversampling. It works for OUTPUT_MIX, and other outputs use
+     * SYNTHESIS_RUN.
+     * @param method SYNTHESIS_SAMPLE, SYNTHESIS_RUN or SYNTHESIS_BLEP
+     */
+    public void setSynthesis(final int method) {
+        if ((SYNTHESIS_SAMPLE != method) && (SYNTHESIS_RUN != method)
+                && (SYNTHESIS_BLEP != method)) {
+            throw new IllegalArgumentException("Undefined synthesis: "
+                    + method);
+        }
+        synthesis = method;
+    }
+
+    /**
+     * Get synthesis method. It is not a part of the saved state.
+     * @return synthesis method
+     */
+    public int getSynthesis() {
+        return synthesis;
+    }
+
+    /**
+     * Set output method.
+     * OUTPUT_MIX mixes all voices into a mono buffer.
+     * OUTPUT_VOICES also writes each voice into its own mono buffer,
+     * see getVoiceBuffer().
+     * OUTPUT_PAN mixes voices into a stereo buffer with pan gains,
+     * see setPan().
+     * All outputs are written in one pass. Set it before adding this
+     * channel to a MasterChannel, since buffers are allocated again.
+     * @param method OUTPUT_MIX, OUTPUT_VOICES or OUTPUT_PAN
+     */
+    public void setOutput(final int method) {
+        if ((OUTPUT_MIX != method) && (OUTPUT_VOICES != method)
+                && (OUTPUT_PAN != method)) {
+            throw new IllegalArgumentException("Undefined output: "
+                    + method);
+        }
+        output = method;
+        allocateBuffers();
+    }
+
+    /**
+     * Set pan gains of a voice used by OUTPUT_PAN.
+     * PAN_UNITY is the gain of 1. Default gains are PAN_UNITY for both
+     * sides, that generates the same stream as OUTPUT_MIX in stereo.
+     * e.g. ABC stereo sets VOICE_A to left, VOICE_B to center, and
+     * VOICE_C to right.
+     * Noise is a separated voice only on SN76489. AY-3-8910 mixes noise
+     * into each tone voice.
+     * @param voice VOICE_A, VOICE_B, VOICE_C or VOICE_NOISE
+     * @param left left gain
+     * @param right right gain
+     */
+    public void setPan(final int voice, final int left, final int right) {
+        if ((voice < 0) || (voice >= VOICES)) {
+            throw new IllegalArgumentException("Undefined voice: " + voice);
+        }
+        if ((left < 0) || (right < 0)) {
+            throw new IllegalArgumentException("Invalid gain: " + left
+                    + ", " + right);
+        }
+        panLeft[voice] = left;
+        panRight[voice] = right;
+    }
+
     /**
      * Set SN76489 register.
      * @param address register address
@@ -249,6 +481,8 @@ public final class PsgDeviceChannel implements Device, Channel {
             active[i] = true;
             countTone[i] = 0;
         }
+        Arrays.fill(voiceLevel, 0);
+        Arrays.fill(envelope, false);
         if (device == DEVICE_SN76489) {
             initRegisterSN();
         } else {
@@ -261,7 +495,40 @@ public final class PsgDeviceChannel implements Device, Channel {
      * @param length buffer length or size in shorts
      */
     public void setBufferLength(final int length) {
-        buffer = new short[length];
+        bufferLength = length;
+        allocateBuffers();
+    }
+
+    /**
+     * Set output sample rate. Counters keep their phases, and only
+     * the step per sample changes. It is not a part of the saved state.
+     * @see Channel
+     * @param rate sample rate in Hz
+     */
+    public void setSampleRate(final int rate) {
+        sampleRate = rate;
+        setClock(clock);
+    }
+
+    /**
+     * Allocate buffers for the buffer length and the output method.
+     */
+    private void allocateBuffers() {
+        if (0 == bufferLength) {
+            return;
+        }
+        int samples = (bufferLength + 1) / 2;
+        if (OUTPUT_PAN == output) {
+            buffer = new short[samples * 2];
+        } else {
+            buffer = new short[samples];
+        }
+        for (int voice = 0; voice < VOICES; voice++) {
+            voiceBuffer[voice] = null;
+            if (OUTPUT_VOICES == output) {
+                voiceBuffer[voice] = new short[samples];
+            }
+        }
     }
 
     /**
@@ -272,6 +539,61 @@ public final class PsgDeviceChannel implements Device, Channel {
         return buffer;
     }
 
+    /**
+     * Get a voice buffer written in OUTPUT_VOICES.
+     * @param voice VOICE_A, VOICE_B, VOICE_C or VOICE_NOISE
+     * @return voice buffer, or null if the output method is not
+     *         OUTPUT_VOICES
+     */
+    public short[] getVoiceBuffer(final int voice) {
+        return voiceBuffer[voice];
+    }
+
+    /**
+     * @see Channel
+     * @return STEREO for OUTPUT_PAN, otherwise MONO
+     */
+    public int getNumOfChannels() {
+        if (OUTPUT_PAN == output) {
+            return STEREO;
+        }
+        return MONO;
+    }
+
+    /**
+     * Write current voice levels to output buffers.
+     * @param offset sample offset to write
+     * @param count number of samples to write
+     * @param value mixed level
+     */
+    private void emit(final int offset, final int count, final short value) {
+        if (OUTPUT_PAN == output) {
+            int left = 0;
+            int right = 0;
+            for (int voice = 0; voice < VOICES; voice++) {
+                left += voiceLevel[voice] * panLeft[voice];
+                right += voiceLevel[voice] * panRight[voice];
+            }
+            short leftValue = (short) Math.max(MIN_WAVE_VALUE,
+                    Math.min(MAX_WAVE_VALUE, left >> PAN_SHIFT));
+            short rightValue = (short) Math.max(MIN_WAVE_VALUE,
+                    Math.min(MAX_WAVE_VALUE, right >> PAN_SHIFT));
+            int end = (offset + count) * 2;
+            for (int i = offset * 2; i < end; i += 2) {
+                buffer[i + 0] = leftValue;
+                buffer[i + 1] = rightValue;
+            }
+            return;
+        }
+        Arrays.fill(buffer, offset, offset + count, value);
+        if (OUTPUT_VOICES == output) {
+            for (int voice = 0; voice < VOICES; voice++) {
+                Arrays.fill(voiceBuffer[voice], offset, offset + count,
+                        (short) voiceLevel[voice]);
+            }
+        }
+    }
+
     /**
      * Generate specified length sound stream into internal buffer
      * of SN76489.
@@ -285,7 +607,9 @@ public final class PsgDeviceChannel implements Device, Channel {
         } else {
             step = stepNoise;
         }
-        for (int offset = 0; offset < length; offset += 2) {
+        final boolean voices = OUTPUT_MIX != output;
+        int samples = (length + 1) / 2;
+        for (int offset = 0; offset < samples; offset++) {
             short value = 0;
             for (int channel = 0; channel < CHANNELS; channel++) {
                 countTone[channel] += baseStep;
@@ -293,10 +617,15 @@ public final class PsgDeviceChannel implements Device, Channel {
                     countTone[channel] -= stepTone[channel];
                     active[channel] = !active[channel];
                 }
+                short level = 0;
                 if (active[channel]) {
-                    value += volume[channel];
+                    level = volume[channel];
                 } else if (mode == MODE_SIGNED) {
-                    value -= volume[channel];
+                    level = (short) -volume[channel];
+                }
+                value += level;
+                if (voices) {
+                    voiceLevel[channel] = level;
                 }
             }
             countNoise += baseStep;
@@ -311,13 +640,19 @@ public final class PsgDeviceChannel implements Device, Channel {
                     seed |= ((seed << UPDATE_SEED_LSHIFT) & SHORT_MASK);
                 }
             }
+            int level = 0;
             if (0 != (seed & 1)) {
-                value += volumeNoise;
+                level = volumeNoise;
             } else if (mode == MODE_SIGNED) {
-                value -= volumeNoise;
+                level = -volumeNoise;
+            }
+            value += level;
+            if (voices) {
+                voiceLevel[VOICE_NOISE] = level;
+                emit(offset, 1, value);
+            } else {
+                buffer[offset] = value;
             }
-            buffer[offset + 0] = value;
-            buffer[offset + 1] = value;
         }
     }
 
@@ -328,7 +663,8 @@ public final class PsgDeviceChannel implements Device, Channel {
      * @param length sound length in short to generate
      */
     private void generateAY(final int length) {
-        for (int offset = 0; offset < length; offset += 2) {
+        int samples = (length + 1) / 2;
+        for (int offset = 0; offset < samples; offset++) {
             countNoise += baseStep;
             if (countNoise > stepNoise) {
                 short v = (short) (seed & UPDATE_SEED_MASK);
@@ -337,6 +673,11 @@ public final class PsgDeviceChannel implements Device, Channel {
                 seed |= ((v << UPDATE_SEED_LSHIFT) & SHORT_MASK);
                 countNoise -= stepNoise;
             }
+            countEnvelope += envelopeBaseStep;
+            if (countEnvelope > stepEnvelope) {
+                countEnvelope -= stepEnvelope;
+                updateEnvelope();
+            }
             short value = 0;
             boolean noise = 0 != (seed & 1);
             for (int channel = 0; channel < CHANNELS; channel++) {
@@ -354,9 +695,331 @@ public final class PsgDeviceChannel implements Device, Channel {
                     value -= volume[channel];
                 }
             }
-            buffer[offset + 0] = value;
-            buffer[offset + 1] = value;
+            buffer[offset] = value;
+        }
+    }
+
+    /**
+     * Calculate AY-3-8910 output level for the current counter state.
+     * @param noise noise output
+     * @return output level
+     */
+    private short levelAY(final boolean noise) {
+        short value = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            short level = 0;
+            if ((mixerTone[channel] && active[channel])
+                    || (mixerNoise[channel] && noise)) {
+                level = volume[channel];
+            } else if (mixerTone[channel] && mixerNoise[channel]
+                    && mode == MODE_SIGNED) {
+                level = (short) -volume[channel];
+            }
+            value += level;
+            voiceLevel[channel] = level;
+        }
+        return value;
+    }
+
+    /**
+     * Calculate samples until a counter exceeds threshold for the first
+     * time, including the sample where it happens. It returns 1 for
+     * counters that generateAY() does not handle as a plain run, so
+     * that they are emulated sample by sample.
+     * @param count counter value
+     * @param step value added at each sample
+     * @param threshold counter threshold
+     * @return samples until the next edge
+     */
+    private static int distance(final int count, final int step,
+            final int threshold) {
+        if ((step <= 0) || (count > threshold)
+                || ((long) count + step > Integer.MAX_VALUE)) {
+            return 1;
+        }
+        return (int) Math.min(Integer.MAX_VALUE,
+                (threshold - (long) count) / step + 1);
+    }
+
+    /**
+     * Generate specified length sound stream into internal buffer
+     * of AY-3-8910 or YM-2149 run by run.
+     * Output level changes only at tone or noise edges. Samples before
+     * the next edge are filled at once, and the edge itself runs as
+     * generateAY() does. Counters which can not change output, e.g. tone
+     * of a muted channel, advance as skip() does. If edges are too dense
+     * for runs to pay, it falls back to generateAY() for OUTPUT_MIX.
+     * @see generate
+     * @param length sound length in short to generate
+     */
+    private void generateAYRuns(final int length) {
+        boolean noiseAudible = false;
+        boolean envelopeAudible = false;
+        boolean envelopeMoving = !isEnvelopeHeld();
+        int samples = (length + 1) / 2;
+        int audible = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            boolean moving = envelope[channel] && envelopeMoving;
+            if ((0 != volume[channel]) || moving) {
+                if (mixerTone[channel]) {
+                    audible |= 1 << channel;
+                }
+                if (mixerNoise[channel]) {
+                    noiseAudible = true;
+                }
+                if (moving && (mixerTone[channel] || mixerNoise[channel])) {
+                    envelopeAudible = true;
+                }
+            }
+        }
+        // runs shorter than RUN_MIN_SAMPLES are faster sample by sample
+        long rate = 0;
+        if (noiseAudible) {
+            rate += ((long) baseStep << RATE_SHIFT) / Math.max(1, stepNoise);
+        }
+        if (envelopeAudible) {
+            rate += ((long) envelopeBaseStep << RATE_SHIFT)
+                / Math.max(1, stepEnvelope);
+        }
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (0 != (audible & (1 << channel))) {
+                rate += ((long) baseStep << RATE_SHIFT)
+                    / Math.max(1, stepTone[channel]);
+            }
+        }
+        if ((OUTPUT_MIX == output)
+                && (rate * RUN_MIN_SAMPLES > (1L << RATE_SHIFT))) {
+            generateAY(length);
+            return;
+        }
+        // samples until the next edge of each audible counter
+        int noiseLeft = Integer.MAX_VALUE;
+        if (noiseAudible) {
+            noiseLeft = distance(countNoise, baseStep, stepNoise);
+        }
+        int envelopeLeft = Integer.MAX_VALUE;
+        if (envelopeAudible) {
+            envelopeLeft = distance(countEnvelope, envelopeBaseStep,
+                    stepEnvelope);
+        }
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            toneLeft[channel] = Integer.MAX_VALUE;
+            if (0 != (audible & (1 << channel))) {
+                toneLeft[channel] = distance(countTone[channel], baseStep,
+                        stepTone[channel]);
+            }
+        }
+        short value = levelAY(0 != (seed & 1));
+        for (int offset = 0; offset < samples; ) {
+            int run = Math.min(samples - offset,
+                    Math.min(noiseLeft, envelopeLeft));
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                run = Math.min(run, toneLeft[channel]);
+            }
+            int quiet = run - 1;
+            if (quiet > 0) {
+                emit(offset, quiet, value);
+                offset += quiet;
+                int delta = quiet * baseStep;
+                if (noiseAudible) {
+                    countNoise += delta;
+                    noiseLeft -= quiet;
+                }
+                if (envelopeAudible) {
+                    countEnvelope += quiet * envelopeBaseStep;
+                    envelopeLeft -= quiet;
+                }
+                for (int channel = 0; channel < CHANNELS; channel++) {
+                    if (0 != (audible & (1 << channel))) {
+                        countTone[channel] += delta;
+                        toneLeft[channel] -= quiet;
+                    }
+                }
+            }
+            if (noiseAudible) {
+                countNoise += baseStep;
+                if (countNoise > stepNoise) {
+                    updateSeed(true);
+                    countNoise -= stepNoise;
+                }
+                if (0 == --noiseLeft) {
+                    noiseLeft = distance(countNoise, baseStep, stepNoise);
+                }
+            }
+            if (envelopeAudible) {
+                countEnvelope += envelopeBaseStep;
+                if (countEnvelope > stepEnvelope) {
+                    countEnvelope -= stepEnvelope;
+                    updateEnvelope();
+                }
+                if (0 == --envelopeLeft) {
+                    envelopeLeft = distance(countEnvelope, envelopeBaseStep,
+                            stepEnvelope);
+                }
+            }
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                if (0 != (audible & (1 << channel))) {
+                    countTone[channel] += baseStep;
+                    if (countTone[channel] > stepTone[channel]) {
+                        countTone[channel] -= stepTone[channel];
+                        active[channel] = !active[channel];
+                    }
+                    if (0 == --toneLeft[channel]) {
+                        toneLeft[channel] = distance(countTone[channel],
+                                baseStep, stepTone[channel]);
+                    }
+                }
+            }
+            value = levelAY(0 != (seed & 1));
+            emit(offset, 1, value);
+            offset++;
+        }
+        if (!noiseAudible) {
+            skipNoise(samples);
+        }
+        if (!envelopeAudible) {
+            skipEnvelope(samples);
+        }
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (0 == (audible & (1 << channel))) {
+                skipTone(channel, samples);
+            }
+        }
+    }
+
+    /**
+     * Calculate SN76489 output level for the current counter state.
+     * @return output level
+     */
+    private short levelSN() {
+        short value = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (active[channel]) {
+                value += volume[channel];
+            } else if (mode == MODE_SIGNED) {
+                value -= volume[channel];
+            }
+        }
+        if (0 != (seed & 1)) {
+            value += volumeNoise;
+        } else if (mode == MODE_SIGNED) {
+            value -= volumeNoise;
+        }
+        return value;
+    }
+
+    /**
+     * Calculate output level for the current counter state.
+     * @return output level
+     */
+    private int level() {
+        if (device == DEVICE_SN76489) {
+            return levelSN();
+        }
+        return levelAY(0 != (seed & 1));
+    }
+
+    /**
+     * Add a band-limited step residual to the following samples.
+     * @param delta level change of the step
+     * @param phase sub-sample phase passed since the step
+     */
+    private void addBlep(final int delta, final int phase) {
+        final int[] residual = BLEP_TABLE[phase];
+        for (int tap = 0; tap < BLEP_TAPS; tap++) {
+            blepRing[(blepHead + tap) & BLEP_MASK] += delta * residual[tap];
+        }
+    }
+
+    /**
+     * Handle a counter edge in SYNTHESIS_BLEP.
+     * The counter exceeded its threshold count / step samples ago.
+     * @param current output level before the edge
+     * @param count counter value after the edge
+     * @param step value added to the counter at each sample
+     * @return output level after the edge
+     */
+    private int edge(final int current, final int count, final int step) {
+        int next = level();
+        if (next != current) {
+            int phase = BLEP_PHASES - 1;
+            if (count <= 0) {
+                phase = 0;
+            } else if (count < step) {
+                phase = (int) ((long) count * BLEP_PHASES / step);
+            }
+            addBlep(next - current, phase);
+        }
+        return next;
+    }
+
+    /**
+     * Generate specified length band-limited sound stream.
+     * Counters advance as generateSN() or generateAY() does.
+     * @see generate
+     * @param samples sound length in samples to generate
+     * @param out buffer to store sound stream, or null to discard it
+     */
+    private void generateBlep(final int samples, final short[] out) {
+        final boolean sn = device == DEVICE_SN76489;
+        int noiseStep = stepNoise;
+        if (sn && (0 == stepNoise)) {
+            noiseStep = stepTone[CH_C];
+        }
+        // register writes since the last call are steps at this sample
+        int current = level();
+        if (current != blepLevel) {
+            addBlep(current - blepLevel, 0);
+        }
+        for (int offset = 0; offset < samples; offset++) {
+            if (sn) {
+                for (int channel = 0; channel < CHANNELS; channel++) {
+                    countTone[channel] += baseStep;
+                    if (countTone[channel] > stepTone[channel]) {
+                        countTone[channel] -= stepTone[channel];
+                        active[channel] = !active[channel];
+                        current = edge(current, countTone[channel],
+                                baseStep);
+                    }
+                }
+                countNoise += baseStep;
+                if (countNoise > noiseStep) {
+                    updateSeed(feedback);
+                    current = edge(current, 0, baseStep);
+                }
+            } else {
+                countNoise += baseStep;
+                if (countNoise > stepNoise) {
+                    updateSeed(true);
+                    countNoise -= stepNoise;
+                    current = edge(current, countNoise, baseStep);
+                }
+                countEnvelope += envelopeBaseStep;
+                if (countEnvelope > stepEnvelope) {
+                    countEnvelope -= stepEnvelope;
+                    updateEnvelope();
+                    current = edge(current, countEnvelope, envelopeBaseStep);
+                }
+                for (int channel = 0; channel < CHANNELS; channel++) {
+                    countTone[channel] += baseStep;
+                    if (countTone[channel] > stepTone[channel]) {
+                        countTone[channel] -= stepTone[channel];
+                        active[channel] = !active[channel];
+                        current = edge(current, countTone[channel],
+                                baseStep);
+                    }
+                }
+            }
+            int value = current
+                + ((blepRing[blepHead] + BLEP_ROUND) >> BLEP_SHIFT);
+            blepRing[blepHead] = 0;
+            blepHead = (blepHead + 1) & BLEP_MASK;
+            if (null != out) {
+                out[offset] = (short) Math.max(MIN_WAVE_VALUE,
+                        Math.min(MAX_WAVE_VALUE, value));
+            }
         }
+        blepLevel = current;
     }
 
     /**
@@ -365,13 +1028,285 @@ public final class PsgDeviceChannel implements Device, Channel {
      * @param length sound length in short to generate
      */
     public void generate(final int length) {
-        if (device == DEVICE_SN76489) {
+        if ((synthesis == SYNTHESIS_BLEP) && (OUTPUT_MIX == output)) {
+            generateBlep((length + 1) / 2, buffer);
+        } else if (device == DEVICE_SN76489) {
             generateSN(length);
+        } else if ((synthesis == SYNTHESIS_RUN) || (OUTPUT_MIX != output)) {
+            generateAYRuns(length);
         } else {
             generateAY(length);
         }
     }
 
+    /**
+     * Advance a counter in the same way as generate() does for each
+     * sample, i.e. add step, and subtract subtract if the result exceeds
+     * threshold, in int arithmetic, but by runs instead of samples.
+     * The number of times the counter exceeded threshold is stored in
+     * skipEvents.
+     * @param initialCount counter value to start
+     * @param step value added at each sample
+     * @param threshold counter threshold
+     * @param subtract value subtracted when the counter exceeds threshold
+     * @param samples number of samples to advance
+     * @return counter value after samples
+     */
+    private long advance(final int initialCount, final int step,
+            final int threshold, final int subtract, final long samples) {
+        int count = initialCount;
+        long rest = samples;
+        long events = 0;
+        while (rest > 0) {
+            long next = (long) count + step;
+            if (next > Integer.MAX_VALUE) {
+                // the addition overflows, emulate one sample as is
+                int value = count + step;
+                if (value > threshold) {
+                    value -= subtract;
+                    events++;
+                }
+                count = value;
+                rest--;
+            } else if ((subtract == threshold) && (0 < step)
+                    && (step <= threshold) && (count <= threshold)
+                    && ((long) threshold + step <= Integer.MAX_VALUE)) {
+                // the counter stays within threshold without overflow,
+                // and exceeds it once per threshold
+                long total = (long) count + rest * step;
+                long times = 0;
+                if (total > threshold) {
+                    times = (total - 1) / threshold;
+                }
+                count = (int) (total - times * threshold);
+                events += times;
+                rest = 0;
+            } else if (next <= threshold) {
+                if (step <= 0) {
+                    // the counter never exceeds threshold
+                    rest = 0;
+                } else {
+                    long run = Math.min(rest, (threshold - (long) count)
+                            / step);
+                    count += (int) (run * step);
+                    rest -= run;
+                }
+            } else {
+                long delta = (long) step - subtract;
+                long run;
+                if (delta > 0) {
+                    // it keeps exceeding until the addition overflows
+                    run = Math.min(rest,
+                            (Integer.MAX_VALUE - next) / delta + 1);
+                } else if (delta < 0) {
+                    // it keeps exceeding while it decreases
+                    run = Math.min(rest,
+                            (next - threshold - delta - 1) / -delta);
+                } else {
+                    run = rest;
+                }
+                count += (int) (run * delta);
+                events += run;
+                rest -= run;
+            }
+        }
+        skipEvents = events;
+        return count;
+    }
+
+    /**
+     * Update the noise seed once.
+     * @param tap use tapped feedback, or rotate
+     */
+    private void updateSeed(final boolean tap) {
+        if (tap) {
+            short v = (short) (seed & UPDATE_SEED_MASK);
+            v ^= (v >>> UPDATE_SEED_RSHIFT);
+            seed = (short) (((int) seed & SHORT_MASK) >> 1);
+            seed |= ((v << UPDATE_SEED_LSHIFT) & SHORT_MASK);
+        } else {
+            seed = (short) (((int) seed & SHORT_MASK) >> 1);
+            seed |= ((seed << UPDATE_SEED_LSHIFT) & SHORT_MASK);
+        }
+    }
+
+    /**
+     * Update the noise seed many times.
+     * Every seed returns to itself after TAP_NOISE_PERIOD tapped updates,
+     * and every seed after one shifted update returns to itself after
+     * SHIFT_NOISE_PERIOD shifted updates, so only the remainders run.
+     * @param tap use tapped feedback, or rotate
+     * @param times number of updates
+     */
+    private void updateSeeds(final boolean tap, final long times) {
+        long updates = times;
+        if (tap) {
+            updates %= TAP_NOISE_PERIOD;
+        } else if (updates > 0) {
+            updates = 1 + (updates - 1) % SHIFT_NOISE_PERIOD;
+        }
+        for (long i = 0; i < updates; i++) {
+            updateSeed(tap);
+        }
+    }
+
+    /**
+     * Advance internal state by specified length without generating
+     * sound stream. The state afterwards is identical to the one after
+     * generate() with the same length, while cost depends on the number
+     * of noise updates rather than the length.
+     * @see SkippableChannel
+     * @param length sound length in short to skip
+     */
+    public void skip(final int length) {
+        long samples = (length + 1) / 2;
+        if ((synthesis == SYNTHESIS_BLEP) && (OUTPUT_MIX == output)) {
+            // residuals of an edge last BLEP_TAPS samples, so earlier
+            // residuals are all consumed, and only the last samples need
+            // to run as generate() does
+            long tail = Math.min(samples, BLEP_TAPS);
+            if (samples > tail) {
+                skipCounters(samples - tail);
+                Arrays.fill(blepRing, 0);
+                blepHead = (int) ((blepHead + samples - tail) & BLEP_MASK);
+                blepLevel = level();
+            }
+            generateBlep((int) tail, null);
+        } else {
+            skipCounters(samples);
+        }
+    }
+
+    /**
+     * Advance all counters without generating sound stream.
+     * @param samples number of samples to advance
+     */
+    private void skipCounters(final long samples) {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            skipTone(channel, samples);
+        }
+        skipNoise(samples);
+        if (device != DEVICE_SN76489) {
+            skipEnvelope(samples);
+        }
+    }
+
+    /**
+     * Advance a tone counter without generating sound stream.
+     * @param channel channel to advance
+     * @param samples number of samples to advance
+     */
+    private void skipTone(final int channel, final long samples) {
+        countTone[channel] = (int) advance(countTone[channel], baseStep,
+                stepTone[channel], stepTone[channel], samples);
+        if (0 != (skipEvents & 1)) {
+            active[channel] = !active[channel];
+        }
+    }
+
+    /**
+     * Advance the noise counter and seed without generating sound stream.
+     * @param samples number of samples to advance
+     */
+    private void skipNoise(final long samples) {
+        if (device == DEVICE_SN76489) {
+            int step = stepNoise;
+            if (0 == stepNoise) {
+                step = stepTone[CH_C];
+            }
+            countNoise = (int) advance(countNoise, baseStep, step, 0,
+                    samples);
+            updateSeeds(feedback, skipEvents);
+        } else {
+            countNoise = (int) advance(countNoise, baseStep, stepNoise,
+                    stepNoise, samples);
+            updateSeeds(true, skipEvents);
+        }
+    }
+
+    /**
+     * Advance the envelope counter and position without generating sound
+     * stream.
+     * @param samples number of samples to advance
+     */
+    private void skipEnvelope(final long samples) {
+        countEnvelope = (int) advance(countEnvelope, envelopeBaseStep,
+                stepEnvelope, stepEnvelope, samples);
+        if (0 != skipEvents) {
+            long position = envelopePosition + skipEvents;
+            if (position >= ENVELOPE_POSITIONS) {
+                int loop = ENVELOPE_LOOP[envelopeShape];
+                position = loop + (position - ENVELOPE_POSITIONS)
+                    % (ENVELOPE_POSITIONS - loop);
+            }
+            envelopePosition = (int) position;
+            updateEnvelopeVolume();
+        }
+    }
+
+    /**
+     * Move the envelope to the next position.
+     */
+    private void updateEnvelope() {
+        envelopePosition++;
+        if (ENVELOPE_POSITIONS == envelopePosition) {
+            envelopePosition = ENVELOPE_LOOP[envelopeShape];
+        }
+        updateEnvelopeVolume();
+    }
+
+    /**
+     * Get volume for the current envelope position.
+     * AY-3-8910 has 16 levels, and YM-2149 has 32.
+     * @return envelope volume
+     */
+    private short getEnvelopeVolume() {
+        int level = ENVELOPE_TABLE[envelopeShape][envelopePosition];
+        if (device == DEVICE_YM_2149) {
+            level &= ENVELOPE_YM_LEVEL_MASK;
+        } else {
+            level &= ENVELOPE_AY_LEVEL_MASK;
+        }
+        return (short) (volumeTable[level] << VOLUME_BIAS);
+    }
+
+    /**
+     * Update volumes of channels in envelope mode for the current
+     * envelope position.
+     */
+    private void updateEnvelopeVolume() {
+        envelopeVolume = getEnvelopeVolume();
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (envelope[channel]) {
+                volume[channel] = envelopeVolume;
+            }
+        }
+    }
+
+    /**
+     * Check if the envelope keeps the same level forever.
+     * @return true if the envelope is in its hold level
+     */
+    private boolean isEnvelopeHeld() {
+        return (ENVELOPE_STEPS == ENVELOPE_LOOP[envelopeShape])
+            && (envelopePosition >= ENVELOPE_STEPS);
+    }
+
+    /**
+     * Set AY-3-8910 channel volume register.
+     * @param channel channel to set
+     * @param value register value
+     */
+    private void setVolumeAY(final int channel, final int value) {
+        envelope[channel] = 0 != (value & ENVELOPE_MASK);
+        if (envelope[channel]) {
+            volume[channel] = envelopeVolume;
+        } else {
+            volume[channel] = (short) (volumeTable[(value & VOLUME_MASK)
+                    << 1] << VOLUME_BIAS);
+        }
+    }
+
     /**
      * Write to SN76489 registers.
      * If MSB of value byte is high, from bit six to four represent
@@ -440,6 +1375,27 @@ public final class PsgDeviceChannel implements Device, Channel {
         }
     }
 
+    /**
+     * Derive AY-3-8910 noise and envelope steps from registers.
+     * Steps are clamped to the step per sample so that counters wrap
+     * at most once a sample, and they are derived again on clock or
+     * sample rate changes to keep the clamps.
+     */
+    private void updateStepsAY() {
+        stepNoise = ((register[REGISTER_AY_NOISE_TP] & NOISE_TP_MASK) << 1)
+            << (STEP_BIAS + 1);
+        if (stepNoise < baseStep) {
+            stepNoise = baseStep;
+        }
+        // one envelope step takes a half of the tone period of
+        // the same value
+        stepEnvelope = ((register[REGISTER_AY_EP_HIGH] << BITS_PER_BYTE)
+                | register[REGISTER_AY_EP_LOW]) << ENVELOPE_STEP_BIAS;
+        if (stepEnvelope < envelopeBaseStep) {
+            stepEnvelope = envelopeBaseStep;
+        }
+    }
+
     /**
      * Write to AY-3-8910 or YM-2149 registers.
      * @see writeRegister
@@ -478,10 +1434,7 @@ public final class PsgDeviceChannel implements Device, Channel {
                                         << STEP_BIAS;
             break;
         case REGISTER_AY_NOISE_TP:
-            stepNoise = ((value & NOISE_TP_MASK) << 1) << (STEP_BIAS + 1);
-            if (stepNoise < baseStep) {
-                stepNoise = baseStep;
-            }
+            updateStepsAY();
             break;
         case REGISTER_AY_MIXER:
             mixerTone[CH_A] = 0 == (value & MIXER_CH_A_TONE);
@@ -492,28 +1445,23 @@ public final class PsgDeviceChannel implements Device, Channel {
             mixerNoise[CH_C] = 0 == (value & MIXER_CH_C_NOISE);
             break;
         case REGISTER_AY_CH_A_VOLUME:
-            volume[CH_A] = (short) (volumeTable[(value & VOLUME_MASK) << 1]
-                                                 << VOLUME_BIAS);
-            envelope[CH_A] = 0 != (value & ENVELOPE_MASK);
+            setVolumeAY(CH_A, value);
             break;
         case REGISTER_AY_CH_B_VOLUME:
-            volume[CH_B] = (short) (volumeTable[(value & VOLUME_MASK) << 1]
-                                                 << VOLUME_BIAS);
-            envelope[CH_B] = 0 != (value & ENVELOPE_MASK);
+            setVolumeAY(CH_B, value);
             break;
         case REGISTER_AY_CH_C_VOLUME:
-            volume[CH_C] = (short) (volumeTable[(value & VOLUME_MASK) << 1]
-                                                 << VOLUME_BIAS);
-            envelope[CH_C] = 0 != (value & ENVELOPE_MASK);
+            setVolumeAY(CH_C, value);
             break;
         case REGISTER_AY_EP_LOW:
-            // TODO
-            break;
         case REGISTER_AY_EP_HIGH:
-            // TODO
+            updateStepsAY();
             break;
         case REGISTER_AY_EP_CONTROL:
-            // TODO
+            envelopeShape = value & ENVELOPE_SHAPE_MASK;
+            envelopePosition = 0;
+            countEnvelope = 0;
+            updateEnvelopeVolume();
             break;
         case REGISTER_AY_IO_A:
             break;
@@ -524,12 +1472,24 @@ public final class PsgDeviceChannel implements Device, Channel {
         }
     }
 
+    /**
+     * Set a device which receives every register write to this device.
+     * It is intended to record register writes.
+     * @param monitor device to receive writes, or null
+     */
+    public void setWriteMonitor(final Device monitor) {
+        writeMonitor = monitor;
+    }
+
     /**
      * @see Device
      * @param address register address to write
      * @param value register value to write
      */
     public void writeRegister(final int address, final int value) {
+        if (null != writeMonitor) {
+            writeMonitor.writeRegister(address, value);
+        }
         if (device == DEVICE_SN76489) {
             writeRegisterSN(address, value);
         } else {
@@ -537,6 +1497,121 @@ public final class PsgDeviceChannel implements Device, Channel {
         }
     }
 
+    /**
+     * Convert boolean to int for state snapshots.
+     * @param flag boolean value
+     * @return 1 for true, or 0 for false
+     */
+    private static int toInt(final boolean flag) {
+        if (flag) {
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Save whole internal state, including tone and noise phases.
+     * Restoring it with restoreState() makes following generate()
+     * output identical to the one without interruption.
+     * @param state array of STATE_SIZE ints to store the state
+     */
+    public void saveState(final int[] state) {
+        if (state.length < STATE_SIZE) {
+            throw new IllegalArgumentException("Too short state: "
+                    + state.length);
+        }
+        state[STATE_DEVICE] = device;
+        state[STATE_CLOCK] = clock;
+        state[STATE_MODE] = mode;
+        state[STATE_ACTIVE_REGISTER] = activeRegister;
+        state[STATE_SEED] = seed;
+        state[STATE_STEP_NOISE] = stepNoise;
+        state[STATE_COUNT_NOISE] = countNoise;
+        state[STATE_FEEDBACK] = toInt(feedback);
+        state[STATE_VOLUME_NOISE] = volumeNoise;
+        System.arraycopy(register, 0, state, STATE_REGISTER, REGISTERS);
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            int offset = STATE_CHANNEL + channel * STATE_CHANNEL_SIZE;
+            state[offset + STATE_VOLUME] = volume[channel];
+            state[offset + STATE_ENVELOPE] = toInt(envelope[channel]);
+            state[offset + STATE_ACTIVE] = toInt(active[channel]);
+            state[offset + STATE_STEP_TONE] = stepTone[channel];
+            state[offset + STATE_COUNT_TONE] = countTone[channel];
+            state[offset + STATE_MIXER_TONE] = toInt(mixerTone[channel]);
+            state[offset + STATE_MIXER_NOISE] = toInt(mixerNoise[channel]);
+        }
+        state[STATE_OUTPUT] = output;
+        System.arraycopy(panLeft, 0, state, STATE_PAN_LEFT, VOICES);
+        System.arraycopy(panRight, 0, state, STATE_PAN_RIGHT, VOICES);
+        state[STATE_ENVELOPE_SHAPE] = envelopeShape;
+        state[STATE_ENVELOPE_POSITION] = envelopePosition;
+        state[STATE_STEP_ENVELOPE] = stepEnvelope;
+        state[STATE_COUNT_ENVELOPE] = countEnvelope;
+        state[STATE_BLEP_LEVEL] = blepLevel;
+        state[STATE_BLEP_HEAD] = blepHead;
+        System.arraycopy(blepRing, 0, state, STATE_BLEP_RING, BLEP_TAPS);
+    }
+
+    /**
+     * Save whole internal state into a new array.
+     * @see saveState(int[])
+     * @return saved state
+     */
+    public int[] saveState() {
+        int[] state = new int[STATE_SIZE];
+        saveState(state);
+        return state;
+    }
+
+    /**
+     * Restore internal state saved by saveState().
+     * Buffer length is not a part of the state. Buffers are allocated
+     * again only if the output method changes, see setOutput().
+     * @param state saved state
+     */
+    public void restoreState(final int[] state) {
+        if (state.length < STATE_SIZE) {
+            throw new IllegalArgumentException("Too short state: "
+                    + state.length);
+        }
+        device = state[STATE_DEVICE];
+        volumeTable = VOLUME_TABLE[device];
+        setClock(state[STATE_CLOCK]);
+        mode = state[STATE_MODE];
+        activeRegister = state[STATE_ACTIVE_REGISTER];
+        seed = (short) state[STATE_SEED];
+        stepNoise = state[STATE_STEP_NOISE];
+        countNoise = state[STATE_COUNT_NOISE];
+        feedback = 0 != state[STATE_FEEDBACK];
+        volumeNoise = state[STATE_VOLUME_NOISE];
+        System.arraycopy(state, STATE_REGISTER, register, 0, REGISTERS);
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            int offset = STATE_CHANNEL + channel * STATE_CHANNEL_SIZE;
+            volume[channel] = (short) state[offset + STATE_VOLUME];
+            envelope[channel] = 0 != state[offset + STATE_ENVELOPE];
+            active[channel] = 0 != state[offset + STATE_ACTIVE];
+            stepTone[channel] = state[offset + STATE_STEP_TONE];
+            countTone[channel] = state[offset + STATE_COUNT_TONE];
+            mixerTone[channel] = 0 != state[offset + STATE_MIXER_TONE];
+            mixerNoise[channel] = 0 != state[offset + STATE_MIXER_NOISE];
+        }
+        // buffers are kept unless the output method changes, so that a
+        // MasterChannel keeps mixing them after restoring
+        if (output != state[STATE_OUTPUT]) {
+            setOutput(state[STATE_OUTPUT]);
+        }
+        System.arraycopy(state, STATE_PAN_LEFT, panLeft, 0, VOICES);
+        System.arraycopy(state, STATE_PAN_RIGHT, panRight, 0, VOICES);
+        envelopeShape = state[STATE_ENVELOPE_SHAPE];
+        envelopePosition = state[STATE_ENVELOPE_POSITION];
+        stepEnvelope = state[STATE_STEP_ENVELOPE];
+        countEnvelope = state[STATE_COUNT_ENVELOPE];
+        blepLevel = state[STATE_BLEP_LEVEL];
+        blepHead = state[STATE_BLEP_HEAD];
+        System.arraycopy(state, STATE_BLEP_RING, blepRing, 0, BLEP_TAPS);
+        envelopeVolume = getEnvelopeVolume();
+    }
+
     /**
      * @see Device
      * @param address register address to read
@@ -12,16 +12,20 @@ import java.io.InputStream;
  * Play AY-3-8910 device control log files.
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
-public final class PsglogPlayer implements Player {
+public final class PsglogPlayer implements EventPlayer {
     private static final int PKT_REGISTER = 0;
     private static final int PKT_VALUE = 1;
     private static final byte PKT_SYNC = -1;
     private static final int BYTE_MASK = 0xff;
-    private static final int PLAYER_INTERVAL = 33;
+    private static final int SYNC_PER_SEC = 60;
     private InputStream input = null;
+    private MasterChannel masterChannel = null;
     private PsgDeviceChannel psg = null;
     private Exception lastException = null;
-    private int sync = 0;
+    private byte[] pkt = new byte[2];
+    private boolean pendingPacket = false;
+    private int nextEventDelay = NO_EVENT;
+    private long syncs = 0;
 
     /**
      * Get last happened exception.
@@ -42,43 +46,64 @@ public final class PsglogPlayer implements Player {
         channel.clearChannel();
         channel.addChannel(psg);
         channel.setPlayer(this);
-        channel.setPlayerInterval(PLAYER_INTERVAL);
+        masterChannel = channel;
+    }
+
+    /**
+     * Read one packet.
+     * @return true if a packet is read
+     * @throws IOException exception on reading
+     */
+    private boolean readPacket() throws IOException {
+        return 2 == input.read(pkt, 0, 2);
     }
 
     /**
      * @see Player
      */
     public void updateDevice() {
+        nextEventDelay = NO_EVENT;
         if (null == input) {
             return;
         }
-        if (0 != sync) {
-            sync--;
-            return;
-        }
         try {
-            byte[] pkt = new byte[2];
-            int readByte;
-            boolean finished = false;
-            do {
-                readByte = input.read(pkt, 0, 2);
-                if (2 == readByte) {
-                    if (pkt[PKT_REGISTER] != PKT_SYNC) {
-                        psg.writeRegister(pkt[PKT_REGISTER],
-                                pkt[PKT_VALUE] & BYTE_MASK);
-                    } else {
-                        sync = pkt[PKT_VALUE] & BYTE_MASK;
-                        finished = true;
-                    }
+            int sync = 0;
+            boolean pending = pendingPacket;
+            pendingPacket = false;
+            while (pending || readPacket()) {
+                pending = false;
+                if (pkt[PKT_REGISTER] == PKT_SYNC) {
+                    // merge successive syncs into one event
+                    sync += (pkt[PKT_VALUE] & BYTE_MASK) + 1;
+                } else if (0 != sync) {
+                    pendingPacket = true;
+                    break;
                 } else {
-                    finished = true;
+                    psg.writeRegister(pkt[PKT_REGISTER],
+                            pkt[PKT_VALUE] & BYTE_MASK);
                 }
-            } while (!finished);
+            }
+            if (pendingPacket || (0 != sync)) {
+                // convert from the total syncs so that rates which are
+                // not multiple of SYNC_PER_SEC never drift
+                long rate = masterChannel.getSampleRate();
+                long begin = syncs * rate / SYNC_PER_SEC;
+                syncs += sync;
+                nextEventDelay = (int) (syncs * rate / SYNC_PER_SEC - begin);
+            }
         } catch (IOException e) {
             lastException = e;
         }
     }
 
+    /**
+     * @see EventPlayer
+     * @return time to the next event in samples
+     */
+    public int getNextEventDelay() {
+        return nextEventDelay;
+    }
+
     /**
      * @see Player
      * @param newInput InputStream to play
@@ -86,6 +111,9 @@ public final class PsglogPlayer implements Player {
      */
     public boolean play(final InputStream newInput) {
         input = newInput;
+        pendingPacket = false;
+        syncs = 0;
+        masterChannel.setNextPlayerInterval(0);
         return true;
     }
 }
@@ -14,6 +14,7 @@ public final class SimpleSlaveChannel implements Channel {
     private short[] buffer = null;
     private int freq = 0;
     private int phase = 0;
+    private int sampleRate = MasterChannel.DEFAULT_SAMPLE_FREQUENCY;
     private short data = DEFAULT_VOLUME;
 
     /**
@@ -29,7 +30,15 @@ public final class SimpleSlaveChannel implements Channel {
      * @param length buffer length or size in shorts
      */
     public void setBufferLength(final int length) {
-        buffer = new short[length];
+        buffer = new short[(length + 1) / 2];
+    }
+
+    /**
+     * @see Channel
+     * @param rate sample rate in Hz
+     */
+    public void setSampleRate(final int rate) {
+        sampleRate = rate;
     }
 
     /**
@@ -40,20 +49,28 @@ public final class SimpleSlaveChannel implements Channel {
         return buffer;
     }
 
+    /**
+     * @see Channel
+     * @return MONO
+     */
+    public int getNumOfChannels() {
+        return MONO;
+    }
+
     /**
      * Generate specified length sound stream into internal buffer.
      * @see Channel
      * @param length sound length in short to generate
      */
     public void generate(final int length) {
-        for (int i = 0; i < length; i += 2) {
+        int samples = (length + 1) / 2;
+        for (int i = 0; i < samples; i++) {
             phase += freq * 2;
-            if (phase > MasterChannel.SAMPLE_FREQUENCY) {
-                phase -= MasterChannel.SAMPLE_FREQUENCY;
+            if (phase > sampleRate) {
+                phase -= sampleRate;
                 data = (short) -data;
             }
-            buffer[i + 0] = data;
-            buffer[i + 1] = data;
+            buffer[i] = data;
         }
     }
 }
@@ -0,0 +1,21 @@
+/**
+ * T'SoundSystem for Java
+ */
+package org.twintail.tss;
+
+/**
+ * interface SkippableChannel
+ *
+ * This interface provides a method to advance a channel without
+ * generating audio. MasterChannel.skip() skips slave channels which
+ * implement it, and lets other slave channels generate as usual.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public interface SkippableChannel extends Channel {
+    /**
+     * Advance internal state as generate() does. Buffer contents are
+     * not updated.
+     * @param length buffer length or size in shorts to skip
+     */
+    void skip(int length);
+}
@@ -3,9 +3,16 @@
  */
 package org.twintail.tss;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.BufferedInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.zip.GZIPInputStream;
 import org.twintail.Log;
 
@@ -16,14 +23,14 @@ import org.twintail.Log;
  * @see http://www.smspower.org/uploads/Music/vgmspec150.txt
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
-public final class VgmPlayer implements Player {
+public final class VgmPlayer implements EventPlayer {
+    public static final int LOOP_INFINITE = -1;
     private static final byte GZ_ID1 = (byte) 0x1f;
     private static final byte GZ_ID2 = (byte) 0x8b;
     private static final byte VGM_ID1 = (byte) 'V';
     private static final byte VGM_ID2 = (byte) 'g';
     private static final byte VGM_ID3 = (byte) 'm';
     private static final byte VGM_ID4 = (byte) ' ';
-    private static final int VGM_IDENT_SIZE = 4;
     private static final int VGM_VERSION_SIZE = 4;
     private static final int VERSION_1_00 = 0x00;
     private static final int VERSION_1_01 = 0x01;
@@ -31,18 +38,15 @@ public final class VgmPlayer implements Player {
     private static final int VERSION_1_50 = 0x50;
     private static final int UINT_SIZE = 4;
     private static final long BYTE_MASK = 0xff;
+    private static final long UINT_MASK = 0xffffffffL;
     private static final int OFFSET_0 = 0;
     private static final int OFFSET_1 = 1;
     private static final int OFFSET_2 = 2;
     private static final int OFFSET_3 = 3;
-    private static final int LSHIFT_0_BYTE = 0;
     private static final int LSHIFT_1_BYTE = 8;
-    private static final int LSHIFT_2_BYTE = 16;
-    private static final int LSHIFT_3_BYTE = 24;
-    private static final int PLAYER_INTERVAL_NTSC = 17;
-    private static final int PLAYER_INTERVAL_PAL = 20;
+    private static final int INITIAL_INFLATE_SIZE = 64 * 1024;
     private static final int VGM_DEFAULT_DATA_OFFSET = 0x40;
-    private static final int VGM_1_00_EOH = 0x24;
+    private static final int VGM_LOOP_OFFSET_BASE = 0x1c;
     private static final byte CMD_WRITE_GG = (byte) 0x4f;
     private static final byte CMD_WRITE_SN = (byte) 0x50;
     private static final byte CMD_WRITE_YM2413 = (byte) 0x51;
@@ -53,37 +57,89 @@ public final class VgmPlayer implements Player {
     private static final byte CMD_WAIT_735 = (byte) 0x62;
     private static final byte CMD_WAIT_882 = (byte) 0x63;
     private static final byte CMD_EOD = (byte) 0x66;
+    private static final int CMD_WAIT_N = 0x70;
+    private static final int CMD_WAIT_N_MASK = 0xf0;
+    private static final int WAIT_N_MASK = 0x0f;
     private static final int WAIT_735 = 735;
     private static final int WAIT_882 = 882;
+    private static final int RECORD_TIME = 0;
+    private static final int RECORD_DATA = 1;
+    private static final int RECORD_SIZE = 2;
+    private static final int INITIAL_RECORDS = 4096;
+    private static final int CHIP_SN = 0;
+    private static final int CHIP_GG = 1;
+    private static final int DATA_CHIP_SHIFT = 16;
+    private static final int DATA_REGISTER_SHIFT = 8;
+    private static final int DATA_BYTE_MASK = 0xff;
+    private static final int VGM_SAMPLE_FREQUENCY = 44100;
+    private static final int CHECKPOINT_INTERVAL = VGM_SAMPLE_FREQUENCY;
+    private static final int INITIAL_CHECKPOINTS = 256;
+    private static final int SN_REGISTERS = 16;
+    private static final int SN_LATCH = 0x80;
+    private static final int SN_LATCH_SHIFT = 4;
+    private static final int SN_LATCH_ADDRESS_BASE = 8;
+    private static final int SN_ADDRESS_MASK = 0x07;
+    private static final int SN_LOW_MASK = 0x0f;
+    private static final int SN_HIGH_MASK = 0x3f;
+    private static final int CHECKPOINT_INDEX = 0;
+    private static final int CHECKPOINT_ACTIVE = 1;
+    private static final int CHECKPOINT_REGISTERS = 2;
+    private static final int CHECKPOINT_SIZE = CHECKPOINT_REGISTERS
+        + SN_REGISTERS;
 
     private MasterChannel masterChannel = null;
-    private InputStream inputStream = null;
+    private ByteBuffer data = null;
     private PsgDeviceChannel psg = null;
     private int minorVersion = 0;
     private long snClock = PsgDeviceChannel.CLOCK_3_58MHZ;
     private boolean error = false;
     private boolean loop = false;
-    private long loopSkipOffset = 0;
-    private int interval = PLAYER_INTERVAL_NTSC;
-    private int wait = 0;
+    private int loopDataOffset = 0;
+    private int[] records = null;
+    private int recordCount = 0;
+    private int recordIndex = 0;
+    private int position = 0;
+    private int endTime = 0;
+    private int loopIndex = 0;
+    private int loopTime = 0;
+    private int[] checkpoints = null;
+    private int checkpointCount = 0;
+    private int[] shadow = new int[SN_REGISTERS];
+    private int shadowActive = 0;
+    private int loopLimit = LOOP_INFINITE;
+    private int loopCount = 0;
+    private int interval = WAIT_735;
+    private int nextEventDelay = NO_EVENT;
     private int writtenSamples = 0;
+    private long elapsed = 0;
 
     /**
-     * Read unsigned int value from InputStream.
-     * @param input InputStream to read
+     * Read unsigned int value from VGM data.
      * @return read unsigned int value
      * @throws IOException exception on reading
      */
-    private long readUInt(final InputStream input) throws IOException {
-        byte[] buffer = new byte[UINT_SIZE];
-        if (UINT_SIZE != input.read(buffer, 0, UINT_SIZE)) {
-            throw new IOException();
+    private long readUInt() throws IOException {
+        if (data.remaining() < UINT_SIZE) {
+            throw new IOException("unexpected end of data");
         }
-        long l = ((long) buffer[OFFSET_0] & BYTE_MASK) << LSHIFT_0_BYTE;
-        long k = ((long) buffer[OFFSET_1] & BYTE_MASK) << LSHIFT_1_BYTE;
-        long j = ((long) buffer[OFFSET_2] & BYTE_MASK) << LSHIFT_2_BYTE;
-        long h = ((long) buffer[OFFSET_3] & BYTE_MASK) << LSHIFT_3_BYTE;
-        return h | j | k | l;
+        return (long) data.getInt() & UINT_MASK;
+    }
+
+    /**
+     * Set how many times the loop section is played again.
+     * The song ends at the end of data after that.
+     * @param count loop count, or LOOP_INFINITE to loop forever
+     */
+    public void setLoopLimit(final int count) {
+        loopLimit = count;
+    }
+
+    /**
+     * Get how many times the loop section was played again.
+     * @return loop count
+     */
+    public int getLoopCount() {
+        return loopCount;
     }
 
     /**
@@ -97,94 +153,405 @@ public final class VgmPlayer implements Player {
         channel.clearChannel();
         channel.addChannel(psg);
         channel.setPlayer(this);
-        // TODO: msec is not sufficient for NTSC (16.6... is not 17!)
-        channel.setPlayerInterval(PLAYER_INTERVAL_NTSC);
         interval = WAIT_735;
         Log.getLog().info("VGM: assume as NTSC");
         masterChannel = channel;
     }
 
     /**
-     * @see Player
+     * Read one byte from VGM data.
+     * @return read byte value
+     * @throws IOException exception at the end of data
      */
-    public void updateDevice() {
-        if (error || (inputStream == null)) {
-            return;
+    private int readByte() throws IOException {
+        if (!data.hasRemaining()) {
+            throw new IOException("unexpected end of data");
         }
-        if (wait > 0) {
-            wait -= interval;
-            return;
+        return (int) data.get() & DATA_BYTE_MASK;
+    }
+
+    /**
+     * Read a wait command and return its length.
+     * @param command command to check
+     * @return wait length in samples, or -1 if the command is not a wait
+     * @throws IOException exception on reading
+     */
+    private int readWait(final int command) throws IOException {
+        switch ((byte) command) {
+        case CMD_WAIT_NNNN:
+            int low = readByte();
+            int high = readByte();
+            return low | (high << LSHIFT_1_BYTE);
+        case CMD_WAIT_735:
+            if (interval != WAIT_735) {
+                Log.getLog().info("VGM: detect as NTSC");
+                interval = WAIT_735;
+            }
+            return WAIT_735;
+        case CMD_WAIT_882:
+            if (interval != WAIT_882) {
+                Log.getLog().info("VGM: detect as PAL");
+                interval = WAIT_882;
+            }
+            return WAIT_882;
+        default:
+            if (CMD_WAIT_N == (command & CMD_WAIT_N_MASK)) {
+                return (command & WAIT_N_MASK) + 1;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Append one register write record.
+     * @param time time stamp in samples
+     * @param chip chip to write
+     * @param register register to write
+     * @param value value to write
+     */
+    private void addRecord(final int time, final int chip,
+            final int register, final int value) {
+        addCheckpoints(time);
+        writeShadow(value);
+        int offset = recordCount * RECORD_SIZE;
+        if (offset == records.length) {
+            int[] newRecords = new int[records.length * 2];
+            System.arraycopy(records, 0, newRecords, 0, records.length);
+            records = newRecords;
+        }
+        records[offset + RECORD_TIME] = time;
+        records[offset + RECORD_DATA] = (chip << DATA_CHIP_SHIFT)
+            | (register << DATA_REGISTER_SHIFT) | value;
+        recordCount++;
+    }
+
+    /**
+     * Write to the SN76489 register shadow in the same way as
+     * PsgDeviceChannel.writeRegisterSN() does.
+     * @param value address and value to write
+     */
+    private void writeShadow(final int value) {
+        if (0 != (value & SN_LATCH)) {
+            int address = (value >> SN_LATCH_SHIFT) & SN_LOW_MASK;
+            shadow[address] = value & SN_LOW_MASK;
+            shadowActive = address & SN_ADDRESS_MASK;
+        } else {
+            shadow[shadowActive] = value & SN_HIGH_MASK;
+        }
+    }
+
+    /**
+     * Add checkpoints for every interval boundary up to the time.
+     * A checkpoint holds the index of the first record at or after the
+     * boundary, and the register shadow before that record.
+     * @param time time stamp in samples
+     */
+    private void addCheckpoints(final int time) {
+        while ((long) checkpointCount * CHECKPOINT_INTERVAL <= time) {
+            int offset = checkpointCount * CHECKPOINT_SIZE;
+            if (offset == checkpoints.length) {
+                int[] newCheckpoints = new int[checkpoints.length * 2];
+                System.arraycopy(checkpoints, 0, newCheckpoints, 0,
+                        checkpoints.length);
+                checkpoints = newCheckpoints;
+            }
+            checkpoints[offset + CHECKPOINT_INDEX] = recordCount;
+            checkpoints[offset + CHECKPOINT_ACTIVE] = shadowActive;
+            System.arraycopy(shadow, 0, checkpoints,
+                    offset + CHECKPOINT_REGISTERS, SN_REGISTERS);
+            checkpointCount++;
+        }
+    }
+
+    /**
+     * Decode whole VGM commands into records of time stamp and register
+     * write, so that playback never touches the stream again.
+     * Decoding stops at the end of data, at the end of stream, or at
+     * the first unsupported command. Loop is disabled in the last two
+     * cases, and the song ends there.
+     */
+    private void decode() {
+        records = new int[INITIAL_RECORDS * RECORD_SIZE];
+        recordCount = 0;
+        checkpoints = new int[INITIAL_CHECKPOINTS * CHECKPOINT_SIZE];
+        checkpointCount = 0;
+        for (int i = 0; i < SN_REGISTERS; i++) {
+            shadow[i] = psg.readRegister(i);
         }
+        shadowActive = 0;
+        loopIndex = 0;
+        loopTime = 0;
+        boolean loopFound = false;
+        int time = 0;
         try {
             while (true) {
-                byte[] command = new byte[1];
-                byte[] arguments = new byte[2];
-                inputStream.read(command, 0, 1);
-                switch (command[0]) {
+                if (loop && !loopFound
+                        && (data.position() >= loopDataOffset)) {
+                    loopFound = true;
+                    loopIndex = recordCount;
+                    loopTime = time;
+                }
+                int command = readByte();
+                int wait = readWait(command);
+                if (wait >= 0) {
+                    time += wait;
+                    continue;
+                }
+                switch ((byte) command) {
                 case CMD_WRITE_GG:
-                    inputStream.read(command, 0, 1);
-                    psg.writeRegister(0, (int) ((long) command[0] & BYTE_MASK));
-                    writtenSamples++;
+                    addRecord(time, CHIP_GG, 0, readByte());
                     break;
                 case CMD_WRITE_SN:
-                    inputStream.read(command, 0, 1);
-                    psg.writeRegister(0, (int) ((long) command[0] & BYTE_MASK));
-                    writtenSamples++;
+                    addRecord(time, CHIP_SN, 0, readByte());
                     break;
                 case CMD_WRITE_YM2413:
                 case CMD_WRITE_YM2612A:
                 case CMD_WRITE_YM2612B:
                 case CMD_WRITE_YM2151:
-                    error = true;
                     Log.getLog().warn("VGM: FM sound is not supported");
+                    loop = false;
+                    endTime = time;
+                    addCheckpoints(endTime);
                     return;
-                case CMD_WAIT_NNNN:
-                    inputStream.read(arguments, 0, 2);
-                    wait += (int) (((long) arguments[0] & BYTE_MASK)
-                            | (((long) arguments[1] & BYTE_MASK)
-                                    << LSHIFT_1_BYTE));
-                    return;
-                case CMD_WAIT_735:
-                    wait += WAIT_735;
-                    masterChannel.setPlayerInterval(PLAYER_INTERVAL_NTSC);
-                    if (interval != WAIT_735) {
-                        Log.getLog().info("VGM: detect as NTSC");
-                        interval = WAIT_735;
+                case CMD_EOD:
+                    endTime = time;
+                    addCheckpoints(endTime);
+                    if (loop && !loopFound) {
+                        Log.getLog().warn("VGM: loop offset is out of data");
+                        loop = false;
                     }
-                    return;
-                case CMD_WAIT_882:
-                    wait += WAIT_882;
-                    masterChannel.setPlayerInterval(PLAYER_INTERVAL_PAL);
-                    if (interval != WAIT_882) {
-                        Log.getLog().info("VGM: detect as PAL");
-                        interval = WAIT_882;
+                    if (loop && (loopTime == endTime)) {
+                        Log.getLog().warn("VGM: loop section is empty");
+                        loop = false;
                     }
                     return;
-                case CMD_EOD:
-                    if (loop) {
-                        inputStream.reset();
-                        inputStream.skip(loopSkipOffset);
-                        Log.getLog().info("VGM: loop");
-                    } else {
-                        // set error flag to stop music
-                        error = true;
-                        return;
-                    }
-                    break;
                 default:
                     Log.getLog().warn("VGM: unknown command 0x"
-                            + Integer.toHexString((int)
-                                    ((long) command[0] & BYTE_MASK)));
-                    Log.getLog().warn("written samples = " + writtenSamples);
-                    return;
+                            + Integer.toHexString(command));
+                    Log.getLog().warn("decoded records = " + recordCount);
+                    break;
                 }
             }
-        } catch (Exception e) {
+        } catch (IOException e) {
+            Log.getLog().error("VGM: " + e.toString());
+            loop = false;
+            endTime = time;
+            addCheckpoints(endTime);
+        }
+    }
+
+    /**
+     * Apply one register write record to the device.
+     * @param record packed chip, register and value
+     */
+    private void applyRecord(final int record) {
+        switch (record >>> DATA_CHIP_SHIFT) {
+        case CHIP_SN:
+        case CHIP_GG:
+            psg.writeRegister((record >> DATA_REGISTER_SHIFT)
+                    & DATA_BYTE_MASK, record & DATA_BYTE_MASK);
+            writtenSamples++;
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Convert a delay in VGM samples into output samples. Both ends are
+     * converted from the elapsed time, so rounding errors never
+     * accumulate.
+     * @param delay delay in VGM samples
+     * @return delay in output samples
+     */
+    private int toOutputSamples(final int delay) {
+        long rate = masterChannel.getSampleRate();
+        long begin = elapsed * rate / VGM_SAMPLE_FREQUENCY;
+        elapsed += delay;
+        return (int) (elapsed * rate / VGM_SAMPLE_FREQUENCY - begin);
+    }
+
+    /**
+     * @see Player
+     */
+    public void updateDevice() {
+        nextEventDelay = NO_EVENT;
+        if (error || (records == null)) {
+            return;
+        }
+        int delay = 0;
+        while (true) {
+            if (recordIndex == recordCount) {
+                // end of data
+                delay += endTime - position;
+                if (loop && ((LOOP_INFINITE == loopLimit)
+                        || (loopCount < loopLimit))) {
+                    loopCount++;
+                    recordIndex = loopIndex;
+                    position = loopTime;
+                    Log.getLog().info("VGM: loop");
+                    if (loopIndex == recordCount) {
+                        // loop section has only waits, play one period
+                        nextEventDelay = toOutputSamples(delay);
+                        return;
+                    }
+                    continue;
+                }
+                // set error flag to stop music after the last wait
+                error = true;
+                if (0 != delay) {
+                    nextEventDelay = toOutputSamples(delay);
+                }
+                return;
+            }
+            int offset = recordIndex * RECORD_SIZE;
+            int time = records[offset + RECORD_TIME];
+            if (time != position) {
+                // merge successive waits into one event
+                delay += time - position;
+                position = time;
+            }
+            if (0 != delay) {
+                nextEventDelay = toOutputSamples(delay);
+                return;
+            }
+            applyRecord(records[offset + RECORD_DATA]);
+            recordIndex++;
+        }
+    }
+
+    /**
+     * @see EventPlayer
+     * @return time to the next event in samples
+     */
+    public int getNextEventDelay() {
+        return nextEventDelay;
+    }
+
+    /**
+     * Get song length without loops.
+     * @return song length in VGM samples, i.e. at 44100 Hz
+     */
+    public int getTotalSamples() {
+        return endTime;
+    }
+
+    /**
+     * Seek to a sample offset from the beginning of the song.
+     * Offsets over the song length continue into the loop section.
+     * Device registers are restored from the nearest checkpoint before
+     * the offset, and only writes between them are replayed. Tone and
+     * noise phases are not restored.
+     * It must be called from the thread running the MasterChannel.
+     * @param sampleOffset offset in VGM samples, i.e. at 44100 Hz
+     * @return false if nothing is played
+     */
+    public boolean seek(final long sampleOffset) {
+        if (records == null) {
+            return false;
+        }
+        if (sampleOffset < 0) {
+            throw new IllegalArgumentException("Invalid offset: "
+                    + sampleOffset);
+        }
+        long target = sampleOffset;
+        int loops = 0;
+        if (target >= endTime) {
+            if (!loop) {
+                // seek to the end, and stop music
+                error = true;
+                return true;
+            }
+            long excess = target - endTime;
+            long period = endTime - loopTime;
+            loops = (int) Math.min(Integer.MAX_VALUE, excess / period + 1);
+            target = loopTime + excess % period;
+            if ((LOOP_INFINITE != loopLimit) && (loops > loopLimit)) {
+                error = true;
+                return true;
+            }
+        }
+        int checkpoint = (int) (target / CHECKPOINT_INTERVAL);
+        int offset = checkpoint * CHECKPOINT_SIZE;
+        int active = checkpoints[offset + CHECKPOINT_ACTIVE];
+        for (int address = SN_LATCH_ADDRESS_BASE; address < SN_REGISTERS;
+                address++) {
+            psg.writeRegister(0, SN_LATCH | (address << SN_LATCH_SHIFT)
+                    | checkpoints[offset + CHECKPOINT_REGISTERS + address]);
+            psg.writeRegister(0, SN_HIGH_MASK & checkpoints[offset
+                    + CHECKPOINT_REGISTERS + (address & SN_ADDRESS_MASK)]);
+        }
+        int latch = active | SN_LATCH_ADDRESS_BASE;
+        psg.writeRegister(0, SN_LATCH | (latch << SN_LATCH_SHIFT)
+                | checkpoints[offset + CHECKPOINT_REGISTERS + latch]);
+        recordIndex = checkpoints[offset + CHECKPOINT_INDEX];
+        while ((recordIndex < recordCount)
+                && (records[recordIndex * RECORD_SIZE + RECORD_TIME]
+                        < target)) {
+            applyRecord(records[recordIndex * RECORD_SIZE + RECORD_DATA]);
+            recordIndex++;
+        }
+        position = (int) target;
+        elapsed = target;
+        loopCount = loops;
+        error = false;
+        masterChannel.setNextPlayerInterval(0);
+        return true;
+    }
+
+    /**
+     * Play a VGM or VGZ file.
+     * VGM file is memory mapped, and VGZ file is inflated once into
+     * a direct buffer.
+     * @param file file to play
+     * @return success or not
+     */
+    public boolean play(final File file) {
+        try {
+            FileInputStream input = new FileInputStream(file);
+            try {
+                FileChannel channel = input.getChannel();
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                        0, channel.size());
+                if ((mapped.limit() >= 2) && (GZ_ID1 == mapped.get(OFFSET_0))
+                        && (GZ_ID2 == mapped.get(OFFSET_1))) {
+                    Log.getLog().info("VGM: GZip compressed, aka VGZ");
+                    channel.position(0);
+                    return play(inflate(new GZIPInputStream(input)));
+                }
+                return play(mapped);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
             Log.getLog().error("VGM: " + e.toString());
-            error = true;
+            return false;
         }
     }
 
+    /**
+     * Read whole stream into a direct buffer.
+     * @param input InputStream to read
+     * @return read data
+     * @throws IOException exception on reading
+     */
+    private static ByteBuffer inflate(final InputStream input)
+            throws IOException {
+        ReadableByteChannel in = Channels.newChannel(input);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_INFLATE_SIZE);
+        while (in.read(buffer) >= 0) {
+            if (!buffer.hasRemaining()) {
+                ByteBuffer newBuffer =
+                    ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                buffer.flip();
+                newBuffer.put(buffer);
+                buffer = newBuffer;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
     /**
      * @see Player
      * @param input InputStream to play
@@ -192,39 +559,64 @@ public final class VgmPlayer implements Player {
      */
     public boolean play(final InputStream input) {
         try {
-            // check gzip or not
-            byte[] gzHeader = new byte[2];
-            input.mark(2);
-            if (2 != input.read(gzHeader, 0, 2)) {
-                return false;
-            }
-            input.reset();
-            InputStream in = input;
-            if ((GZ_ID1 == gzHeader[0]) && (GZ_ID2 == gzHeader[1])) {
+            ByteBuffer buffer = inflate(input);
+            if ((buffer.limit() >= 2) && (GZ_ID1 == buffer.get(OFFSET_0))
+                    && (GZ_ID2 == buffer.get(OFFSET_1))) {
                 Log.getLog().info("VGM: GZip compressed, aka VGZ");
-                in = new BufferedInputStream(new GZIPInputStream(input));
+                byte[] compressed = new byte[buffer.limit()];
+                buffer.get(compressed);
+                buffer = inflate(new GZIPInputStream(
+                        new ByteArrayInputStream(compressed)));
             }
+            return play(buffer);
+        } catch (IOException e) {
+            Log.getLog().error("VGM: " + e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Play VGM data.
+     * @param buffer VGM data
+     * @return success or not
+     */
+    private boolean play(final ByteBuffer buffer) {
+        try {
+            loopCount = 0;
+            error = false;
+            loop = false;
+            records = null;
+            recordIndex = 0;
+            position = 0;
+            endTime = 0;
+            writtenSamples = 0;
+            elapsed = 0;
+            psg.setDevice(PsgDeviceChannel.DEVICE_SN76489);
+            data = buffer.duplicate();
+            data.order(ByteOrder.LITTLE_ENDIAN);
 
             // check vgm header
-            byte[] vgmHeader = new byte[VGM_IDENT_SIZE];
-            if ((VGM_IDENT_SIZE != in.read(vgmHeader, 0, VGM_IDENT_SIZE))
-                    || (vgmHeader[OFFSET_0] != VGM_ID1)
-                    || (vgmHeader[OFFSET_1] != VGM_ID2)
-                    || (vgmHeader[OFFSET_2] != VGM_ID3)
-                    || (vgmHeader[OFFSET_3] != VGM_ID4)) {
+            if ((data.remaining() < VGM_DEFAULT_DATA_OFFSET)
+                    || (data.get() != VGM_ID1)
+                    || (data.get() != VGM_ID2)
+                    || (data.get() != VGM_ID3)
+                    || (data.get() != VGM_ID4)) {
                 Log.getLog().info("VGM: Invalid IDENT");
                 return false;
             }
             Log.getLog().info("VGM: detect VGM indent");
 
             // EoF offset
-            long vgmLength = readUInt(in) + UINT_SIZE;
+            long vgmLength = readUInt() + UINT_SIZE;
             Log.getLog().info("VGM: file length = " + vgmLength);
+            if (vgmLength < data.limit()) {
+                data.limit((int) vgmLength);
+            }
 
             // Version
             byte[] vgmVersion = new byte[VGM_VERSION_SIZE];
-            if ((VGM_VERSION_SIZE != in.read(vgmVersion, 0, VGM_VERSION_SIZE))
-                    || (vgmVersion[OFFSET_3] != 0)
+            data.get(vgmVersion);
+            if ((vgmVersion[OFFSET_3] != 0)
                     || (vgmVersion[OFFSET_2] != 0)
                     || (vgmVersion[OFFSET_1] != 1)) {
                 Log.getLog().error("VGM: version is not 1.x ("
@@ -256,7 +648,7 @@ public final class VgmPlayer implements Player {
 
             // clock settings
             long clock;
-            clock = readUInt(in);
+            clock = readUInt();
             if (0 == clock) {
                 Log.getLog().warn("VGM: SN76489 is not used");
                 return false;
@@ -267,7 +659,7 @@ public final class VgmPlayer implements Player {
                 snClock = clock;
             }
             psg.setClock((int) snClock);
-            clock = readUInt(in);
+            clock = readUInt();
             if (0 != clock) {
                 // TODO: support YM2413
                 Log.getLog().info("VGM: YM2413 clock is " + clock + " Hz");
@@ -275,26 +667,27 @@ public final class VgmPlayer implements Player {
             }
 
             // GD3 tag (TODO: support GD3 tag)
-            long gd3Offset = readUInt(in);
+            long gd3Offset = readUInt();
             Log.getLog().info("VGM: GD3 offset = " + gd3Offset);
 
             // check offsets
-            long totalSamples = readUInt(in);
-            long loopOffset = readUInt(in);
-            long loopSamples = readUInt(in);
+            long totalSamples = readUInt();
+            long loopOffset = readUInt();
+            long loopSamples = readUInt();
             Log.getLog().info("VGM: Total # samples = " + totalSamples);
             Log.getLog().info("VGM: Loop offset = " + loopOffset);
             Log.getLog().info("VGM: Loop # samples = " + loopSamples);
             if (0 != loopOffset) {
                 loop = true;
-                loopSkipOffset = loopOffset - VGM_DEFAULT_DATA_OFFSET;
+                loopDataOffset = (int) (loopOffset + VGM_LOOP_OFFSET_BASE);
             }
 
             // 1.00 complete
             if (minorVersion == VERSION_1_00) {
-                in.skip(VGM_DEFAULT_DATA_OFFSET - VGM_1_00_EOH);
-                in.mark((int) (vgmLength - VGM_DEFAULT_DATA_OFFSET));
-                inputStream = in;
+                data.position(VGM_DEFAULT_DATA_OFFSET);
+                decode();
+                data = null;
+                masterChannel.setNextPlayerInterval(0);
                 return true;
             }
 
@@ -304,9 +697,10 @@ public final class VgmPlayer implements Player {
             // 1.10 features
             // TODO
             if (minorVersion <= VERSION_1_50) {
-                in.skip(VGM_DEFAULT_DATA_OFFSET - VGM_1_00_EOH);
-                in.mark((int) (vgmLength - VGM_DEFAULT_DATA_OFFSET));
-                inputStream = in;
+                data.position(VGM_DEFAULT_DATA_OFFSET);
+                decode();
+                data = null;
+                masterChannel.setNextPlayerInterval(0);
                 return true;
             }
 